@@ -0,0 +1,61 @@
+package org.opf_labs.utils.benchmarks;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opf_labs.utils.Environments;
+
+/**
+ * Cost of loading and initialising the Environments class, and of the first
+ * OS check made through it. Each invocation loads the class afresh in its own
+ * class loader.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvironmentsInitBenchmark {
+	private static final String ENVIRONMENTS = Environments.class.getName();
+	private static final URL[] CLASSPATH = new URL[] { Environments.class
+			.getProtectionDomain().getCodeSource().getLocation() };
+
+	/**
+	 * @return the initialised class
+	 * @throws Exception
+	 *             if the class can't be found
+	 */
+	@Benchmark
+	public Class<?> initialise() throws Exception {
+		URLClassLoader loader = new URLClassLoader(CLASSPATH, null);
+		try {
+			return Class.forName(ENVIRONMENTS, true, loader);
+		} finally {
+			loader.close();
+		}
+	}
+
+	/**
+	 * @return the result of isUnix() on the freshly loaded class
+	 * @throws Exception
+	 *             if the class or method can't be found
+	 */
+	@Benchmark
+	public Object initialiseAndCheckOS() throws Exception {
+		URLClassLoader loader = new URLClassLoader(CLASSPATH, null);
+		try {
+			Class<?> environments = Class.forName(ENVIRONMENTS, true, loader);
+			return environments.getMethod("isUnix").invoke(null);
+		} finally {
+			loader.close();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package org.opf_labs.utils.benchmarks;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opf_labs.utils.Iso8601Format;
+
+/**
+ * Timestamp formatting under contention, eight threads formatting the
+ * current time at once: a synchronised shared {@link SimpleDateFormat}, one
+ * per thread, and {@link Iso8601Format}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class Iso8601FormatBenchmark {
+	private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+
+	private final DateFormat shared = newDateFormat();
+	private final ThreadLocal<DateFormat> perThread = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return newDateFormat();
+		}
+	};
+	private final Iso8601Format format = Iso8601Format.builder().build();
+
+	/**
+	 * Per thread buffer for the append benchmark.
+	 */
+	@State(Scope.Thread)
+	public static class Buffer {
+		final StringBuilder sb = new StringBuilder(64);
+	}
+
+	static DateFormat newDateFormat() {
+		DateFormat dateFormat = new SimpleDateFormat(PATTERN);
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return dateFormat;
+	}
+
+	/**
+	 * @return the current time from a shared, locked SimpleDateFormat
+	 */
+	@Benchmark
+	public String synchronisedSimpleDateFormat() {
+		Date now = new Date();
+		synchronized (this.shared) {
+			return this.shared.format(now);
+		}
+	}
+
+	/**
+	 * @return the current time from a SimpleDateFormat per thread
+	 */
+	@Benchmark
+	public String threadLocalSimpleDateFormat() {
+		return this.perThread.get().format(new Date());
+	}
+
+	/**
+	 * @return the current time from the shared Iso8601Format
+	 */
+	@Benchmark
+	public String iso8601Format() {
+		return this.format.format(System.currentTimeMillis());
+	}
+
+	/**
+	 * @param buffer
+	 *            the thread's buffer
+	 * @return the buffer holding the current time, appended by the shared
+	 *         Iso8601Format
+	 */
+	@Benchmark
+	public StringBuilder iso8601FormatTo(final Buffer buffer) {
+		buffer.sb.setLength(0);
+		return this.format.formatTo(buffer.sb, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the parsed time, from the shared Iso8601Format
+	 */
+	@Benchmark
+	public long iso8601Parse() {
+		return this.format.parseMillis("2012-07-27T12:56:47.123+01:00");
+	}
+}
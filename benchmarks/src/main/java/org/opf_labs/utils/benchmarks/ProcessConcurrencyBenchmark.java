@@ -0,0 +1,90 @@
+package org.opf_labs.utils.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opf_labs.utils.ProcessRunner;
+import org.opf_labs.utils.ProcessRunnerService;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Throughput of many short processes run through a
+ * {@link ProcessRunnerService}, from one to many concurrent processes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessConcurrencyBenchmark {
+	private static final int BATCH = 64;
+	private static final List<String> COMMAND = Arrays.asList("head", "-c",
+			"4096", "/dev/zero");
+
+	/** Maximum number of concurrent processes */
+	@Param({ "1", "2", "4", "8", "16" })
+	public int concurrency;
+
+	private ProcessRunnerService service;
+
+	/**
+	 * Start the service.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		this.service = new ProcessRunnerService(this.concurrency);
+	}
+
+	/**
+	 * Stop the service.
+	 * 
+	 * @throws InterruptedException
+	 *             if interrupted while stopping
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		this.service.shutdown();
+		this.service.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @return the sum of the return codes
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 * @throws ExecutionException
+	 *             when a process can't be run
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int runBatch() throws InterruptedException, ExecutionException {
+		List<ListenableFuture<ProcessRunner>> futures = new ArrayList<ListenableFuture<ProcessRunner>>(
+				BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			futures.add(this.service.submit(COMMAND));
+		}
+		int total = 0;
+		for (ListenableFuture<ProcessRunner> future : futures) {
+			total += future.get().getReturnCode();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,63 @@
+package org.opf_labs.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opf_labs.utils.ProcessRunner;
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+import org.opf_labs.utils.ProcessRunnerImpl;
+import org.opf_labs.utils.ProcessRunnerImplFactory;
+
+/**
+ * Cost of decoding collected process output into a String, the process is
+ * run once per trial so only the decoding is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessOutputDecodeBenchmark {
+	/** Number of output bytes decoded */
+	@Param({ "1024", "31000", "1048576" })
+	public int size;
+
+	private ProcessRunner runner;
+
+	/**
+	 * Run a process that prints size bytes of text.
+	 * 
+	 * @throws ProcessRunnerException
+	 *             when the process can't be run
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws ProcessRunnerException {
+		this.runner = ProcessRunnerImplFactory.getInstance()
+				.createProcessRunner(
+						new String[] { "sh", "-c",
+								"yes 'characterisation output' | head -c "
+										+ this.size });
+		((ProcessRunnerImpl) this.runner).setOutputCollectionByteSize(-1);
+		this.runner.execute();
+	}
+
+	/**
+	 * @return the decoded output
+	 */
+	@Benchmark
+	public String decodeOutput() {
+		return this.runner.getProcessOutputAsString();
+	}
+}
@@ -0,0 +1,81 @@
+package org.opf_labs.utils.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opf_labs.utils.ProcessRunner;
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+import org.opf_labs.utils.ProcessRunnerImpl;
+import org.opf_labs.utils.ProcessRunnerImplFactory;
+
+/**
+ * Throughput of the stream pumps, reading process output and feeding process
+ * input, at several sizes. Output is produced by <code>head -c</code> and
+ * input consumed by <code>cat</code> writing to /dev/null, so the pumps
+ * dominate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessPumpBenchmark {
+	/** Number of bytes pumped per run */
+	@Param({ "1024", "1048576", "104857600" })
+	public int size;
+
+	private byte[] input;
+
+	/**
+	 * Create the input fed to the process.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		this.input = new byte[this.size];
+	}
+
+	/**
+	 * @return the number of output bytes collected
+	 * @throws ProcessRunnerException
+	 *             when the process can't be run
+	 */
+	@Benchmark
+	public int pumpOutput() throws ProcessRunnerException {
+		ProcessRunner runner = ProcessRunnerImplFactory.getInstance()
+				.createProcessRunner(
+						new String[] { "head", "-c",
+								Integer.toString(this.size), "/dev/zero" });
+		((ProcessRunnerImpl) runner).setOutputCollectionByteSize(-1);
+		runner.execute();
+		return runner.getProcessOutputAsBytes().length;
+	}
+
+	/**
+	 * @return the return code of cat
+	 * @throws ProcessRunnerException
+	 *             when the process can't be run
+	 */
+	@Benchmark
+	public int feedInput() throws ProcessRunnerException {
+		ProcessRunner runner = ProcessRunnerImplFactory.getInstance()
+				.createProcessRunner("cat");
+		runner.setInputStream(new ByteArrayInputStream(this.input));
+		runner.setOutputFile(new File("/dev/null"), false);
+		runner.execute();
+		return runner.getReturnCode();
+	}
+}
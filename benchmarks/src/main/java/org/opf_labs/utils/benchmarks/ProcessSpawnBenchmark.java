@@ -0,0 +1,39 @@
+package org.opf_labs.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opf_labs.utils.ProcessRunner;
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+import org.opf_labs.utils.ProcessRunnerImplFactory;
+
+/**
+ * Spawn and exit latency of a trivial command, the fixed cost paid by every
+ * process run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessSpawnBenchmark {
+
+	/**
+	 * @return the return code of <code>true</code>
+	 * @throws ProcessRunnerException
+	 *             when the process can't be run
+	 */
+	@Benchmark
+	public int spawnTrue() throws ProcessRunnerException {
+		ProcessRunner runner = ProcessRunnerImplFactory.getInstance()
+				.createProcessRunner("true");
+		runner.execute();
+		return runner.getReturnCode();
+	}
+}
@@ -0,0 +1,164 @@
+package org.opf_labs.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * Base class for {@link ProcessRunner} implementations. Methods are added to
+ * {@link ProcessRunner} from time to time, and Java 7 interfaces can't carry
+ * defaults, so implementations that extend this class rather than
+ * implementing the interface directly keep compiling when they are.
+ * </p>
+ * <p>
+ * The {@link Path} overloads call their {@link File} counterparts. The other
+ * methods added since the first release have defaults that work from the
+ * original methods: output and error bytes and decoding are read from
+ * {@link #getProcessOutput()} and {@link #getProcessError()}, there are no
+ * metrics, and file redirection, output handlers and listeners throw an
+ * UnsupportedOperationException unless they're being cleared.
+ * </p>
+ */
+public abstract class AbstractProcessRunner implements ProcessRunner {
+
+	/**
+	 * @see ProcessRunner#setInputFile(java.nio.file.Path)
+	 */
+	@Override
+	public void setInputFile(final Path inputFile) {
+		this.setInputFile(toFile(inputFile));
+	}
+
+	/**
+	 * @see ProcessRunner#setOutputFile(java.nio.file.Path, boolean)
+	 */
+	@Override
+	public void setOutputFile(final Path outputFile, final boolean append) {
+		this.setOutputFile(toFile(outputFile), append);
+	}
+
+	/**
+	 * @see ProcessRunner#setErrorFile(java.nio.file.Path, boolean)
+	 */
+	@Override
+	public void setErrorFile(final Path errorFile, final boolean append) {
+		this.setErrorFile(toFile(errorFile), append);
+	}
+
+	/**
+	 * @see ProcessRunner#setInputFile(java.io.File)
+	 */
+	@Override
+	public void setInputFile(final File inputFile) {
+		unsupported(inputFile, "input file redirection");
+	}
+
+	/**
+	 * @see ProcessRunner#setOutputFile(java.io.File, boolean)
+	 */
+	@Override
+	public void setOutputFile(final File outputFile, final boolean append) {
+		unsupported(outputFile, "output file redirection");
+	}
+
+	/**
+	 * @see ProcessRunner#setErrorFile(java.io.File, boolean)
+	 */
+	@Override
+	public void setErrorFile(final File errorFile, final boolean append) {
+		unsupported(errorFile, "error file redirection");
+	}
+
+	/**
+	 * @see ProcessRunner#setOutputHandler(ProcessOutputHandler)
+	 */
+	@Override
+	public void setOutputHandler(final ProcessOutputHandler outputHandler) {
+		unsupported(outputHandler, "output handlers");
+	}
+
+	/**
+	 * @see ProcessRunner#setErrorHandler(ProcessOutputHandler)
+	 */
+	@Override
+	public void setErrorHandler(final ProcessOutputHandler errorHandler) {
+		unsupported(errorHandler, "error handlers");
+	}
+
+	/**
+	 * @see ProcessRunner#setListener(ProcessRunnerListener)
+	 */
+	@Override
+	public void setListener(final ProcessRunnerListener listener) {
+		unsupported(listener, "listeners");
+	}
+
+	/**
+	 * @see ProcessRunner#getMetrics()
+	 */
+	@Override
+	public ProcessMetrics getMetrics() {
+		return null;
+	}
+
+	/**
+	 * @see ProcessRunner#getProcessOutputAsString(java.nio.charset.Charset)
+	 */
+	@Override
+	public String getProcessOutputAsString(final Charset charset) {
+		byte[] bytes = this.getProcessOutputAsBytes();
+		return (bytes == null) ? null : new String(bytes, charset);
+	}
+
+	/**
+	 * @see ProcessRunner#getProcessErrorAsString(java.nio.charset.Charset)
+	 */
+	@Override
+	public String getProcessErrorAsString(final Charset charset) {
+		byte[] bytes = this.getProcessErrorAsBytes();
+		return (bytes == null) ? null : new String(bytes, charset);
+	}
+
+	/**
+	 * @see ProcessRunner#getProcessOutputAsBytes()
+	 */
+	@Override
+	public byte[] getProcessOutputAsBytes() {
+		return readFully(this.getProcessOutput());
+	}
+
+	/**
+	 * @see ProcessRunner#getProcessErrorAsBytes()
+	 */
+	@Override
+	public byte[] getProcessErrorAsBytes() {
+		return readFully(this.getProcessError());
+	}
+
+	private static File toFile(final Path path) {
+		return (path == null) ? null : path.toFile();
+	}
+
+	private static void unsupported(final Object value, final String what) {
+		if (value != null) {
+			throw new UnsupportedOperationException(
+					"This ProcessRunner doesn't support " + what + ".");
+		}
+	}
+
+	private static byte[] readFully(final InputStream in) {
+		if (in == null) {
+			return null;
+		}
+		try {
+			return IOUtils.toByteArray(in);
+		} catch (IOException excep) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,505 @@
+package org.opf_labs.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Limits how many processes run at once, raising and lowering the limit to
+ * keep throughput near the point where adding processes stops helping.
+ * Callers {@link #acquire()} before starting a process, and
+ * {@link #release(long, boolean)} with how long it took and whether it
+ * failed once it's done; callers over the limit wait in turn.
+ * </p>
+ * <p>
+ * The limit follows additive increase, multiplicative decrease. Each run
+ * that completes while the limit is being used raises it by
+ * <code>1/limit</code>, so it grows by about one per round of processes. It's
+ * cut by the backoff ratio when any of these congestion signals is seen:
+ * </p>
+ * <ul>
+ * <li>a run timed out, at most once per typical run time;</li>
+ * <li>a command's average run time has grown past the latency tolerance
+ * times its baseline, the sign of processes queueing for CPU or disk rather
+ * than working;</li>
+ * <li>the host's load per processor, from {@link HostResources}, is over the
+ * maximum and not falling, at most once per load sampling period.</li>
+ * </ul>
+ * <p>
+ * Run times are compared per command and a window of runs at a time, so
+ * that neither a mix of quick and slow tools nor one tool given inputs of
+ * many sizes is mistaken for congestion. Each command's runs are averaged
+ * over windows of {@value #WINDOW_RUNS}, and the baseline is the lowest
+ * recent window average: it drops at once to a lower one and creeps up by a
+ * twentieth of the difference per window, so it tracks the command's
+ * uncongested average while queueing shows as a growing ratio. A command's
+ * runs don't raise the limit until its first window has closed, so that
+ * baseline is taken near the limit it found, and after a slow window the
+ * limit is held until a window shows the cut has helped.
+ * </p>
+ * <p>
+ * The one minute load average lags the host by about a minute, so load
+ * only cuts the limit while it's still rising or level; once the host
+ * quietens the limit is held until the load drops below the maximum, rather
+ * than cut again on every sample.
+ * </p>
+ */
+public final class AdaptiveConcurrencyLimiter {
+	/** Default latency tolerance */
+	public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+	/** Default maximum load per processor */
+	public static final double DEFAULT_MAX_LOAD_PER_PROCESSOR = 2.0;
+	/** Default backoff ratio */
+	public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+	/** Runs of a command averaged together before comparing with baseline */
+	static final int WINDOW_RUNS = 50;
+	/** Weight of each new run in the short moving average of run times */
+	private static final double SHORT_WEIGHT = 0.2;
+	/** How far a baseline creeps up towards a slower window average */
+	private static final double BASELINE_DRIFT = 0.05;
+	/** How often the kernel updates the load average, in nanoseconds */
+	private static final long LOAD_SAMPLE_PERIOD = TimeUnit.SECONDS.toNanos(5);
+	/** Most commands a baseline is kept for */
+	private static final int MAX_BASELINES = 1024;
+
+	// Fair, so waiting callers are let through in the order they came
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition available = this.lock.newCondition();
+	private final int minLimit;
+	private final int maxLimit;
+	private double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+	private volatile double maxLoadPerProcessor = DEFAULT_MAX_LOAD_PER_PROCESSOR;
+	private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+	private double limit;
+	private int inFlight = 0;
+	private int queued = 0;
+	private long completed = 0L;
+	private long failed = 0L;
+	private long decreases = 0L;
+	private double shortLatency = -1;
+	private double latencyRatio = 1.0;
+	private final Map<String, CommandLatency> baselines = new LinkedHashMap<String, CommandLatency>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, CommandLatency> eldest) {
+			return this.size() > MAX_BASELINES;
+		}
+	};
+	private long lastDecrease = System.nanoTime();
+	/** When the load was last compared with the one before, and its value */
+	private long lastLoadCheck = System.nanoTime() - LOAD_SAMPLE_PERIOD;
+	private double lastLoad = -1;
+
+	/**
+	 * Create a limiter that starts at one process per effective processor,
+	 * and ranges from one to four times that.
+	 */
+	public AdaptiveConcurrencyLimiter() {
+		this(HostResources.current().getEffectiveProcessors());
+	}
+
+	/**
+	 * @param initialLimit
+	 *            the limit to start at, which may range from one to four
+	 *            times the initial limit
+	 */
+	public AdaptiveConcurrencyLimiter(final int initialLimit) {
+		this(initialLimit, 1, 4 * Math.max(1, initialLimit));
+	}
+
+	/**
+	 * @param initialLimit
+	 *            the limit to start at
+	 * @param minLimit
+	 *            the lowest the limit may go, at least 1
+	 * @param maxLimit
+	 *            the highest the limit may go
+	 */
+	public AdaptiveConcurrencyLimiter(final int initialLimit,
+			final int minLimit, final int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+				|| initialLimit > maxLimit) {
+			throw new IllegalArgumentException(
+					"Limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit, were "
+							+ minLimit + ", " + initialLimit + ", " + maxLimit);
+		}
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * @param latencyTolerance
+	 *            how many times its baseline a command's average run time
+	 *            may reach before the limit is cut, default
+	 *            {@link #DEFAULT_LATENCY_TOLERANCE}
+	 */
+	public void setLatencyTolerance(final double latencyTolerance) {
+		if (!(latencyTolerance >= 1.0)) {
+			throw new IllegalArgumentException(
+					"latencyTolerance must be at least 1, was "
+							+ latencyTolerance);
+		}
+		this.lock.lock();
+		try {
+			this.latencyTolerance = latencyTolerance;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param maxLoadPerProcessor
+	 *            the one minute load average per processor above which the
+	 *            limit is cut, default {@link #DEFAULT_MAX_LOAD_PER_PROCESSOR}
+	 *            , or {@link Double#POSITIVE_INFINITY} to ignore host load
+	 */
+	public void setMaxLoadPerProcessor(final double maxLoadPerProcessor) {
+		if (!(maxLoadPerProcessor > 0)) {
+			throw new IllegalArgumentException(
+					"maxLoadPerProcessor must be positive, was "
+							+ maxLoadPerProcessor);
+		}
+		this.lock.lock();
+		try {
+			this.maxLoadPerProcessor = maxLoadPerProcessor;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param backoffRatio
+	 *            what the limit is multiplied by when it's cut, default
+	 *            {@link #DEFAULT_BACKOFF_RATIO}
+	 */
+	public void setBackoffRatio(final double backoffRatio) {
+		if (!(backoffRatio > 0 && backoffRatio < 1)) {
+			throw new IllegalArgumentException(
+					"backoffRatio must be between 0 and 1, was " + backoffRatio);
+		}
+		this.lock.lock();
+		try {
+			this.backoffRatio = backoffRatio;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until a process may be started, in turn with other waiting
+	 * callers. Every successful call must be followed by a call to
+	 * {@link #release(long, boolean)} or {@link #releaseUnused()}.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting, in which case no process may
+	 *             be started
+	 */
+	public void acquire() throws InterruptedException {
+		this.lock.lockInterruptibly();
+		try {
+			this.queued++;
+			try {
+				while (this.inFlight >= (int) this.limit) {
+					this.available.await();
+				}
+			} finally {
+				this.queued--;
+			}
+			this.inFlight++;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Record a finished process, with no command to tell it apart from
+	 * others, and adjust the limit.
+	 *
+	 * @param latencyNanos
+	 *            how long the process took, from start to finish
+	 * @param processFailed
+	 *            true if the process timed out, or failed in some other way
+	 *            that shows the host is overloaded
+	 */
+	public void release(final long latencyNanos, final boolean processFailed) {
+		this.release("", latencyNanos, processFailed);
+	}
+
+	/**
+	 * Record a finished process and adjust the limit.
+	 *
+	 * @param commandName
+	 *            the command the process ran, run times are compared with
+	 *            others of the same command
+	 * @param latencyNanos
+	 *            how long the process took, from start to finish
+	 * @param processFailed
+	 *            true if the process timed out, or failed in some other way
+	 *            that shows the host is overloaded
+	 */
+	public void release(final String commandName, final long latencyNanos,
+			final boolean processFailed) {
+		if (commandName == null) {
+			throw new IllegalArgumentException("commandName can't be null.");
+		}
+		// Read before taking the lock, it may need to refresh from /proc
+		double load = (this.maxLoadPerProcessor == Double.POSITIVE_INFINITY) ? -1
+				: HostResources.current().getLoadPerProcessor();
+		this.lock.lock();
+		try {
+			if (this.inFlight == 0) {
+				throw new IllegalStateException(
+						"release() called without a matching acquire().");
+			}
+			boolean saturated = this.inFlight >= (int) this.limit / 2;
+			this.inFlight--;
+			this.completed++;
+			long now = System.nanoTime();
+			boolean cut = false;
+			// Hold the limit until the command has a baseline to compare with,
+			// and until the next window shows a cut has helped
+			boolean congested = true;
+			if (processFailed) {
+				this.failed++;
+				// Cut at most once per typical run, so one burst of timeouts
+				// isn't counted many times over
+				cut = now - this.lastDecrease >= this.shortLatency;
+			} else {
+				CommandLatency command = this.recordLatency(commandName,
+						Math.max(1L, latencyNanos));
+				if (command.windowRuns == 0) {
+					// A window has closed, cut once for it if it was slow
+					this.latencyRatio = command.windowAverage / command.baseline;
+					cut = this.latencyRatio > this.latencyTolerance;
+				}
+				congested = command.baseline < 0
+						|| this.latencyRatio > this.latencyTolerance;
+			}
+			if (load > this.maxLoadPerProcessor) {
+				congested = true;
+				// Once per sample, and not once the load is falling
+				if (now - this.lastLoadCheck >= LOAD_SAMPLE_PERIOD) {
+					cut |= load >= this.lastLoad;
+					this.lastLoad = load;
+					this.lastLoadCheck = now;
+				}
+			} else {
+				this.lastLoad = -1;
+			}
+			if (cut) {
+				this.limit = Math.max(this.minLimit, this.limit
+						* this.backoffRatio);
+				this.lastDecrease = now;
+				this.decreases++;
+			} else if (!congested && saturated) {
+				this.limit = Math.min(this.maxLimit, this.limit + 1.0
+						/ this.limit);
+			}
+			this.available.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Give back the permit of a process that never ran or whose run says
+	 * nothing about congestion, say its command couldn't be found, without
+	 * recording it or adjusting the limit.
+	 */
+	public void releaseUnused() {
+		this.lock.lock();
+		try {
+			if (this.inFlight == 0) {
+				throw new IllegalStateException(
+						"releaseUnused() called without a matching acquire().");
+			}
+			this.inFlight--;
+			this.available.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a run to its command's window, and move the baseline if the run
+	 * closed the window.
+	 */
+	private CommandLatency recordLatency(final String commandName,
+			final long latencyNanos) {
+		this.shortLatency = (this.shortLatency < 0) ? latencyNanos
+				: this.shortLatency + SHORT_WEIGHT
+						* (latencyNanos - this.shortLatency);
+		CommandLatency command = this.baselines.get(commandName);
+		if (command == null) {
+			command = new CommandLatency();
+			this.baselines.put(commandName, command);
+		}
+		command.add(latencyNanos);
+		return command;
+	}
+
+	/**
+	 * @return the number of processes currently allowed to run at once
+	 */
+	public int getLimit() {
+		this.lock.lock();
+		try {
+			return (int) this.limit;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the lowest the limit may go
+	 */
+	public int getMinLimit() {
+		return this.minLimit;
+	}
+
+	/**
+	 * @return the highest the limit may go
+	 */
+	public int getMaxLimit() {
+		return this.maxLimit;
+	}
+
+	/**
+	 * @return the number of processes running now
+	 */
+	public int getInFlight() {
+		this.lock.lock();
+		try {
+			return this.inFlight;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of callers waiting to start a process
+	 */
+	public int getQueueLength() {
+		this.lock.lock();
+		try {
+			return this.queued;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of processes that have finished, failed or not
+	 */
+	public long getCompletedCount() {
+		this.lock.lock();
+		try {
+			return this.completed;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of processes that failed or timed out
+	 */
+	public long getFailedCount() {
+		this.lock.lock();
+		try {
+			return this.failed;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of times the limit has been cut
+	 */
+	public long getDecreaseCount() {
+		this.lock.lock();
+		try {
+			return this.decreases;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param unit
+	 *            the unit wanted
+	 * @return the short moving average of run times, or -1 if none has
+	 *         finished
+	 */
+	public long getRecentLatency(final TimeUnit unit) {
+		this.lock.lock();
+		try {
+			return (this.shortLatency < 0) ? -1 : unit.convert(
+					(long) this.shortLatency, TimeUnit.NANOSECONDS);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the average run time of the last window of runs over its
+	 *         command's baseline, 1 when runs take their usual time
+	 */
+	public double getLatencyRatio() {
+		this.lock.lock();
+		try {
+			return this.latencyRatio;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		this.lock.lock();
+		try {
+			return "AdaptiveConcurrencyLimiter [limit:" + (int) this.limit
+					+ ", inFlight:" + this.inFlight + ", queued:"
+					+ this.queued + ", completed:" + this.completed
+					+ ", failed:" + this.failed + ", decreases:"
+					+ this.decreases + "]";
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * A command's baseline and its current window of runs.
+	 */
+	private static final class CommandLatency {
+		/** Lowest recent window average, or -1 before the first window */
+		double baseline = -1;
+		/** Average of the last full window */
+		double windowAverage = -1;
+		double windowTotal = 0;
+		/** Runs in the current window, 0 just after one has closed */
+		int windowRuns = 0;
+
+		CommandLatency() {
+		}
+
+		void add(final long latencyNanos) {
+			this.windowTotal += latencyNanos;
+			if (++this.windowRuns < WINDOW_RUNS) {
+				return;
+			}
+			this.windowAverage = this.windowTotal / this.windowRuns;
+			this.windowTotal = 0;
+			this.windowRuns = 0;
+			this.baseline = (this.baseline < 0) ? this.windowAverage : Math
+					.min(this.windowAverage, this.baseline + BASELINE_DRIFT
+							* (this.windowAverage - this.baseline));
+		}
+	}
+}
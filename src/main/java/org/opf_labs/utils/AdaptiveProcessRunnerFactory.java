@@ -0,0 +1,255 @@
+package org.opf_labs.utils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * {@link ProcessRunnerFactory} that puts an
+ * {@link AdaptiveConcurrencyLimiter} in front of the runners created by
+ * another factory. {@link ProcessRunner#execute()} waits for the limiter
+ * before running the process, and reports how long the run took and whether
+ * it failed or timed out once it's done, so the number of concurrent child
+ * processes follows what the host can take rather than a fixed parallelism.
+ * </p>
+ * <p>
+ * Put it in front of a factory whose runners are executed from more threads
+ * than the limiter will ever allow, for example from a large pool or a
+ * {@link ProcessRunnerService} sized to the limiter's maximum, and the
+ * limiter decides how many of those threads run a process at once. A non
+ * zero return code is the tool's answer, not a failure, and a run that
+ * throws, say because the command can't be found, says nothing about how
+ * busy the host is, so neither lowers the limit. Only timeouts do.
+ * </p>
+ */
+public final class AdaptiveProcessRunnerFactory implements ProcessRunnerFactory {
+	private final ProcessRunnerFactory delegate;
+	private final AdaptiveConcurrencyLimiter limiter;
+
+	/**
+	 * @param delegate
+	 *            creates the runners that are limited
+	 */
+	public AdaptiveProcessRunnerFactory(final ProcessRunnerFactory delegate) {
+		this(delegate, new AdaptiveConcurrencyLimiter());
+	}
+
+	/**
+	 * @param delegate
+	 *            creates the runners that are limited
+	 * @param limiter
+	 *            the limiter, which may be shared with other factories
+	 */
+	public AdaptiveProcessRunnerFactory(final ProcessRunnerFactory delegate,
+			final AdaptiveConcurrencyLimiter limiter) {
+		if (delegate == null || limiter == null) {
+			throw new IllegalArgumentException(
+					"delegate and limiter can't be null.");
+		}
+		this.delegate = delegate;
+		this.limiter = limiter;
+	}
+
+	/**
+	 * @return the limiter, for its current limit and queue statistics
+	 */
+	public AdaptiveConcurrencyLimiter getLimiter() {
+		return this.limiter;
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner()
+	 */
+	@Override
+	public ProcessRunner createProcessRunner() {
+		return new LimitedProcessRunner(this.delegate.createProcessRunner(),
+				this.limiter);
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.lang.String)
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final String command) {
+		return this.createProcessRunner(new String[] { command });
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.lang.String[])
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final String[] commands) {
+		return this.createProcessRunner(Arrays.asList(commands));
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.util.List)
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final List<String> commands) {
+		ProcessRunner processRunner = this.createProcessRunner();
+		processRunner.setCommand(commands);
+		return processRunner;
+	}
+
+	/**
+	 * ProcessRunner that runs its delegate within the limiter's limit.
+	 */
+	private static final class LimitedProcessRunner extends
+			AbstractProcessRunner {
+		private final ProcessRunner delegate;
+		private final AdaptiveConcurrencyLimiter limiter;
+		private String commandName = "";
+
+		LimitedProcessRunner(final ProcessRunner delegate,
+				final AdaptiveConcurrencyLimiter limiter) {
+			this.delegate = delegate;
+			this.limiter = limiter;
+		}
+
+		@Override
+		public void setEnviroment(final Map<String, String> enviroment) {
+			this.delegate.setEnviroment(enviroment);
+		}
+
+		@Override
+		public void setInputStream(final InputStream processInput) {
+			this.delegate.setInputStream(processInput);
+		}
+
+		@Override
+		public void setInputFile(final File inputFile) {
+			this.delegate.setInputFile(inputFile);
+		}
+
+		@Override
+		public void setOutputFile(final File outputFile, final boolean append) {
+			this.delegate.setOutputFile(outputFile, append);
+		}
+
+		@Override
+		public void setErrorFile(final File errorFile, final boolean append) {
+			this.delegate.setErrorFile(errorFile, append);
+		}
+
+		@Override
+		public void setStartingDir(final File startingDir) {
+			this.delegate.setStartingDir(startingDir);
+		}
+
+		@Override
+		public void setCommand(final List<String> commands) {
+			this.commandName = ProcessMetrics.commandName(commands);
+			this.delegate.setCommand(commands);
+		}
+
+		@Override
+		public void setTimeout(final long timeout) {
+			this.delegate.setTimeout(timeout);
+		}
+
+		@Override
+		public void setCollection(final boolean collect) {
+			this.delegate.setCollection(collect);
+		}
+
+		@Override
+		public void setOutputHandler(final ProcessOutputHandler outputHandler) {
+			this.delegate.setOutputHandler(outputHandler);
+		}
+
+		@Override
+		public void setErrorHandler(final ProcessOutputHandler errorHandler) {
+			this.delegate.setErrorHandler(errorHandler);
+		}
+
+		@Override
+		public void setListener(final ProcessRunnerListener listener) {
+			this.delegate.setListener(listener);
+		}
+
+		@Override
+		public ProcessMetrics getMetrics() {
+			return this.delegate.getMetrics();
+		}
+
+		@Override
+		public InputStream getProcessOutput() {
+			return this.delegate.getProcessOutput();
+		}
+
+		@Override
+		public InputStream getProcessError() {
+			return this.delegate.getProcessError();
+		}
+
+		@Override
+		public int getReturnCode() {
+			return this.delegate.getReturnCode();
+		}
+
+		@Override
+		public boolean isTimedOut() {
+			return this.delegate.isTimedOut();
+		}
+
+		@Override
+		public String getProcessOutputAsString() {
+			return this.delegate.getProcessOutputAsString();
+		}
+
+		@Override
+		public String getProcessErrorAsString() {
+			return this.delegate.getProcessErrorAsString();
+		}
+
+		@Override
+		public String getProcessOutputAsString(final Charset charset) {
+			return this.delegate.getProcessOutputAsString(charset);
+		}
+
+		@Override
+		public String getProcessErrorAsString(final Charset charset) {
+			return this.delegate.getProcessErrorAsString(charset);
+		}
+
+		@Override
+		public byte[] getProcessOutputAsBytes() {
+			return this.delegate.getProcessOutputAsBytes();
+		}
+
+		@Override
+		public byte[] getProcessErrorAsBytes() {
+			return this.delegate.getProcessErrorAsBytes();
+		}
+
+		@Override
+		public void execute() throws ProcessRunnerException {
+			try {
+				this.limiter.acquire();
+			} catch (InterruptedException excep) {
+				Thread.currentThread().interrupt();
+				throw new ProcessRunnerException(
+						"Interrupted waiting to run process.", excep);
+			}
+			long start = System.nanoTime();
+			boolean ran = false;
+			try {
+				this.delegate.execute();
+				ran = true;
+			} finally {
+				if (ran) {
+					this.limiter.release(this.commandName, System.nanoTime()
+							- start, this.delegate.isTimedOut());
+				} else {
+					// A missing binary or a failing handler isn't congestion
+					this.limiter.releaseUnused();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,431 @@
+package org.opf_labs.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * <p>
+ * Runs a command over many arguments the way <code>xargs</code> does, packing
+ * as many arguments into each invocation as will fit, rather than starting
+ * a process per argument. Tools such as <code>file</code>,
+ * <code>sha256sum</code> and <code>identify</code> accept many paths per call,
+ * so this cuts the number of processes started by orders of magnitude.
+ * </p>
+ * <p>
+ * A batch is closed when adding another argument would exceed the argument
+ * count, the byte budget, or the system's <code>ARG_MAX</code> less the
+ * environment. Each batch is submitted to a {@link ProcessRunnerService},
+ * which bounds how many run at once, as soon as it's full, so the first
+ * batches run while later arguments are still being read. Each batch's
+ * result is split back into per argument results by an {@link OutputParser},
+ * and reported as a {@link BatchResult}. A batch that can't be run or parsed
+ * fails on its own, the other batches' results are still reported.
+ * </p>
+ *
+ * @param <T>
+ *            the type of the per argument results
+ */
+public final class BatchProcessRunner<T> {
+	/** Default maximum number of arguments per invocation */
+	public static final int DEFAULT_MAX_ARGUMENTS = 5000;
+	/** Bytes kept free below ARG_MAX, as GNU xargs does */
+	private static final int ARG_MAX_HEADROOM = 2048;
+	/** Size of the argv pointer that goes with each argument */
+	private static final int POINTER_BYTES = 8;
+
+	private final ProcessCommand command;
+	private final ProcessRunnerService service;
+	private final OutputParser<T> parser;
+	private int maxArguments = DEFAULT_MAX_ARGUMENTS;
+	private long maxBytes = Long.MAX_VALUE;
+
+	/**
+	 * Splits the result of one invocation into results per argument.
+	 *
+	 * @param <T>
+	 *            the type of the per argument results
+	 */
+	public interface OutputParser<T> {
+		/**
+		 * @param arguments
+		 *            the arguments the invocation was given, in order, an
+		 *            argument given twice appears twice
+		 * @param result
+		 *            the result of the invocation
+		 * @return the result for each argument, in the same order as the
+		 *         arguments, with null for arguments that have no result
+		 * @throws ProcessRunnerException
+		 *             when the result can't be split, which fails the batch
+		 */
+		List<T> parse(List<String> arguments, ProcessResult result)
+				throws ProcessRunnerException;
+	}
+
+	/**
+	 * @param command
+	 *            the command the arguments are appended to, collection
+	 *            limits must be large enough for a whole batch's output
+	 * @param service
+	 *            runs the batches
+	 * @param parser
+	 *            splits each batch's result into per argument results
+	 */
+	public BatchProcessRunner(final ProcessCommand command,
+			final ProcessRunnerService service, final OutputParser<T> parser) {
+		if (command == null || service == null || parser == null) {
+			throw new IllegalArgumentException(
+					"command, service and parser can't be null.");
+		}
+		this.command = command;
+		this.service = service;
+		this.parser = parser;
+	}
+
+	/**
+	 * @param maxArguments
+	 *            the most arguments per invocation, default
+	 *            {@link #DEFAULT_MAX_ARGUMENTS}
+	 */
+	public void setMaxArguments(final int maxArguments) {
+		if (maxArguments < 1) {
+			throw new IllegalArgumentException(
+					"maxArguments must be at least 1, was " + maxArguments);
+		}
+		this.maxArguments = maxArguments;
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the most bytes of command line per invocation, default no
+	 *            limit beyond ARG_MAX
+	 */
+	public void setMaxBytes(final long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException(
+					"maxBytes must be at least 1, was " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Run the command over all of the arguments, in as few invocations as
+	 * the limits allow. An argument too long to fit with the command on its
+	 * own still gets a batch, which fails when run.
+	 *
+	 * @param arguments
+	 *            the arguments, read once, each batch is submitted as soon
+	 *            as it's full
+	 * @return a future holding the result of each batch, in argument order,
+	 *         which doesn't fail when a batch does
+	 */
+	public ListenableFuture<List<BatchResult<T>>> execute(
+			final Iterable<String> arguments) {
+		long budget = this.budget();
+		List<ListenableFuture<BatchResult<T>>> batches = new ArrayList<ListenableFuture<BatchResult<T>>>();
+		List<String> batch = new ArrayList<String>();
+		long batchBytes = 0L;
+		for (String argument : arguments) {
+			long bytes = argumentBytes(argument);
+			boolean full = batch.size() >= this.maxArguments
+					|| batchBytes + bytes > budget;
+			if (full && !batch.isEmpty()) {
+				batches.add(this.submit(batch));
+				batch = new ArrayList<String>();
+				batchBytes = 0L;
+			}
+			batch.add(argument);
+			batchBytes += bytes;
+		}
+		if (!batch.isEmpty()) {
+			batches.add(this.submit(batch));
+		}
+		return Futures.allAsList(batches);
+	}
+
+	/**
+	 * @return the command line bytes left for arguments
+	 */
+	private long budget() {
+		long commandBytes = 0L;
+		for (String part : this.command.getCommand()) {
+			commandBytes += argumentBytes(part);
+		}
+		return Math.min(this.maxBytes, ArgMax.VALUE - ARG_MAX_HEADROOM
+				- environmentBytes(this.command.getEnviroment()))
+				- commandBytes;
+	}
+
+	private ListenableFuture<BatchResult<T>> submit(final List<String> batch) {
+		final List<String> arguments = Collections.unmodifiableList(batch);
+		ListenableFuture<BatchResult<T>> parsed = Futures.transform(
+				this.service.submit(this.command.withArguments(batch)),
+				new AsyncFunction<ProcessResult, BatchResult<T>>() {
+					@SuppressWarnings("synthetic-access")
+					@Override
+					public ListenableFuture<BatchResult<T>> apply(
+							final ProcessResult result)
+							throws ProcessRunnerException {
+						List<T> results = BatchProcessRunner.this.parser.parse(
+								arguments, result);
+						if (results == null || results.size() != arguments.size()) {
+							throw new ProcessRunnerException(
+									"Parser didn't return a result for each of "
+											+ arguments.size() + " arguments.");
+						}
+						return Futures.immediateFuture(new BatchResult<T>(
+								arguments, results, null));
+					}
+				});
+		// Report the failure with the batch, rather than failing every batch
+		return Futures.withFallback(parsed, new FutureFallback<BatchResult<T>>() {
+			@Override
+			public ListenableFuture<BatchResult<T>> create(final Throwable cause) {
+				return Futures.immediateFuture(new BatchResult<T>(arguments,
+						null, cause));
+			}
+		});
+	}
+
+	private static long argumentBytes(final String argument) {
+		// The string, its terminating NUL and its argv pointer
+		return argument.getBytes(Charset.defaultCharset()).length + 1
+				+ POINTER_BYTES;
+	}
+
+	private static long environmentBytes(final Map<String, String> added) {
+		Map<String, String> environment = new LinkedHashMap<String, String>(
+				System.getenv());
+		environment.putAll(added);
+		long bytes = 0L;
+		for (Map.Entry<String, String> entry : environment.entrySet()) {
+			bytes += argumentBytes(entry.getKey() + "=" + entry.getValue());
+		}
+		return bytes;
+	}
+
+	/**
+	 * Parser for tools that print one line per argument, in argument order,
+	 * such as <code>file -b</code>.
+	 *
+	 * @param charset
+	 *            the charset of the output
+	 * @return the parser, whose results are the lines without line breaks
+	 */
+	public static OutputParser<String> linesInOrder(final Charset charset) {
+		return new OutputParser<String>() {
+			@Override
+			public List<String> parse(final List<String> arguments,
+					final ProcessResult result) throws ProcessRunnerException {
+				List<String> lines = lines(result, charset);
+				if (lines.size() != arguments.size()) {
+					throw new ProcessRunnerException("Expected "
+							+ arguments.size() + " lines of output but got "
+							+ lines.size() + ", return code "
+							+ result.getReturnCode());
+				}
+				return lines;
+			}
+		};
+	}
+
+	/**
+	 * Parser for tools that print one line per argument that names the
+	 * argument, such as <code>file</code> (<code>path: type</code>) or
+	 * <code>sha256sum</code> (<code>digest  path</code>). Lines that don't
+	 * name an argument of the batch are ignored, so arguments the tool
+	 * failed on have no result. An argument given more than once takes the
+	 * lines naming it in order. A line is matched against the batch's
+	 * arguments, so either side may contain the separator, and the longest
+	 * matching argument wins.
+	 *
+	 * @param separator
+	 *            the separator between the argument and the result
+	 * @param argumentFirst
+	 *            true if the argument comes before the separator
+	 * @param charset
+	 *            the charset of the output
+	 * @return the parser, whose results are the parts of the lines that
+	 *         aren't the argument
+	 */
+	public static OutputParser<String> delimitedLines(final String separator,
+			final boolean argumentFirst, final Charset charset) {
+		if (separator == null || separator.isEmpty()) {
+			throw new IllegalArgumentException("separator can't be empty.");
+		}
+		return new OutputParser<String>() {
+			@Override
+			public List<String> parse(final List<String> arguments,
+					final ProcessResult result) throws ProcessRunnerException {
+				// The positions of each argument not yet given a result
+				Map<String, LinkedList<Integer>> wanted = new HashMap<String, LinkedList<Integer>>();
+				for (int i = 0; i < arguments.size(); i++) {
+					LinkedList<Integer> positions = wanted.get(arguments.get(i));
+					if (positions == null) {
+						positions = new LinkedList<Integer>();
+						wanted.put(arguments.get(i), positions);
+					}
+					positions.add(Integer.valueOf(i));
+				}
+				String[] parsed = new String[arguments.size()];
+				for (String line : lines(result, charset)) {
+					// Both arguments and results may contain the separator,
+					// so try each split, longest argument first, against the
+					// arguments still wanting a result
+					int split = argumentFirst ? line.lastIndexOf(separator)
+							: line.indexOf(separator);
+					while (split >= 0) {
+						String before = line.substring(0, split);
+						String after = line.substring(split
+								+ separator.length());
+						LinkedList<Integer> positions = wanted
+								.get(argumentFirst ? before : after);
+						if (positions != null && !positions.isEmpty()) {
+							parsed[positions.removeFirst().intValue()] = argumentFirst ? after
+									: before;
+							break;
+						}
+						split = argumentFirst ? line.lastIndexOf(separator,
+								split - 1) : line.indexOf(separator, split + 1);
+					}
+				}
+				return Arrays.asList(parsed);
+			}
+		};
+	}
+
+	private static List<String> lines(final ProcessResult result,
+			final Charset charset) throws ProcessRunnerException {
+		if (result.getOutputTruncatedByteCount() > 0) {
+			throw new ProcessRunnerException(
+					"Batch output was truncated, raise the output collection byte size.");
+		}
+		List<String> lines = new ArrayList<String>();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					result.getOutputAsStream(), charset));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} catch (IOException excep) {
+			throw new ProcessRunnerException("Couldn't read batch output: "
+					+ excep.getMessage(), excep);
+		}
+		return lines;
+	}
+
+	/**
+	 * The outcome of one invocation: its arguments, and either a result per
+	 * argument or why the batch failed.
+	 *
+	 * @param <T>
+	 *            the type of the per argument results
+	 */
+	public static final class BatchResult<T> {
+		private final List<String> arguments;
+		private final List<T> results;
+		private final Throwable failure;
+
+		BatchResult(final List<String> arguments, final List<T> results,
+				final Throwable failure) {
+			this.arguments = arguments;
+			this.results = (results == null) ? null : Collections
+					.unmodifiableList(new ArrayList<T>(results));
+			this.failure = failure;
+		}
+
+		/**
+		 * @return the arguments of the batch, in the order given, including
+		 *         any duplicates
+		 */
+		public List<String> getArguments() {
+			return this.arguments;
+		}
+
+		/**
+		 * @return the result for each argument, in the same order as
+		 *         {@link #getArguments()}, null for arguments without a
+		 *         result, or null if the batch failed
+		 */
+		public List<T> getResults() {
+			return this.results;
+		}
+
+		/**
+		 * @return why the batch couldn't be run or parsed, or null if it
+		 *         succeeded
+		 */
+		public Throwable getFailure() {
+			return this.failure;
+		}
+
+		/**
+		 * @return true if the batch couldn't be run or parsed
+		 */
+		public boolean isFailed() {
+			return this.failure != null;
+		}
+	}
+
+	/**
+	 * The system's limit on argument and environment bytes, looked up once.
+	 */
+	private static final class ArgMax {
+		/** POSIX guarantees at least this, used when getconf can't say */
+		private static final long POSIX_MINIMUM = 4096;
+		/** Windows command lines are limited to 32767 characters */
+		private static final long WINDOWS = 32767;
+		static final long VALUE = lookup();
+
+		private ArgMax() {
+			throw new AssertionError("In ArgMax no-arg constructor.");
+		}
+
+		private static long lookup() {
+			if (System.getProperty("os.name", "").startsWith("Windows")) {
+				return WINDOWS;
+			}
+			try {
+				Process getconf = new ProcessBuilder("getconf", "ARG_MAX")
+						.redirectErrorStream(true).start();
+				getconf.getOutputStream().close();
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(getconf.getInputStream(),
+								Charsets.US_ASCII));
+				try {
+					String value = reader.readLine();
+					if (getconf.waitFor() == 0 && value != null) {
+						return Long.parseLong(value.trim());
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException excep) {
+				// No getconf, so assume the minimum
+			} catch (NumberFormatException excep) {
+				// Unlimited or unknown, so assume the minimum
+			} catch (InterruptedException excep) {
+				Thread.currentThread().interrupt();
+			}
+			return POSIX_MINIMUM;
+		}
+	}
+}
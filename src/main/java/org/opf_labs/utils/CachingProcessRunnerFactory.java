@@ -0,0 +1,443 @@
+package org.opf_labs.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * <p>
+ * {@link ProcessRunnerFactory} that puts a {@link ProcessResultCache} in
+ * front of the runners created by another factory, so that deterministic
+ * tools run again on the same bytes don't fork at all.
+ * </p>
+ * <p>
+ * A result is keyed on a SHA-256 digest of:
+ * <ul>
+ * <li>the command and its arguments;
+ * <li>the environment set on the runner, the inherited environment isn't
+ * included;
+ * <li>the starting directory;
+ * <li>the content of every argument that names an existing file, resolved
+ * against the starting directory when relative;
+ * <li>the content of the input stream or input file.
+ * </ul>
+ * </p>
+ * <p>
+ * An input stream is digested as it's copied, small inputs to memory and
+ * larger ones to a temporary file that's replayed to the process and deleted
+ * afterwards, so a large input is never held in the heap.
+ * </p>
+ * <p>
+ * Only runs whose output and error are both collected in memory are cached,
+ * runs that redirect to files or stream to handlers always execute, as do
+ * runs that time out. By default only runs that return zero are cached, as a
+ * failure may be down to the host, say a full disk, rather than the inputs;
+ * cache failures too if the tool's non zero return codes are answers. A
+ * cache hit restores the return code, output and error, reports the run as
+ * not timed out, and has no metrics.
+ * </p>
+ */
+public final class CachingProcessRunnerFactory implements ProcessRunnerFactory {
+	private static final String KEY_VERSION = "opf-process-cache-1";
+	/** Inputs bigger than this are spooled to a temporary file */
+	private static final int MEMORY_INPUT_BYTES = 64 * 1024;
+
+	private final ProcessRunnerFactory delegate;
+	private final ProcessResultCache cache;
+	private final boolean cacheFailures;
+
+	/**
+	 * Create a factory that only caches runs returning zero.
+	 *
+	 * @param delegate
+	 *            creates the runners used on a cache miss
+	 * @param cache
+	 *            holds the results
+	 */
+	public CachingProcessRunnerFactory(final ProcessRunnerFactory delegate,
+			final ProcessResultCache cache) {
+		this(delegate, cache, false);
+	}
+
+	/**
+	 * @param delegate
+	 *            creates the runners used on a cache miss
+	 * @param cache
+	 *            holds the results
+	 * @param cacheFailures
+	 *            true to cache runs with a non zero return code too
+	 */
+	public CachingProcessRunnerFactory(final ProcessRunnerFactory delegate,
+			final ProcessResultCache cache, final boolean cacheFailures) {
+		if (delegate == null || cache == null) {
+			throw new IllegalArgumentException(
+					"delegate and cache can't be null.");
+		}
+		this.delegate = delegate;
+		this.cache = cache;
+		this.cacheFailures = cacheFailures;
+	}
+
+	/**
+	 * @return the cache holding the results
+	 */
+	public ProcessResultCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner()
+	 */
+	@Override
+	public ProcessRunner createProcessRunner() {
+		return new CachingProcessRunner(this.delegate.createProcessRunner(),
+				this.cache, this.cacheFailures);
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.lang.String)
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final String command) {
+		return this.createProcessRunner(new String[] { command });
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.lang.String[])
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final String[] commands) {
+		return this.createProcessRunner(Arrays.asList(commands));
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.util.List)
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final List<String> commands) {
+		ProcessRunner processRunner = this.createProcessRunner();
+		processRunner.setCommand(commands);
+		return processRunner;
+	}
+
+	/**
+	 * ProcessRunner that records what determines its result, and answers
+	 * from the cache when it can.
+	 */
+	private static final class CachingProcessRunner extends
+			AbstractProcessRunner {
+		private final ProcessRunner delegate;
+		private final ProcessResultCache cache;
+		private final boolean cacheFailures;
+		private List<String> commands = new ArrayList<String>();
+		private final Map<String, String> enviroment = new TreeMap<String, String>();
+		private File startingDir = null;
+		private InputStream processInput = null;
+		private File inputFile = null;
+		private boolean collect = true;
+		private boolean redirected = false;
+		private boolean handled = false;
+		private ProcessResultCache.Result cached = null;
+
+		CachingProcessRunner(final ProcessRunner delegate,
+				final ProcessResultCache cache, final boolean cacheFailures) {
+			this.delegate = delegate;
+			this.cache = cache;
+			this.cacheFailures = cacheFailures;
+		}
+
+		@Override
+		public void setEnviroment(final Map<String, String> enviroment) {
+			if (enviroment != null) {
+				this.enviroment.putAll(enviroment);
+			}
+			this.delegate.setEnviroment(enviroment);
+		}
+
+		@Override
+		public void setInputStream(final InputStream processInput) {
+			this.processInput = processInput;
+			if (processInput != null) {
+				this.inputFile = null;
+			}
+			this.delegate.setInputStream(processInput);
+		}
+
+		@Override
+		public void setInputFile(final File inputFile) {
+			this.inputFile = inputFile;
+			if (inputFile != null) {
+				this.processInput = null;
+			}
+			this.delegate.setInputFile(inputFile);
+		}
+
+		@Override
+		public void setOutputFile(final File outputFile, final boolean append) {
+			this.redirected = this.redirected || outputFile != null;
+			this.delegate.setOutputFile(outputFile, append);
+		}
+
+		@Override
+		public void setErrorFile(final File errorFile, final boolean append) {
+			this.redirected = this.redirected || errorFile != null;
+			this.delegate.setErrorFile(errorFile, append);
+		}
+
+		@Override
+		public void setStartingDir(final File startingDir) {
+			this.startingDir = startingDir;
+			this.delegate.setStartingDir(startingDir);
+		}
+
+		@Override
+		public void setCommand(final List<String> commands) {
+			this.commands = new ArrayList<String>(commands);
+			this.delegate.setCommand(commands);
+		}
+
+		@Override
+		public void setTimeout(final long timeout) {
+			this.delegate.setTimeout(timeout);
+		}
+
+		@Override
+		public void setCollection(final boolean collect) {
+			this.collect = collect;
+			this.delegate.setCollection(collect);
+		}
+
+		@Override
+		public void setOutputHandler(final ProcessOutputHandler outputHandler) {
+			this.handled = this.handled || outputHandler != null;
+			this.delegate.setOutputHandler(outputHandler);
+		}
+
+		@Override
+		public void setErrorHandler(final ProcessOutputHandler errorHandler) {
+			this.handled = this.handled || errorHandler != null;
+			this.delegate.setErrorHandler(errorHandler);
+		}
+
+		@Override
+		public void setListener(final ProcessRunnerListener listener) {
+			this.delegate.setListener(listener);
+		}
+
+		@Override
+		public ProcessMetrics getMetrics() {
+			// No process runs on a cache hit
+			return (this.cached == null) ? this.delegate.getMetrics() : null;
+		}
+
+		@Override
+		public InputStream getProcessOutput() {
+			return (this.cached == null) ? this.delegate.getProcessOutput()
+					: new ByteArrayInputStream(this.cached.getOutput());
+		}
+
+		@Override
+		public InputStream getProcessError() {
+			return (this.cached == null) ? this.delegate.getProcessError()
+					: new ByteArrayInputStream(this.cached.getError());
+		}
+
+		@Override
+		public int getReturnCode() {
+			return (this.cached == null) ? this.delegate.getReturnCode()
+					: this.cached.getReturnCode();
+		}
+
+		@Override
+		public boolean isTimedOut() {
+			return (this.cached == null) ? this.delegate.isTimedOut() : false;
+		}
+
+		@Override
+		public String getProcessOutputAsString() {
+			return this.getProcessOutputAsString(Charset.defaultCharset());
+		}
+
+		@Override
+		public String getProcessErrorAsString() {
+			return this.getProcessErrorAsString(Charset.defaultCharset());
+		}
+
+		@Override
+		public String getProcessOutputAsString(final Charset charset) {
+			return (this.cached == null) ? this.delegate
+					.getProcessOutputAsString(charset) : new String(
+					this.cached.getOutput(), charset);
+		}
+
+		@Override
+		public String getProcessErrorAsString(final Charset charset) {
+			return (this.cached == null) ? this.delegate
+					.getProcessErrorAsString(charset) : new String(
+					this.cached.getError(), charset);
+		}
+
+		@Override
+		public byte[] getProcessOutputAsBytes() {
+			return (this.cached == null) ? this.delegate
+					.getProcessOutputAsBytes() : this.cached.getOutput();
+		}
+
+		@Override
+		public byte[] getProcessErrorAsBytes() {
+			return (this.cached == null) ? this.delegate
+					.getProcessErrorAsBytes() : this.cached.getError();
+		}
+
+		@Override
+		public void execute() throws ProcessRunnerException {
+			this.cached = null;
+			if (!this.collect || this.redirected || this.handled) {
+				this.delegate.execute();
+				return;
+			}
+			File spool = null;
+			try {
+				String key;
+				try {
+					byte[] inputDigest = null;
+					if (this.processInput != null) {
+						// Read the input once, to digest it and to replay it
+						Hasher hasher = Hashing.sha256().newHasher();
+						spool = this.spoolInput(hasher);
+						inputDigest = hasher.hash().asBytes();
+					}
+					key = this.key(inputDigest);
+				} catch (IOException excep) {
+					throw new ProcessRunnerException(
+							"Couldn't digest process inputs: "
+									+ excep.getMessage(), excep);
+				}
+				ProcessResultCache.Result result = this.cache.get(key);
+				if (result != null) {
+					this.cached = result;
+					return;
+				}
+				this.delegate.execute();
+				if (this.delegate.isTimedOut()
+						|| (this.delegate.getReturnCode() != 0 && !this.cacheFailures)) {
+					return;
+				}
+				byte[] output = this.delegate.getProcessOutputAsBytes();
+				byte[] error = this.delegate.getProcessErrorAsBytes();
+				if (output != null && error != null) {
+					this.cache.put(key, new ProcessResultCache.Result(
+							this.delegate.getReturnCode(), output, error));
+				}
+			} finally {
+				if (spool != null && !spool.delete()) {
+					spool.deleteOnExit();
+				}
+			}
+		}
+
+		/**
+		 * Copy the input stream into the hasher and a replayable copy for the
+		 * delegate, returning the temporary file holding it if it was too big
+		 * for memory.
+		 */
+		private File spoolInput(final Hasher hasher) throws IOException {
+			ByteArrayOutputStream head = new ByteArrayOutputStream();
+			OutputStream out = head;
+			File spool = null;
+			boolean copied = false;
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = this.processInput.read(buffer)) != -1) {
+					hasher.putBytes(buffer, 0, read);
+					if (spool == null
+							&& head.size() + read > MEMORY_INPUT_BYTES) {
+						spool = File.createTempFile("opf-process-input", ".tmp");
+						out = new BufferedOutputStream(new FileOutputStream(
+								spool));
+						head.writeTo(out);
+						head = null;
+					}
+					out.write(buffer, 0, read);
+				}
+				out.close();
+				copied = true;
+			} finally {
+				if (!copied) {
+					IOUtils.closeQuietly(out);
+					if (spool != null) {
+						spool.delete();
+					}
+				}
+			}
+			this.processInput = null;
+			if (spool == null) {
+				this.delegate.setInputStream(new ByteArrayInputStream(head
+						.toByteArray()));
+			} else {
+				this.delegate.setInputFile(spool);
+			}
+			return spool;
+		}
+
+		private String key(final byte[] inputDigest) throws IOException {
+			Hasher hasher = Hashing.sha256().newHasher();
+			putString(hasher, KEY_VERSION);
+			hasher.putInt(this.commands.size());
+			for (String command : this.commands) {
+				putString(hasher, command);
+			}
+			hasher.putInt(this.enviroment.size());
+			for (Map.Entry<String, String> entry : this.enviroment.entrySet()) {
+				putString(hasher, entry.getKey());
+				putString(hasher, entry.getValue());
+			}
+			putString(hasher, (this.startingDir == null) ? "" : this.startingDir
+					.getAbsolutePath());
+			for (int i = 0; i < this.commands.size(); i++) {
+				File file = new File(this.commands.get(i));
+				if (!file.isAbsolute() && this.startingDir != null) {
+					file = new File(this.startingDir, this.commands.get(i));
+				}
+				if (file.isFile()) {
+					hasher.putInt(i);
+					hasher.putBytes(Files.hash(file, Hashing.sha256()).asBytes());
+				}
+			}
+			if (inputDigest != null) {
+				hasher.putInt(-1);
+				hasher.putBytes(inputDigest);
+			} else if (this.inputFile != null) {
+				hasher.putInt(-2);
+				hasher.putBytes(Files.hash(this.inputFile, Hashing.sha256())
+						.asBytes());
+			}
+			return hasher.hash().toString();
+		}
+
+		private static void putString(final Hasher hasher, final String value) {
+			byte[] bytes = value.getBytes(Charsets.UTF_8);
+			hasher.putInt(bytes.length);
+			hasher.putBytes(bytes);
+		}
+	}
+}
@@ -0,0 +1,560 @@
+package org.opf_labs.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+
+/**
+ * <p>
+ * A long lived child process that is sent many requests over its standard
+ * input, for tools such as <code>file -f -</code> or
+ * <code>exiftool -stay_open True -@ -</code> that can handle thousands of
+ * files without paying a fork and start up for each one.
+ * </p>
+ * <p>
+ * Each request is written to the process followed by the request delimiter,
+ * by default a new line. The response is read from the process output a line
+ * at a time: if a response sentinel is set every line up to the sentinel line
+ * is part of the response, otherwise each response is a fixed number of
+ * lines, one by default. The process error output is drained and discarded.
+ * </p>
+ * <p>
+ * The process is started on the first request. If it exits, or a request
+ * times out, the request fails with a {@link ProcessRunnerException} and the
+ * process is restarted on the next request. A timed out request's exception
+ * has a {@link TimeoutException} as its cause.
+ * </p>
+ * <p>
+ * Lines left over from an earlier response, say a tool wrote more than
+ * {@link #setLinesPerResponse(int)} lines, are dropped before each request is
+ * sent. Lines that arrive after the next request is sent can't be told apart
+ * from its response, so set a sentinel for tools whose output length varies.
+ * </p>
+ * <p>
+ * Use the setters to configure the co-process before the first request.
+ * Requests are serialised, a co-process only ever handles one at a time.
+ * {@link #restart()} and {@link #close()} don't wait for a request in
+ * progress, they stop the process and the request fails, so a hung
+ * co-process can always be killed.
+ * </p>
+ */
+public final class CoProcess implements Closeable {
+	/** Marks the end of the process output in a response queue */
+	private static final String END_OF_OUTPUT = new String("END_OF_OUTPUT");
+	/** Most output lines queued before the process output is left unread */
+	private static final int MAX_QUEUED_LINES = 10000;
+	/** Milliseconds a pump waits for room in the queue before checking again */
+	private static final long QUEUE_WAIT = 100L;
+
+	private final List<String> command;
+	private final Executor pumpExecutor;
+	private final Map<String, String> enviroment = new HashMap<String, String>();
+	private File startingDir = null;
+	private Charset charset = Charset.defaultCharset();
+	private String requestDelimiter = "\n";
+	private String responseSentinel = null;
+	private int linesPerResponse = 1;
+	private long timeout = Long.MAX_VALUE;
+
+	private final AtomicReference<Instance> instance = new AtomicReference<Instance>();
+	private volatile boolean closed = false;
+	private long requestCount = 0L;
+	private long instanceRequestCount = 0L;
+	private int startCount = 0;
+	private volatile boolean busy = false;
+
+	/**
+	 * @param command
+	 *            the command and arguments that start the co-process
+	 */
+	public CoProcess(final List<String> command) {
+		this(command, ProcessRunnerImpl.defaultPumpExecutor());
+	}
+
+	/**
+	 * @param command
+	 *            the command and arguments that start the co-process
+	 * @param pumpExecutor
+	 *            the executor used to pump the process streams
+	 */
+	CoProcess(final List<String> command, final Executor pumpExecutor) {
+		if (command == null || command.isEmpty()) {
+			throw new IllegalArgumentException(
+					"command can't be null or empty.");
+		}
+		this.command = new ArrayList<String>(command);
+		this.pumpExecutor = pumpExecutor;
+	}
+
+	/**
+	 * @see ProcessRunner#setEnviroment(java.util.Map)
+	 * @param enviroment
+	 *            The Map containing the mapping in the enviroment.
+	 */
+	public synchronized void setEnviroment(final Map<String, String> enviroment) {
+		if (enviroment != null) {
+			this.enviroment.putAll(enviroment);
+		}
+	}
+
+	/**
+	 * @see ProcessRunner#setStartingDir(java.io.File)
+	 * @param startingDir
+	 *            the starting dir.
+	 */
+	public synchronized void setStartingDir(final File startingDir) {
+		this.startingDir = startingDir;
+	}
+
+	/**
+	 * @param charset
+	 *            the charset requests and responses are encoded in, default
+	 *            the platform charset. Must encode line feed as a single byte.
+	 */
+	public synchronized void setCharset(final Charset charset) {
+		if (charset == null) {
+			throw new IllegalArgumentException("charset can't be null.");
+		}
+		this.charset = charset;
+	}
+
+	/**
+	 * @param requestDelimiter
+	 *            written after each request, default a new line
+	 */
+	public synchronized void setRequestDelimiter(final String requestDelimiter) {
+		if (requestDelimiter == null) {
+			throw new IllegalArgumentException(
+					"requestDelimiter can't be null.");
+		}
+		this.requestDelimiter = requestDelimiter;
+	}
+
+	/**
+	 * @param responseSentinel
+	 *            the output line that marks the end of each response, it
+	 *            isn't included in the response. Null to use a fixed number
+	 *            of lines per response instead.
+	 */
+	public synchronized void setResponseSentinel(final String responseSentinel) {
+		this.responseSentinel = responseSentinel;
+	}
+
+	/**
+	 * @param linesPerResponse
+	 *            the number of output lines in each response when there's no
+	 *            sentinel, default 1
+	 */
+	public synchronized void setLinesPerResponse(final int linesPerResponse) {
+		if (linesPerResponse < 1) {
+			throw new IllegalArgumentException(
+					"linesPerResponse must be at least 1, was "
+							+ linesPerResponse);
+		}
+		this.linesPerResponse = linesPerResponse;
+	}
+
+	/**
+	 * @param timeout
+	 *            how long to wait for each response in millisecs, default
+	 *            Long.MAX_VALUE. The process is killed if it's exceeded.
+	 */
+	public synchronized void setTimeout(final long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Start the process now rather than on the first request, if it isn't
+	 * already running.
+	 *
+	 * @throws ProcessRunnerException
+	 *             when the process can't be started
+	 */
+	public synchronized void start() throws ProcessRunnerException {
+		if (this.closed) {
+			throw new IllegalStateException("CoProcess has been closed.");
+		}
+		this.running();
+	}
+
+	/**
+	 * Send a request to the co-process and wait for its response, starting
+	 * the process first if it isn't running.
+	 *
+	 * @param request
+	 *            the request, the request delimiter is added
+	 * @return the lines of the response, without the sentinel
+	 * @throws ProcessRunnerException
+	 *             when the process can't be started, exits or times out
+	 */
+	public synchronized List<String> request(final String request)
+			throws ProcessRunnerException {
+		return this.request(request, this.timeout);
+	}
+
+	/**
+	 * Send a request to the co-process and wait for its response, for up to
+	 * the given timeout rather than the co-process's own.
+	 *
+	 * @param request
+	 *            the request, the request delimiter is added
+	 * @param requestTimeout
+	 *            how long to wait for the response in millisecs,
+	 *            Long.MAX_VALUE for ever
+	 * @return the lines of the response, without the sentinel
+	 * @throws ProcessRunnerException
+	 *             when the process can't be started, exits or times out
+	 */
+	public synchronized List<String> request(final String request,
+			final long requestTimeout) throws ProcessRunnerException {
+		if (this.closed) {
+			throw new IllegalStateException("CoProcess has been closed.");
+		}
+		this.busy = true;
+		try {
+			Instance current = this.running();
+			if (!current.discardStaleLines()) {
+				// It exited since the last request
+				this.stop(current);
+				current = this.running();
+			}
+			this.requestCount++;
+			this.instanceRequestCount++;
+			try {
+				current.stdin.write((request + this.requestDelimiter)
+						.getBytes(this.charset));
+				current.stdin.flush();
+			} catch (IOException excep) {
+				this.stop(current);
+				throw new ProcessRunnerException(
+						"Couldn't write request to co-process.", excep);
+			}
+			return this.readResponse(current, requestTimeout);
+		} finally {
+			this.busy = false;
+		}
+	}
+
+	/**
+	 * @return the command and arguments that start the co-process
+	 */
+	public List<String> getCommand() {
+		return Collections.unmodifiableList(this.command);
+	}
+
+	/**
+	 * @return a new, unstarted co-process with the same command and
+	 *         configuration as this one
+	 */
+	synchronized CoProcess copy() {
+		CoProcess copy = new CoProcess(this.command, this.pumpExecutor);
+		copy.enviroment.putAll(this.enviroment);
+		copy.startingDir = this.startingDir;
+		copy.charset = this.charset;
+		copy.requestDelimiter = this.requestDelimiter;
+		copy.responseSentinel = this.responseSentinel;
+		copy.linesPerResponse = this.linesPerResponse;
+		copy.timeout = this.timeout;
+		return copy;
+	}
+
+	/**
+	 * @return the charset requests and responses are encoded in
+	 */
+	public synchronized Charset getCharset() {
+		return this.charset;
+	}
+
+	/**
+	 * @return the environment variables the process is started with, on top
+	 *         of this process's own
+	 */
+	synchronized Map<String, String> getEnviroment() {
+		return Collections.unmodifiableMap(new HashMap<String, String>(
+				this.enviroment));
+	}
+
+	/**
+	 * @return the directory the process is started in, null for this
+	 *         process's own
+	 */
+	synchronized File getStartingDir() {
+		return this.startingDir;
+	}
+
+	/**
+	 * @return true if a request is in progress
+	 */
+	public boolean isBusy() {
+		return this.busy;
+	}
+
+	/**
+	 * @return true if the process has been started and hasn't exited
+	 */
+	public boolean isRunning() {
+		Instance current = this.instance.get();
+		return current != null && isAlive(current.process);
+	}
+
+	/**
+	 * @return the number of requests sent over the life of this co-process
+	 */
+	public synchronized long getRequestCount() {
+		return this.requestCount;
+	}
+
+	/**
+	 * @return the number of requests sent to the current process
+	 */
+	public synchronized long getProcessRequestCount() {
+		return this.instanceRequestCount;
+	}
+
+	/**
+	 * @return the number of times the process has been started
+	 */
+	public synchronized int getStartCount() {
+		return this.startCount;
+	}
+
+	/**
+	 * Kill the current process, a new one is started on the next request.
+	 * A request in progress fails.
+	 */
+	public void restart() {
+		Instance current = this.instance.getAndSet(null);
+		if (current != null) {
+			current.destroy();
+		}
+	}
+
+	/**
+	 * Close the process input and kill the process, no further requests can
+	 * be made. A request in progress fails.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		this.restart();
+	}
+
+	private List<String> readResponse(final Instance current,
+			final long requestTimeout) throws ProcessRunnerException {
+		List<String> response = new ArrayList<String>();
+		long deadline = (requestTimeout == Long.MAX_VALUE) ? Long.MAX_VALUE
+				: System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(requestTimeout);
+		while (true) {
+			if (this.responseSentinel == null
+					&& response.size() == this.linesPerResponse) {
+				return response;
+			}
+			String line = this.nextLine(current, deadline, requestTimeout);
+			if (line == END_OF_OUTPUT) {
+				this.stop(current);
+				throw new ProcessRunnerException(
+						"Co-process exited before completing its response.");
+			}
+			if (line.equals(this.responseSentinel)) {
+				return response;
+			}
+			response.add(line);
+		}
+	}
+
+	private String nextLine(final Instance current, final long deadline,
+			final long requestTimeout) throws ProcessRunnerException {
+		String line = null;
+		try {
+			if (deadline == Long.MAX_VALUE) {
+				line = current.lines.take();
+			} else {
+				line = current.lines.poll(deadline - System.nanoTime(),
+						TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException excep) {
+			this.stop(current);
+			Thread.currentThread().interrupt();
+			throw new ProcessRunnerException(
+					"Interrupted waiting for co-process response.", excep);
+		}
+		if (line == null) {
+			this.stop(current);
+			String message = "Timed out waiting for co-process response after "
+					+ requestTimeout + "ms.";
+			throw new ProcessRunnerException(message, new TimeoutException(
+					message));
+		}
+		return line;
+	}
+
+	private Instance running() throws ProcessRunnerException {
+		Instance current = this.instance.get();
+		if (current != null && !isAlive(current.process)) {
+			this.stop(current);
+			current = null;
+		}
+		if (current == null) {
+			current = this.launch();
+			this.instance.set(current);
+			this.instanceRequestCount = 0L;
+			this.startCount++;
+			if (this.closed) {
+				// Closed while it started
+				this.stop(current);
+				throw new IllegalStateException("CoProcess has been closed.");
+			}
+		}
+		return current;
+	}
+
+	private Instance launch() throws ProcessRunnerException {
+		ProcessBuilder pb = new ProcessBuilder(this.command);
+		pb.environment().putAll(this.enviroment);
+		pb.directory(this.startingDir);
+		Process process;
+		try {
+			process = pb.start();
+		} catch (IOException excep) {
+			throw new ProcessRunnerException("Couldn't start co-process: "
+					+ excep.getMessage(), excep);
+		}
+		final Instance launched = new Instance(process);
+		this.pump(process.getInputStream(), ProcessOutputHandlers.lines(
+				new ProcessOutputHandlers.LineConsumer() {
+					@Override
+					public void line(final String line) {
+						launched.enqueue(line);
+					}
+				}, this.charset), launched);
+		this.pump(process.getErrorStream(), null, null);
+		return launched;
+	}
+
+	private void pump(final InputStream stream,
+			final ProcessOutputHandler handler, final Instance lines) {
+		this.pumpExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = StreamPumps
+						.acquireBuffer(StreamPumps.DEFAULT_BUFFER_SIZE);
+				try {
+					int read;
+					while ((read = stream.read(buffer)) != -1) {
+						if (handler != null) {
+							handler.handleOutput(buffer, 0, read);
+						}
+					}
+					if (handler != null) {
+						handler.outputFinished();
+					}
+				} catch (IOException excep) {
+					// The process has gone, the end marker tells the reader
+				} finally {
+					StreamPumps.releaseBuffer(buffer);
+					IOUtils.closeQuietly(stream);
+					if (lines != null) {
+						lines.enqueue(END_OF_OUTPUT);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop a process if it's still the current one.
+	 */
+	private void stop(final Instance current) {
+		if (this.instance.compareAndSet(current, null)) {
+			current.destroy();
+		}
+	}
+
+	private static boolean isAlive(final Process process) {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException excep) {
+			return true;
+		}
+	}
+
+	/**
+	 * A single run of the co-process, and the queue of its output lines.
+	 */
+	private static final class Instance {
+		final Process process;
+		final OutputStream stdin;
+		final BlockingQueue<String> lines = new LinkedBlockingQueue<String>(
+				MAX_QUEUED_LINES);
+		private volatile boolean destroyed = false;
+
+		Instance(final Process process) {
+			this.process = process;
+			this.stdin = process.getOutputStream();
+		}
+
+		/**
+		 * Queue an output line, waiting while the queue is full unless the
+		 * process has been destroyed, when nobody will read it.
+		 */
+		void enqueue(final String line) {
+			try {
+				while (!this.lines.offer(line, QUEUE_WAIT, TimeUnit.MILLISECONDS)) {
+					if (this.destroyed) {
+						return;
+					}
+				}
+			} catch (InterruptedException excep) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Drop lines left from earlier responses.
+		 *
+		 * @return false if the output has ended
+		 */
+		boolean discardStaleLines() {
+			String line;
+			while ((line = this.lines.poll()) != null) {
+				if (line == END_OF_OUTPUT) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Close the process input and terminate the process tree, waking any
+		 * reader waiting for a response.
+		 */
+		void destroy() {
+			this.destroyed = true;
+			IOUtils.closeQuietly(this.stdin);
+			ProcessTrees.terminate(this.process,
+					ProcessRunnerImpl.DEFAULT_KILL_GRACE_PERIOD,
+					ProcessRunnerImpl.watchdog());
+			this.lines.clear();
+			this.lines.offer(END_OF_OUTPUT);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package org.opf_labs.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+
+/**
+ * <p>
+ * A fixed size pool of warm {@link CoProcess}es running the same command, so
+ * that requests can be handled in parallel. Each request goes to the idle
+ * co-process that has handled the fewest requests since it was started, if
+ * every co-process is busy the request waits in a queue until one is free.
+ * </p>
+ * <p>
+ * Each co-process is restarted once it has handled
+ * {@link #setMaxRequestsPerProcess(long)} requests, to limit the damage done
+ * by tools that leak memory or file handles.
+ * </p>
+ *
+ * @see CoProcessRunnerFactory to use a pool through the
+ *      {@link ProcessRunnerFactory} interface
+ */
+public final class CoProcessPool implements Closeable {
+	private final List<CoProcess> members;
+	private final List<CoProcess> idle;
+	private final Object lock = new Object();
+	private long maxRequestsPerProcess = Long.MAX_VALUE;
+	private int waiting = 0;
+	private boolean closed = false;
+
+	/**
+	 * Create a pool of co-processes configured like the template. The
+	 * template itself is never started.
+	 *
+	 * @param template
+	 *            a configured, unstarted co-process to copy
+	 * @param size
+	 *            the number of co-processes in the pool
+	 */
+	public CoProcessPool(final CoProcess template, final int size) {
+		if (template == null) {
+			throw new IllegalArgumentException("template can't be null.");
+		}
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be at least 1, was "
+					+ size);
+		}
+		List<CoProcess> created = new ArrayList<CoProcess>(size);
+		for (int i = 0; i < size; i++) {
+			created.add(template.copy());
+		}
+		this.members = Collections.unmodifiableList(created);
+		this.idle = new ArrayList<CoProcess>(created);
+	}
+
+	/**
+	 * @param maxRequestsPerProcess
+	 *            the number of requests after which a co-process is
+	 *            restarted, default Long.MAX_VALUE
+	 */
+	public void setMaxRequestsPerProcess(final long maxRequestsPerProcess) {
+		if (maxRequestsPerProcess < 1) {
+			throw new IllegalArgumentException(
+					"maxRequestsPerProcess must be at least 1, was "
+							+ maxRequestsPerProcess);
+		}
+		synchronized (this.lock) {
+			this.maxRequestsPerProcess = maxRequestsPerProcess;
+		}
+	}
+
+	/**
+	 * Start every co-process now, rather than on its first request.
+	 *
+	 * @throws ProcessRunnerException
+	 *             when a co-process can't be started
+	 */
+	public void warmUp() throws ProcessRunnerException {
+		for (CoProcess member : this.members) {
+			member.start();
+		}
+	}
+
+	/**
+	 * Send a request to the least used idle co-process and wait for its
+	 * response, queueing until a co-process is free if all are busy.
+	 *
+	 * @param request
+	 *            the request, the request delimiter is added
+	 * @return the lines of the response, without the sentinel
+	 * @throws ProcessRunnerException
+	 *             when the co-process can't be started, exits or times out,
+	 *             or the caller is interrupted while queued
+	 */
+	public List<String> request(final String request)
+			throws ProcessRunnerException {
+		CoProcess member = this.acquire();
+		try {
+			return member.request(request);
+		} finally {
+			this.release(member);
+		}
+	}
+
+	/**
+	 * Send a request like {@link #request(String)}, waiting for the response
+	 * for up to the given timeout rather than the co-processes' own.
+	 *
+	 * @param request
+	 *            the request, the request delimiter is added
+	 * @param timeout
+	 *            how long to wait for the response once sent, in millisecs,
+	 *            Long.MAX_VALUE for ever
+	 * @return the lines of the response, without the sentinel
+	 * @throws ProcessRunnerException
+	 *             when the co-process can't be started, exits or times out,
+	 *             or the caller is interrupted while queued
+	 */
+	public List<String> request(final String request, final long timeout)
+			throws ProcessRunnerException {
+		CoProcess member = this.acquire();
+		try {
+			return member.request(request, timeout);
+		} finally {
+			this.release(member);
+		}
+	}
+
+	/**
+	 * @return the command and arguments that start the co-processes
+	 */
+	public List<String> getCommand() {
+		return this.members.get(0).getCommand();
+	}
+
+	/**
+	 * @return the charset requests and responses are encoded in
+	 */
+	public Charset getCharset() {
+		return this.members.get(0).getCharset();
+	}
+
+	/**
+	 * @return the environment variables the co-processes are started with
+	 */
+	Map<String, String> getEnviroment() {
+		return this.members.get(0).getEnviroment();
+	}
+
+	/**
+	 * @return the directory the co-processes are started in, or null
+	 */
+	File getStartingDir() {
+		return this.members.get(0).getStartingDir();
+	}
+
+	/**
+	 * @return the number of co-processes in the pool
+	 */
+	public int getSize() {
+		return this.members.size();
+	}
+
+	/**
+	 * @return the number of co-processes waiting for a request
+	 */
+	public int getIdleCount() {
+		synchronized (this.lock) {
+			return this.idle.size();
+		}
+	}
+
+	/**
+	 * @return the number of requests queued waiting for a co-process
+	 */
+	public int getQueueDepth() {
+		synchronized (this.lock) {
+			return this.waiting;
+		}
+	}
+
+	/**
+	 * @return the number of requests handled by all co-processes in the pool
+	 */
+	public long getRequestCount() {
+		long total = 0L;
+		for (CoProcess member : this.members) {
+			total += member.getRequestCount();
+		}
+		return total;
+	}
+
+	/**
+	 * Kill every co-process, queued and future requests fail.
+	 */
+	@Override
+	public void close() {
+		synchronized (this.lock) {
+			this.closed = true;
+			this.lock.notifyAll();
+		}
+		for (CoProcess member : this.members) {
+			member.close();
+		}
+	}
+
+	private CoProcess acquire() throws ProcessRunnerException {
+		synchronized (this.lock) {
+			this.waiting++;
+			try {
+				while (this.idle.isEmpty() && !this.closed) {
+					this.lock.wait();
+				}
+			} catch (InterruptedException excep) {
+				Thread.currentThread().interrupt();
+				throw new ProcessRunnerException(
+						"Interrupted waiting for a co-process.", excep);
+			} finally {
+				this.waiting--;
+			}
+			if (this.closed) {
+				throw new IllegalStateException("CoProcessPool has been closed.");
+			}
+			CoProcess leastUsed = this.idle.get(0);
+			for (CoProcess candidate : this.idle) {
+				if (candidate.getProcessRequestCount() < leastUsed
+						.getProcessRequestCount()) {
+					leastUsed = candidate;
+				}
+			}
+			this.idle.remove(leastUsed);
+			return leastUsed;
+		}
+	}
+
+	private void release(final CoProcess member) {
+		long maxRequests;
+		synchronized (this.lock) {
+			maxRequests = this.maxRequestsPerProcess;
+		}
+		if (member.getProcessRequestCount() >= maxRequests) {
+			member.restart();
+			try {
+				member.start();
+			} catch (ProcessRunnerException excep) {
+				// Left stopped, the next request will try to start it again
+			} catch (IllegalStateException excep) {
+				// Closed while we were busy, nothing to restart
+			}
+		}
+		synchronized (this.lock) {
+			this.idle.add(member);
+			this.lock.notify();
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package org.opf_labs.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * {@link ProcessRunnerFactory} whose runners send their work to a
+ * {@link CoProcessPool} rather than starting a process each, so callers can
+ * switch from one shot to pooled execution without changing their code.
+ * </p>
+ * <p>
+ * A runner's command must start with the pool's command followed by at most
+ * one more argument, which is the request. So for a pool running
+ * <code>file -f -</code> the runner command
+ * <code>file -f - /data/a.pdf</code> sends the request
+ * <code>/data/a.pdf</code>. A command with more arguments, or an argument
+ * holding a line break, is rejected, as it can't be sent as a single request
+ * without ambiguity. If there's no argument the runner's input, without any
+ * trailing line breaks, is the request. The response lines make up the
+ * process output, and the return code is 0.
+ * </p>
+ * <p>
+ * A runner's timeout applies to its response, the pool's if it has none. A
+ * timed out runner reports {@link ProcessRunner#isTimedOut()} and a return
+ * code of -1, as a timed out process does; other failures are reported by
+ * {@link ProcessRunner#execute()} throwing a
+ * {@link ProcessRunner.ProcessRunnerException}. The environment and starting
+ * directory are fixed by the pool when the co-processes start, so a runner
+ * given different ones fails when it's executed. Co-process error output
+ * isn't kept per request, so an error file is left empty and an error
+ * handler sees no output.
+ * </p>
+ */
+public final class CoProcessRunnerFactory implements ProcessRunnerFactory {
+	private final CoProcessPool pool;
+
+	/**
+	 * @param pool
+	 *            the pool that handles the runners' requests
+	 */
+	public CoProcessRunnerFactory(final CoProcessPool pool) {
+		if (pool == null) {
+			throw new IllegalArgumentException("pool can't be null.");
+		}
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the pool that handles the runners' requests
+	 */
+	public CoProcessPool getPool() {
+		return this.pool;
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner()
+	 */
+	@Override
+	public ProcessRunner createProcessRunner() {
+		return new CoProcessRunner(this.pool);
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.lang.String)
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final String command) {
+		return this.createProcessRunner(new String[] { command });
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.lang.String[])
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final String[] commands) {
+		return this.createProcessRunner(Arrays.asList(commands));
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.util.List)
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final List<String> commands) {
+		ProcessRunner processRunner = new CoProcessRunner(this.pool);
+		processRunner.setCommand(commands);
+		return processRunner;
+	}
+
+	/**
+	 * ProcessRunner that hands its request to a pooled co-process.
+	 */
+	private static final class CoProcessRunner extends AbstractProcessRunner {
+		private static final byte[] NO_BYTES = new byte[0];
+
+		private final CoProcessPool pool;
+		private List<String> arguments = new ArrayList<String>();
+		private final Map<String, String> enviroment = new HashMap<String, String>();
+		private File startingDir = null;
+		private InputStream processInput = null;
+		private File inputFile = null;
+		private File outputFile = null;
+		private boolean appendOutput = false;
+		private File errorFile = null;
+		private boolean appendError = false;
+		/** The runner's timeout, or -1 for the pool's */
+		private long timeout = -1L;
+		private ProcessOutputHandler outputHandler = null;
+		private ProcessOutputHandler errorHandler = null;
+		private byte[] outputBytes = null;
+		private int returnCode = 0;
+		private boolean timedOut = false;
+		private ProcessRunnerListener listener = null;
+		private ProcessMetrics metrics = null;
+
+		CoProcessRunner(final CoProcessPool pool) {
+			this.pool = pool;
+		}
+
+		@Override
+		public void setEnviroment(final Map<String, String> enviroment) {
+			if (enviroment != null) {
+				this.enviroment.putAll(enviroment);
+			}
+		}
+
+		@Override
+		public void setInputStream(final InputStream processInput) {
+			this.processInput = processInput;
+			if (processInput != null) {
+				this.inputFile = null;
+			}
+		}
+
+		@Override
+		public void setInputFile(final File inputFile) {
+			this.inputFile = inputFile;
+			if (inputFile != null) {
+				this.processInput = null;
+			}
+		}
+
+		@Override
+		public void setOutputFile(final File outputFile, final boolean append) {
+			this.outputFile = outputFile;
+			this.appendOutput = append;
+		}
+
+		@Override
+		public void setErrorFile(final File errorFile, final boolean append) {
+			this.errorFile = errorFile;
+			this.appendError = append;
+		}
+
+		@Override
+		public void setStartingDir(final File startingDir) {
+			this.startingDir = startingDir;
+		}
+
+		@Override
+		public void setCommand(final List<String> commands) {
+			List<String> base = this.pool.getCommand();
+			if (commands == null || commands.size() < base.size()
+					|| !commands.subList(0, base.size()).equals(base)) {
+				throw new IllegalArgumentException("Command " + commands
+						+ " doesn't start with the pooled command " + base);
+			}
+			List<String> remaining = commands.subList(base.size(),
+					commands.size());
+			if (remaining.size() > 1) {
+				throw new IllegalArgumentException("Command " + commands
+						+ " has more than one argument after the pooled command "
+						+ base + ", so it's not a single request.");
+			}
+			for (String argument : remaining) {
+				if (argument.indexOf('\n') >= 0 || argument.indexOf('\r') >= 0) {
+					throw new IllegalArgumentException("Argument " + argument
+							+ " holds a line break, so it's not a single request.");
+				}
+			}
+			this.arguments = new ArrayList<String>(remaining);
+		}
+
+		@Override
+		public void setTimeout(final long timeout) {
+			this.timeout = timeout;
+		}
+
+		@Override
+		public void setCollection(final boolean collect) {
+			// The response is always collected
+		}
+
+		@Override
+		public void setOutputHandler(final ProcessOutputHandler outputHandler) {
+			this.outputHandler = outputHandler;
+		}
+
+		@Override
+		public void setErrorHandler(final ProcessOutputHandler errorHandler) {
+			this.errorHandler = errorHandler;
+		}
+
+		@Override
+		public void setListener(final ProcessRunnerListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public ProcessMetrics getMetrics() {
+			return this.metrics;
+		}
+
+		@Override
+		public InputStream getProcessOutput() {
+			return (this.outputBytes == null) ? null
+					: new ByteArrayInputStream(this.outputBytes);
+		}
+
+		@Override
+		public InputStream getProcessError() {
+			return (this.outputBytes == null) ? null
+					: new ByteArrayInputStream(NO_BYTES);
+		}
+
+		@Override
+		public int getReturnCode() {
+			return this.returnCode;
+		}
+
+		@Override
+		public boolean isTimedOut() {
+			return this.timedOut;
+		}
+
+		@Override
+		public String getProcessOutputAsString() {
+			return this.getProcessOutputAsString(Charset.defaultCharset());
+		}
+
+		@Override
+		public String getProcessErrorAsString() {
+			return this.getProcessErrorAsString(Charset.defaultCharset());
+		}
+
+		@Override
+		public String getProcessOutputAsString(final Charset charset) {
+			return (this.outputBytes == null) ? null : new String(
+					this.outputBytes, charset);
+		}
+
+		@Override
+		public String getProcessErrorAsString(final Charset charset) {
+			return (this.outputBytes == null) ? null : "";
+		}
+
+		@Override
+		public byte[] getProcessOutputAsBytes() {
+			return this.outputBytes;
+		}
+
+		@Override
+		public byte[] getProcessErrorAsBytes() {
+			return (this.outputBytes == null) ? null : NO_BYTES;
+		}
+
+		@Override
+		public void execute() throws ProcessRunnerException {
+			String commandName = ProcessMetrics.commandName(this.pool
+					.getCommand());
+			this.metrics = null;
+			this.timedOut = false;
+			long started = System.nanoTime();
+			Charset charset = this.pool.getCharset();
+			List<String> response;
+			String request = "";
+			try {
+				this.checkSetUp();
+				request = this.request(charset);
+				response = (this.timeout < 0) ? this.pool.request(request)
+						: this.pool.request(request, this.timeout);
+			} catch (ProcessRunnerException excep) {
+				if (!(excep.getCause() instanceof TimeoutException)) {
+					ProcessRunnerImpl.notifyListener(this.listener, commandName,
+							null, excep);
+					throw excep;
+				}
+				// Reported like a timed out process, with no output
+				this.timedOut = true;
+				response = new ArrayList<String>();
+			}
+			StringBuilder output = new StringBuilder();
+			for (String line : response) {
+				output.append(line).append('\n');
+			}
+			byte[] bytes = output.toString().getBytes(charset);
+			long bytesOut = bytes.length;
+			try {
+				if (this.outputFile != null) {
+					OutputStream out = new FileOutputStream(this.outputFile,
+							this.appendOutput);
+					try {
+						out.write(bytes);
+					} finally {
+						out.close();
+					}
+					bytes = NO_BYTES;
+				} else if (this.outputHandler != null) {
+					this.outputHandler.handleOutput(bytes, 0, bytes.length);
+					this.outputHandler.outputFinished();
+					bytes = NO_BYTES;
+				}
+				this.passOnNoErrors();
+			} catch (IOException excep) {
+				throw new ProcessRunnerException(
+						"Couldn't pass on co-process response: "
+								+ excep.getMessage(), excep);
+			}
+			this.outputBytes = bytes;
+			this.returnCode = this.timedOut ? -1 : 0;
+			// Already running, so there's no spawn and the first byte time
+			// isn't seen separately from the whole response
+			this.metrics = ProcessMetrics.builder(commandName)
+					.setWallNanos(System.nanoTime() - started)
+					.setBytesIn(request.getBytes(charset).length)
+					.setBytesOut(bytesOut).setReturnCode(this.returnCode)
+					.setTimedOut(this.timedOut).setKilled(this.timedOut).build();
+			ProcessRunnerImpl.notifyListener(this.listener, commandName,
+					this.metrics, null);
+		}
+
+		/**
+		 * Check the environment and starting directory set on the runner are
+		 * the ones the co-processes were started with.
+		 */
+		private void checkSetUp() throws ProcessRunnerException {
+			Map<String, String> poolEnviroment = this.pool.getEnviroment();
+			for (Map.Entry<String, String> entry : this.enviroment.entrySet()) {
+				String value = poolEnviroment.containsKey(entry.getKey()) ? poolEnviroment
+						.get(entry.getKey()) : System.getenv(entry.getKey());
+				if (!entry.getValue().equals(value)) {
+					throw new ProcessRunnerException("Environment variable "
+							+ entry.getKey()
+							+ " differs from the pooled co-processes'.");
+				}
+			}
+			if (this.startingDir != null
+					&& !sameDir(this.startingDir, this.pool.getStartingDir())) {
+				throw new ProcessRunnerException("Starting dir "
+						+ this.startingDir
+						+ " differs from the pooled co-processes'.");
+			}
+		}
+
+		private static boolean sameDir(final File dir, final File poolDir) {
+			File other = (poolDir != null) ? poolDir : new File(
+					System.getProperty("user.dir"));
+			return dir.getAbsoluteFile().toURI().normalize()
+					.equals(other.getAbsoluteFile().toURI().normalize());
+		}
+
+		/**
+		 * Leave the error file empty and finish the error handler, the
+		 * co-process error output isn't kept per request.
+		 */
+		private void passOnNoErrors() throws IOException {
+			if (this.errorFile != null) {
+				new FileOutputStream(this.errorFile, this.appendError).close();
+			} else if (this.errorHandler != null) {
+				this.errorHandler.outputFinished();
+			}
+		}
+
+		private String request(final Charset charset)
+				throws ProcessRunnerException {
+			if (!this.arguments.isEmpty()) {
+				return this.arguments.get(0);
+			}
+			try {
+				InputStream in = (this.inputFile != null) ? new FileInputStream(
+						this.inputFile) : this.processInput;
+				if (in == null) {
+					return "";
+				}
+				try {
+					String request = IOUtils.toString(in, charset.name());
+					int end = request.length();
+					while (end > 0
+							&& (request.charAt(end - 1) == '\n' || request
+									.charAt(end - 1) == '\r')) {
+						end--;
+					}
+					request = request.substring(0, end);
+					if (request.indexOf('\n') >= 0 || request.indexOf('\r') >= 0) {
+						// Sent on, it would get several responses and leave
+						// the rest for the next request
+						throw new ProcessRunnerException(
+								"Request input holds a line break, so it's not a single request.");
+					}
+					return request;
+				} finally {
+					in.close();
+				}
+			} catch (IOException excep) {
+				throw new ProcessRunnerException("Couldn't read request: "
+						+ excep.getMessage(), excep);
+			}
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package org.opf_labs.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+/**
+ * <p>
+ * Immutable snapshot of the environment details gathered by
+ * {@link Environments}, with its serialised forms worked out once when it's
+ * made. Stamping the snapshot onto a record is then a reference copy, rather
+ * than building strings afresh each time.
+ * </p>
+ * <p>
+ * There are three forms:
+ * </p>
+ * <ul>
+ * <li>JSON, an object keyed by {@link Field#getKey()}, with missing details
+ * as <code>null</code>;</li>
+ * <li>key=value pairs separated by spaces, in the logfmt style, with values
+ * that hold spaces, quotes, <code>=</code> or control characters quoted and
+ * escaped, and missing details left empty;</li>
+ * <li>a compact binary form, read back with {@link #fromBytes(byte[])}.</li>
+ * </ul>
+ */
+public final class EnvironmentSnapshot {
+	/** First byte of the binary form */
+	private static final byte BINARY_MAGIC = 'E';
+	/** Second byte of the binary form, bumped if its layout changes */
+	private static final byte BINARY_VERSION = 1;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The details held in a snapshot, in serialisation order.
+	 */
+	public enum Field {
+		/** The machine host name */
+		HOST_NAME("host.name"),
+		/** The host IP address */
+		HOST_ADDRESS("host.address"),
+		/** The host MAC address */
+		HOST_MACH_ADDRESS("host.mac"),
+		/** The CPU instruction sets */
+		CPU_ISA("cpu.isa"),
+		/** The Java vendor */
+		JAVA_VENDOR("java.vendor"),
+		/** The Java version */
+		JAVA_VERSION("java.version"),
+		/** The Java architecture */
+		JAVA_ARCH("java.arch"),
+		/** The Java home */
+		JAVA_HOME("java.home"),
+		/** The user name */
+		USER_NAME("user.name"),
+		/** The user home dir */
+		USER_HOME("user.home"),
+		/** The user country */
+		USER_COUNTRY("user.country"),
+		/** The user language */
+		USER_LANGUAGE("user.language"),
+		/** The operating system name */
+		OS_NAME("os.name"),
+		/** The operating system version */
+		OS_VERSION("os.version"),
+		/** The operating system architecture */
+		OS_ARCH("os.arch");
+
+		private final String key;
+
+		private Field(final String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return the key the detail is serialised under
+		 */
+		public String getKey() {
+			return this.key;
+		}
+	}
+
+	private final Map<Field, String> values;
+	private final String json;
+	private final String keyValues;
+	private final byte[] binary;
+
+	/**
+	 * @param values
+	 *            the details, those missing or null are recorded as missing
+	 */
+	EnvironmentSnapshot(final Map<Field, String> values) {
+		if (values == null) {
+			throw new IllegalArgumentException("values can't be null.");
+		}
+		Map<Field, String> copy = new EnumMap<Field, String>(Field.class);
+		for (Field field : Field.values()) {
+			copy.put(field, values.get(field));
+		}
+		this.values = Collections.unmodifiableMap(copy);
+		this.json = toJson(copy);
+		this.keyValues = toKeyValues(copy);
+		this.binary = toBinary(copy);
+	}
+
+	/**
+	 * @param field
+	 *            the detail wanted
+	 * @return the detail's value, null if it's missing
+	 */
+	public String get(final Field field) {
+		if (field == null) {
+			throw new IllegalArgumentException("field can't be null.");
+		}
+		return this.values.get(field);
+	}
+
+	/**
+	 * @return an unmodifiable map of every field to its value, in field
+	 *         order, missing values are null
+	 */
+	public Map<Field, String> asMap() {
+		return this.values;
+	}
+
+	/**
+	 * @return the snapshot as a JSON object
+	 */
+	public String toJson() {
+		return this.json;
+	}
+
+	/**
+	 * @return the snapshot as space separated key=value pairs
+	 */
+	public String toKeyValues() {
+		return this.keyValues;
+	}
+
+	/**
+	 * @return the number of bytes in the binary form
+	 */
+	public int getBinaryLength() {
+		return this.binary.length;
+	}
+
+	/**
+	 * @return a copy of the binary form
+	 */
+	public byte[] toBytes() {
+		return this.binary.clone();
+	}
+
+	/**
+	 * @return a read only view of the binary form, positioned at its start
+	 */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(this.binary).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param bytes
+	 *            a snapshot's binary form, as made by {@link #toBytes()}
+	 * @return the snapshot the bytes hold
+	 * @throws IllegalArgumentException
+	 *             if the bytes aren't a snapshot's binary form
+	 */
+	public static EnvironmentSnapshot fromBytes(final byte[] bytes) {
+		if (bytes == null) {
+			throw new IllegalArgumentException("bytes can't be null.");
+		}
+		if (bytes.length < 2 || bytes[0] != BINARY_MAGIC
+				|| bytes[1] != BINARY_VERSION) {
+			throw new IllegalArgumentException(
+					"bytes don't hold a version " + BINARY_VERSION
+							+ " environment snapshot.");
+		}
+		Map<Field, String> values = new EnumMap<Field, String>(Field.class);
+		int[] position = new int[] { 2 };
+		for (Field field : Field.values()) {
+			int length = readLength(bytes, position);
+			if (length == -1) {
+				continue;
+			}
+			if (length > bytes.length - position[0]) {
+				throw new IllegalArgumentException(
+						"Environment snapshot bytes are truncated.");
+			}
+			values.put(field, new String(bytes, position[0], length,
+					Charsets.UTF_8));
+			position[0] += length;
+		}
+		if (position[0] != bytes.length) {
+			throw new IllegalArgumentException(
+					"Environment snapshot bytes have " + (bytes.length - position[0])
+							+ " trailing bytes.");
+		}
+		return new EnvironmentSnapshot(values);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof EnvironmentSnapshot)) {
+			return false;
+		}
+		return this.values.equals(((EnvironmentSnapshot) obj).values);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.values.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return this.json;
+	}
+
+	private static String toJson(final Map<Field, String> values) {
+		StringBuilder sb = new StringBuilder(512).append('{');
+		for (Map.Entry<Field, String> entry : values.entrySet()) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			appendJsonString(sb, entry.getKey().getKey()).append(':');
+			if (entry.getValue() == null) {
+				sb.append("null");
+			} else {
+				appendJsonString(sb, entry.getValue());
+			}
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Append a string as a quoted JSON string.
+	 *
+	 * @param sb
+	 *            where to append it
+	 * @param value
+	 *            the string, not null
+	 * @return sb
+	 */
+	static StringBuilder appendJsonString(final StringBuilder sb,
+			final String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				// Also escape the separators JavaScript treats as line ends
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					appendUnicodeEscape(sb, c);
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"');
+	}
+
+	private static String toKeyValues(final Map<Field, String> values) {
+		StringBuilder sb = new StringBuilder(512);
+		for (Map.Entry<Field, String> entry : values.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(entry.getKey().getKey()).append('=');
+			if (entry.getValue() != null) {
+				appendKeyValue(sb, entry.getValue());
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void appendKeyValue(final StringBuilder sb,
+			final String value) {
+		boolean quote = value.isEmpty();
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '=' || c == '\\';
+		}
+		if (!quote) {
+			sb.append(value);
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else if (c == '\r') {
+				sb.append("\\r");
+			} else if (c == '\t') {
+				sb.append("\\t");
+			} else if (c < 0x20) {
+				appendUnicodeEscape(sb, c);
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	private static void appendUnicodeEscape(final StringBuilder sb,
+			final char c) {
+		sb.append("\\u").append(HEX[(c >> 12) & 0xF])
+				.append(HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF])
+				.append(HEX[c & 0xF]);
+	}
+
+	/**
+	 * The binary form is the magic and version bytes, then for each field in
+	 * order an unsigned LEB128 length, zero for a missing value and otherwise
+	 * one more than the number of UTF-8 bytes that follow.
+	 */
+	private static byte[] toBinary(final Map<Field, String> values) {
+		byte[][] encoded = new byte[values.size()][];
+		int length = 2;
+		int i = 0;
+		for (String value : values.values()) {
+			encoded[i] = (value == null) ? null : value
+					.getBytes(Charsets.UTF_8);
+			int stored = (encoded[i] == null) ? 0 : encoded[i].length + 1;
+			length += lengthBytes(stored) + Math.max(stored - 1, 0);
+			i++;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.put(BINARY_MAGIC).put(BINARY_VERSION);
+		for (byte[] value : encoded) {
+			int stored = (value == null) ? 0 : value.length + 1;
+			while (stored >= 0x80) {
+				buffer.put((byte) ((stored & 0x7F) | 0x80));
+				stored >>>= 7;
+			}
+			buffer.put((byte) stored);
+			if (value != null) {
+				buffer.put(value);
+			}
+		}
+		return buffer.array();
+	}
+
+	private static int lengthBytes(final int stored) {
+		int bytes = 1;
+		for (int rest = stored >>> 7; rest != 0; rest >>>= 7) {
+			bytes++;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the value's byte count, -1 if it's missing
+	 */
+	private static int readLength(final byte[] bytes, final int[] position) {
+		int stored = 0;
+		for (int shift = 0;; shift += 7) {
+			if (position[0] >= bytes.length) {
+				throw new IllegalArgumentException(
+						"Environment snapshot bytes are truncated.");
+			}
+			byte b = bytes[position[0]++];
+			// The fifth byte may only add bits 28 to 30, more would overflow
+			if (shift == 28 && (b & 0xF8) != 0) {
+				throw new IllegalArgumentException(
+						"Environment snapshot holds a length too big for an int.");
+			}
+			stored |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return stored - 1;
+			}
+		}
+	}
+}
@@ -4,16 +4,33 @@ package org.opf_labs.utils;
  */
 
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.opf_labs.utils.EnvironmentSnapshot.Field;
 
 /**
  * Static utility class that gathers environment details for reporting.
+ * <p>
+ * Details are gathered in groups (host, JVM, user and OS) the first time a
+ * group is asked for, so the OS checks cost no more than reading a system
+ * property. The host group resolves the local host name, which can block on
+ * broken DNS; it gives up after the number of milliseconds in the system
+ * property <code>org.opf_labs.utils.hostLookupTimeout</code>, default 2000,
+ * and falls back to the <code>HOSTNAME</code> environment variable and the
+ * loopback address.
+ * </p>
  * 
  * @author <a href="mailto:carl@openplanetsfoundation.org">Carl Wilson</a> <a
  *         href="https://github.com/carlwilson">carlwilson AT github</a>
@@ -39,63 +56,12 @@ public final class Environments {
 	static final String OS_NAME_PROP = OS_PROP_ROOT + ".name";
 	static final String OS_VERSION_PROP = OS_PROP_ROOT + ".version";
 	static final String OS_ARCH_PROP = OS_PROP_ROOT + ".arch";
-	static final String HOST_NAME;
-	static final String HOST_ADDRESS;
-	static final String MACH_ADDRESS;
-	static final String CPU_ISA;
-	static final String JAVA_ARCH;
-	static final String JAVA_HOME;
-	static final String JAVA_VENDOR;
-	static final String JAVA_VERSION;
-	static final String USER_NAME;
-	static final String USER_HOME;
-	static final String USER_COUNTRY;
-	static final String USER_LANGUAGE;
-	static final String OS_NAME;
-	static final String OS_VERSION;
-	static final String OS_ARCH;
-	static {
-		try {
-			InetAddress address = InetAddress.getLocalHost(); 
-			HOST_NAME = address.getHostName();
-			HOST_ADDRESS = address.getHostAddress();
-			NetworkInterface nwi = NetworkInterface.getByInetAddress(address);
-			if (nwi != null) {
-				byte[] mac = nwi.getHardwareAddress();
-				StringBuilder sb = new StringBuilder();
-				if (mac != null) {
-					for (int i = 0; i < mac.length; i++) {
-						sb.append(String.format("%02X%s", Byte.valueOf(mac[i]), (i < mac.length - 1) ? "-" : ""));
-					}
-				}
-				MACH_ADDRESS = sb.toString();
-			} else
-				MACH_ADDRESS = "";
-			CPU_ISA = System.getProperty(JAVA_CPU_ISA_PROP);
-			JAVA_ARCH = "x" + System.getProperty(JAVA_ARCH_PROP);
-			JAVA_HOME = System.getProperty(JAVA_HOME_PROP);
-			JAVA_VENDOR = System.getProperty(JAVA_VM_VENDOR_PROP);
-			JAVA_VERSION = System.getProperty(JAVA_VERSION_PROP);
-			USER_NAME = System.getProperty(USER_NAME_PROP);
-			USER_HOME = System.getProperty(USER_HOME_PROP);
-			USER_COUNTRY = System.getProperty(USER_COUNTRY_PROP);
-			USER_LANGUAGE = System.getProperty(USER_LANGUAGE_PROP);
-			OS_NAME = System.getProperty(OS_NAME_PROP);
-			OS_VERSION = System.getProperty(OS_VERSION_PROP);
-			OS_ARCH = System.getProperty(OS_ARCH_PROP);
-		} catch (UnknownHostException excep) {
-			throw new IllegalStateException(
-					"Illegal length IP address, check your setup.", excep);
-		} catch (SocketException excep) {
-			throw new IllegalStateException(
-					"Socket Exception when finding MACH address.", excep);
-		}
-	}
-	/** ISO Date pattern for ISO 8601 Date */
+	/** System property giving the host lookup timeout in milliseconds */
+	static final String HOST_LOOKUP_TIMEOUT_PROP = "org.opf_labs.utils.hostLookupTimeout";
+	/** Default host lookup timeout in milliseconds */
+	static final long DEFAULT_HOST_LOOKUP_TIMEOUT = 2000L;
+	/** ISO Date pattern for ISO 8601 Date, as written by toISO8601String */
 	static final String ISO8601_DATE_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
-	/** {@link DateFormat} for ISO8601 date */
-	static DateFormat IOS8601_DATE_FORMATTER = new SimpleDateFormat(
-			ISO8601_DATE_PATTERN);
 
 	private Environments() {
 		throw new AssertionError("In Environments no-arg constructor.");
@@ -104,137 +70,133 @@ public final class Environments {
 	 * @return the machine host name
 	 */
 	public static final String getHostName() {
-		return HOST_NAME;
+		return Host.NAME;
 	}
 	
 	/**
 	 * @return the hosts ip address
 	 */
 	public static final String getHostAddress() {
-		return HOST_ADDRESS;
+		return Host.ADDRESS;
 	}
 
 	/**
 	 * @return the hosts mach address
 	 */
 	public static final String getMachAddress() {
-		return MACH_ADDRESS;
+		return Host.MACH_ADDRESS;
 	}
 
 	/**
 	 * @return the CPU details
 	 */
 	public static final String getCPUIsa() {
-		return CPU_ISA;
+		return Jvm.CPU_ISA;
 	}
 
 	/**
 	 * @return summary of host details
 	 */
 	public static final String getHostSummary() {
-		return "{\"name\":\"" + Environments.getHostName() + "\",\"CPU\":\"" + CPU_ISA
-				+ "\"}";
+		return Host.SUMMARY;
 	}
 
 	/**
 	 * @return java vendor
 	 */
 	public static final String getJavaVendor() {
-		return JAVA_VENDOR;
+		return Jvm.VENDOR;
 	}
 
 	/**
 	 * @return java version
 	 */
 	public static final String getJavaVersion() {
-		return JAVA_VERSION;
+		return Jvm.VERSION;
 	}
 
 	/**
 	 * @return java architecture
 	 */
 	public static final String getJavaArch() {
-		return JAVA_ARCH;
+		return Jvm.ARCH;
 	}
 
 	/**
 	 * @return java home
 	 */
 	public static final String getJavaHome() {
-		return JAVA_HOME;
+		return Jvm.HOME;
 	}
 
 	/**
 	 * @return summary of java details
 	 */
 	public static final String getJavaSummary() {
-		return "Java [vendor:" + JAVA_VENDOR + ", version:" + JAVA_VERSION
-				+ JAVA_ARCH + ", home:" + JAVA_HOME + "]";
+		return Jvm.SUMMARY;
 	}
 
 	/**
 	 * @return user name
 	 */
 	public static final String getUserName() {
-		return USER_NAME;
+		return User.NAME;
 	}
 
 	/**
 	 * @return user home dir
 	 */
 	public static final String getUserHome() {
-		return USER_HOME;
+		return User.HOME;
 	}
 
 	/**
 	 * @return user country
 	 */
 	public static final String getUserCountry() {
-		return USER_COUNTRY;
+		return User.COUNTRY;
 	}
 
 	/**
 	 * @return user language
 	 */
 	public static final String getUserLanguage() {
-		return USER_LANGUAGE;
+		return User.LANGUAGE;
 	}
 
 	/**
 	 * @return summary of user details
 	 */
 	public static final String getUserSummary() {
-		return "user [name:" + USER_NAME + ", country:" + USER_COUNTRY
-				+ ", lang:" + USER_LANGUAGE + ", home:" + USER_HOME + "]";
+		return User.SUMMARY;
 	}
 
 	/**
 	 * @return the operating system name
 	 */
 	public static final String getOSName() {
-		return OS_NAME;
+		return Os.NAME;
 	}
 
 	/**
 	 * @return the operating system verison
 	 */
 	public static final String getOSVersion() {
-		return OS_VERSION;
+		return Os.VERSION;
 	}
 
 	/**
 	 * @return the operating system architecture
 	 */
 	public static final String getOSArch() {
-		return OS_ARCH;
+		return Os.ARCH;
 	}
 
 	/**
 	 * @return a summary of os details
 	 */
 	public static final String getOSSummary() {
-		return "os [name:" + OS_NAME + ", version:" + OS_VERSION + ", arch:"
-				+ OS_ARCH + "]";
+		return Os.SUMMARY;
 	}
 
 	/**
@@ -242,42 +204,269 @@ public final class Environments {
 	 * @return the date as an ISO formatted string
 	 */
 	public static final String toISO8601String(Date date) {
-		return IOS8601_DATE_FORMATTER.format(date);
+		return IsoDate.FORMAT.format(date);
+	}
+
+	/**
+	 * @param epochMillis milliseconds since 1970-01-01T00:00:00Z
+	 * @return the instant as an ISO formatted string
+	 */
+	public static final String toISO8601String(long epochMillis) {
+		return IsoDate.FORMAT.format(epochMillis);
+	}
+
+	/**
+	 * @param text an ISO 8601 date time, local time unless it has an offset
+	 * @return the date the text names
+	 * @throws IllegalArgumentException if the text isn't an ISO 8601 date time
+	 */
+	public static final Date parseISO8601String(String text) {
+		return IsoDate.FORMAT.parse(text);
 	}
 
 	/**
 	 * @return a summary of the detected Environments.
 	 */
 	public static final String getSummary() {
-		return getHostSummary() + "\n" + getJavaSummary() + "\n"
-				+ getUserSummary() + "\n" + getOSSummary();
+		return Snapshot.SUMMARY;
+	}
+
+	/**
+	 * @return an immutable snapshot of the detected Environments, made once
+	 */
+	public static EnvironmentSnapshot getSnapshot() {
+		return Snapshot.VALUE;
+	}
+
+	/**
+	 * @return a reading of the host's processors, memory, load and file
+	 *         descriptors, shared between callers and no more than a second
+	 *         old
+	 */
+	public static HostResources getHostResources() {
+		return HostResources.current();
 	}
 
 	/**
 	 * @return true if OS is windows
 	 */
 	public static boolean isWindows() {
-		return (OS_NAME.toLowerCase().indexOf("win") >= 0);
+		return Os.WINDOWS;
 	}
  
 	/**
 	 * @return true if OS is mac
 	 */
 	public static boolean isMac() {
- 		return (OS_NAME.toLowerCase().indexOf("mac") >= 0);
+ 		return Os.MAC;
 	}
  
 	/**
 	 * @return true if os is *nix
 	 */
 	public static boolean isUnix() {
-		return (OS_NAME.toLowerCase().indexOf("nix") >= 0 || OS_NAME.indexOf("nux") >= 0);
+		return Os.UNIX;
 	}
  
 	/**
 	 * @return true if OS is solaris
 	 */
 	public static boolean isSolaris() {
- 		return (OS_NAME.toLowerCase().indexOf("sunos") >= 0);
+ 		return Os.SOLARIS;
  	}
+
+	/**
+	 * Host name and addresses, looked up on first use. The lookup runs on its
+	 * own daemon thread and is given up on after the timeout, so a host with
+	 * broken name resolution gets the fallback values rather than a stall.
+	 */
+	private static final class Host {
+		static final String NAME;
+		static final String ADDRESS;
+		static final String MACH_ADDRESS;
+		static final String SUMMARY;
+		static {
+			String[] details = HostLookup.lookup();
+			NAME = details[0];
+			ADDRESS = details[1];
+			MACH_ADDRESS = details[2];
+			StringBuilder sb = new StringBuilder("{\"name\":");
+			EnvironmentSnapshot.appendJsonString(sb, NAME).append(",\"CPU\":");
+			if (Jvm.CPU_ISA == null) {
+				sb.append("null");
+			} else {
+				EnvironmentSnapshot.appendJsonString(sb, Jvm.CPU_ISA);
+			}
+			SUMMARY = sb.append('}').toString();
+		}
+
+		private Host() {
+			throw new AssertionError("In Host no-arg constructor.");
+		}
+	}
+
+	/**
+	 * Resolves the host details for {@link Host}. It's kept out of Host
+	 * because the resolver thread can't use Host while Host's static
+	 * initialiser is waiting on it.
+	 */
+	private static final class HostLookup {
+		private HostLookup() {
+			throw new AssertionError("In HostLookup no-arg constructor.");
+		}
+
+		static String[] lookup() {
+			FutureTask<String[]> task = new FutureTask<String[]>(
+					new Callable<String[]>() {
+						@Override
+						public String[] call() throws IOException {
+							return resolve();
+						}
+					});
+			Thread resolver = new Thread(task, "environments-host-lookup");
+			resolver.setDaemon(true);
+			resolver.start();
+			try {
+				return task.get(Long.getLong(HOST_LOOKUP_TIMEOUT_PROP,
+						DEFAULT_HOST_LOOKUP_TIMEOUT).longValue(),
+						TimeUnit.MILLISECONDS);
+			} catch (TimeoutException excep) {
+				// Leave the resolver to finish or hang on its own
+			} catch (ExecutionException excep) {
+				// Unresolvable host name or no such interface
+			} catch (InterruptedException excep) {
+				Thread.currentThread().interrupt();
+			}
+			return fallback();
+		}
+
+		static String[] resolve() throws IOException {
+			InetAddress address = InetAddress.getLocalHost();
+			NetworkInterface nwi = NetworkInterface.getByInetAddress(address);
+			StringBuilder sb = new StringBuilder();
+			byte[] mac = (nwi == null) ? null : nwi.getHardwareAddress();
+			if (mac != null) {
+				for (int i = 0; i < mac.length; i++) {
+					sb.append(String.format("%02X%s", Byte.valueOf(mac[i]), (i < mac.length - 1) ? "-" : ""));
+				}
+			}
+			return new String[] { address.getHostName(),
+					address.getHostAddress(), sb.toString() };
+		}
+
+		private static String[] fallback() {
+			String name = System.getenv("HOSTNAME");
+			if (name == null || name.isEmpty()) {
+				name = System.getenv("COMPUTERNAME");
+			}
+			if (name == null || name.isEmpty()) {
+				name = "localhost";
+			}
+			return new String[] { name,
+					InetAddress.getLoopbackAddress().getHostAddress(), "" };
+		}
+	}
+
+	/**
+	 * Java runtime details, read on first use.
+	 */
+	private static final class Jvm {
+		static final String CPU_ISA = System.getProperty(JAVA_CPU_ISA_PROP);
+		static final String ARCH = "x" + System.getProperty(JAVA_ARCH_PROP);
+		static final String HOME = System.getProperty(JAVA_HOME_PROP);
+		static final String VENDOR = System.getProperty(JAVA_VM_VENDOR_PROP);
+		static final String VERSION = System.getProperty(JAVA_VERSION_PROP);
+		static final String SUMMARY = "Java [vendor:" + VENDOR + ", version:"
+				+ VERSION + ARCH + ", home:" + HOME + "]";
+
+		private Jvm() {
+			throw new AssertionError("In Jvm no-arg constructor.");
+		}
+	}
+
+	/**
+	 * User details, read on first use.
+	 */
+	private static final class User {
+		static final String NAME = System.getProperty(USER_NAME_PROP);
+		static final String HOME = System.getProperty(USER_HOME_PROP);
+		static final String COUNTRY = System.getProperty(USER_COUNTRY_PROP);
+		static final String LANGUAGE = System.getProperty(USER_LANGUAGE_PROP);
+		static final String SUMMARY = "user [name:" + NAME + ", country:"
+				+ COUNTRY + ", lang:" + LANGUAGE + ", home:" + HOME + "]";
+
+		private User() {
+			throw new AssertionError("In User no-arg constructor.");
+		}
+	}
+
+	/**
+	 * Operating system details and the OS checks, worked out once on first
+	 * use from system properties alone.
+	 */
+	private static final class Os {
+		static final String NAME = System.getProperty(OS_NAME_PROP);
+		static final String VERSION = System.getProperty(OS_VERSION_PROP);
+		static final String ARCH = System.getProperty(OS_ARCH_PROP);
+		private static final String LOWER_NAME = NAME.toLowerCase(Locale.ENGLISH);
+		static final boolean WINDOWS = LOWER_NAME.indexOf("win") >= 0;
+		static final boolean MAC = LOWER_NAME.indexOf("mac") >= 0;
+		static final boolean UNIX = LOWER_NAME.indexOf("nix") >= 0
+				|| NAME.indexOf("nux") >= 0;
+		static final boolean SOLARIS = LOWER_NAME.indexOf("sunos") >= 0;
+		static final String SUMMARY = "os [name:" + NAME + ", version:"
+				+ VERSION + ", arch:" + ARCH + "]";
+
+		private Os() {
+			throw new AssertionError("In Os no-arg constructor.");
+		}
+	}
+
+	/**
+	 * The snapshot of every group and the combined summary, made on first use.
+	 */
+	private static final class Snapshot {
+		static final EnvironmentSnapshot VALUE = take();
+		static final String SUMMARY = Host.SUMMARY + "\n" + Jvm.SUMMARY
+				+ "\n" + User.SUMMARY + "\n" + Os.SUMMARY;
+
+		private Snapshot() {
+			throw new AssertionError("In Snapshot no-arg constructor.");
+		}
+
+		private static EnvironmentSnapshot take() {
+			Map<Field, String> values = new EnumMap<Field, String>(Field.class);
+			values.put(Field.HOST_NAME, Host.NAME);
+			values.put(Field.HOST_ADDRESS, Host.ADDRESS);
+			values.put(Field.HOST_MACH_ADDRESS, Host.MACH_ADDRESS);
+			values.put(Field.CPU_ISA, Jvm.CPU_ISA);
+			values.put(Field.JAVA_VENDOR, Jvm.VENDOR);
+			values.put(Field.JAVA_VERSION, Jvm.VERSION);
+			values.put(Field.JAVA_ARCH, Jvm.ARCH);
+			values.put(Field.JAVA_HOME, Jvm.HOME);
+			values.put(Field.USER_NAME, User.NAME);
+			values.put(Field.USER_HOME, User.HOME);
+			values.put(Field.USER_COUNTRY, User.COUNTRY);
+			values.put(Field.USER_LANGUAGE, User.LANGUAGE);
+			values.put(Field.OS_NAME, Os.NAME);
+			values.put(Field.OS_VERSION, Os.VERSION);
+			values.put(Field.OS_ARCH, Os.ARCH);
+			return new EnvironmentSnapshot(values);
+		}
+	}
+
+	/**
+	 * The ISO 8601 date format, created on first use.
+	 */
+	private static final class IsoDate {
+		/** Local time to the second, as {@link #ISO8601_DATE_PATTERN} */
+		static final Iso8601Format FORMAT = Iso8601Format.builder()
+				.setTimeZone(TimeZone.getDefault())
+				.setPrecision(Iso8601Format.Precision.SECONDS)
+				.setOffsetShown(false).build();
+
+		private IsoDate() {
+			throw new AssertionError("In IsoDate no-arg constructor.");
+		}
+	}
  }
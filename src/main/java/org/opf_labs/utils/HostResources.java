@@ -0,0 +1,487 @@
+package org.opf_labs.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * <p>
+ * Immutable reading of the resources that limit how many processes can
+ * usefully run at once: processors and any cgroup CPU quota, memory and any
+ * cgroup memory limit, load average, and open file descriptors. A process
+ * runner pool can size itself from {@link #getEffectiveProcessors()} and
+ * throttle when {@link #getLoadPerProcessor()} shows the host is saturated.
+ * </p>
+ * <p>
+ * On Linux readings come from <code>/proc</code> and the process's own
+ * cgroup, v1 or v2, under <code>/sys/fs/cgroup</code>. A cgroup limit set on
+ * an ancestor applies too, so the smallest along the path is used. Elsewhere
+ * only the processor count and the load average, where the JVM knows it,
+ * are read. Values that can't be read are -1.
+ * </p>
+ * <p>
+ * {@link #current()} shares one reading between callers until it's a second
+ * old, so it can be called on every scheduling decision. A stale reading is
+ * replaced by whichever caller notices first, the others carry on with the
+ * stale one meanwhile rather than wait.
+ * </p>
+ */
+public final class HostResources {
+	/** Default maximum age of a shared reading, in milliseconds */
+	public static final long DEFAULT_MAX_AGE = 1000L;
+	private static final File PROC_SELF = new File("/proc/self");
+	private static final File PROC_LOADAVG = new File("/proc/loadavg");
+	private static final File PROC_MEMINFO = new File("/proc/meminfo");
+	private static final long KILOBYTE = 1024L;
+	/** cgroup v1 reports no memory limit as a page rounded Long.MAX_VALUE */
+	private static final long UNLIMITED = 1L << 60;
+
+	private static volatile HostResources latest = null;
+	private static final AtomicBoolean REFRESHING = new AtomicBoolean(false);
+
+	private final long readAt;
+	private final int availableProcessors;
+	private final double cpuQuota;
+	private final long memoryLimit;
+	private final long memoryUsage;
+	private final long memoryTotal;
+	private final long memoryAvailable;
+	private final double[] loadAverage;
+	private final int runnableTasks;
+	private final long openFilesLimit;
+	private final long openFiles;
+
+	private HostResources() {
+		this.readAt = System.nanoTime();
+		this.availableProcessors = Runtime.getRuntime().availableProcessors();
+		this.cpuQuota = Cgroup.cpuQuota();
+		this.memoryLimit = Cgroup.memoryLimit();
+		this.memoryUsage = Cgroup.memoryUsage();
+		Map<String, Long> meminfo = readMeminfo();
+		this.memoryTotal = value(meminfo, "MemTotal");
+		this.memoryAvailable = value(meminfo, "MemAvailable");
+		String[] loadavg = readFields(PROC_LOADAVG);
+		if (loadavg.length >= 4) {
+			this.loadAverage = new double[] { parseDouble(loadavg[0]),
+					parseDouble(loadavg[1]), parseDouble(loadavg[2]) };
+			int slash = loadavg[3].indexOf('/');
+			this.runnableTasks = (int) parseLong((slash < 0) ? ""
+					: loadavg[3].substring(0, slash));
+		} else {
+			double load = ManagementFactory.getOperatingSystemMXBean()
+					.getSystemLoadAverage();
+			this.loadAverage = new double[] { (load < 0) ? -1 : load, -1, -1 };
+			this.runnableTasks = -1;
+		}
+		this.openFilesLimit = readOpenFilesLimit();
+		String[] fds = new File(PROC_SELF, "fd").list();
+		this.openFiles = (fds == null) ? -1 : fds.length;
+	}
+
+	/**
+	 * @return a fresh reading
+	 */
+	public static HostResources read() {
+		HostResources resources = new HostResources();
+		latest = resources;
+		return resources;
+	}
+
+	/**
+	 * @return a reading no more than {@link #DEFAULT_MAX_AGE} old, shared
+	 *         between callers
+	 */
+	public static HostResources current() {
+		return current(DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * @param maxAgeMillis
+	 *            the oldest reading that will do, in milliseconds
+	 * @return a shared reading no more than maxAgeMillis old, or slightly
+	 *         older while another caller takes a fresh one
+	 */
+	public static HostResources current(final long maxAgeMillis) {
+		if (maxAgeMillis < 0) {
+			throw new IllegalArgumentException(
+					"maxAgeMillis can't be negative, was " + maxAgeMillis);
+		}
+		HostResources resources = latest;
+		if (resources != null
+				&& resources.getAge(TimeUnit.MILLISECONDS) < maxAgeMillis) {
+			return resources;
+		}
+		if (resources == null) {
+			return read();
+		}
+		if (!REFRESHING.compareAndSet(false, true)) {
+			return resources;
+		}
+		try {
+			return read();
+		} finally {
+			REFRESHING.set(false);
+		}
+	}
+
+	/**
+	 * @param unit
+	 *            the unit wanted
+	 * @return how long ago the reading was taken
+	 */
+	public long getAge(final TimeUnit unit) {
+		return unit.convert(System.nanoTime() - this.readAt,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the processors the JVM may use, from
+	 *         {@link Runtime#availableProcessors()}
+	 */
+	public int getAvailableProcessors() {
+		return this.availableProcessors;
+	}
+
+	/**
+	 * @return the cgroup CPU quota in processors, which may be fractional,
+	 *         or -1 if there's none
+	 */
+	public double getCpuQuota() {
+		return this.cpuQuota;
+	}
+
+	/**
+	 * @return the processors that can actually be used: the available
+	 *         processors, capped by the CPU quota rounded up
+	 */
+	public int getEffectiveProcessors() {
+		if (this.cpuQuota <= 0) {
+			return this.availableProcessors;
+		}
+		return (int) Math.max(1,
+				Math.min(this.availableProcessors, Math.ceil(this.cpuQuota)));
+	}
+
+	/**
+	 * @return the cgroup memory limit in bytes, or -1 if there's none
+	 */
+	public long getMemoryLimitBytes() {
+		return this.memoryLimit;
+	}
+
+	/**
+	 * @return the memory used by the cgroup in bytes, or -1 if unknown
+	 */
+	public long getMemoryUsageBytes() {
+		return this.memoryUsage;
+	}
+
+	/**
+	 * @return the host's total memory in bytes, or -1 if unknown
+	 */
+	public long getMemoryTotalBytes() {
+		return this.memoryTotal;
+	}
+
+	/**
+	 * @return the memory that can be used without swapping, the smaller of
+	 *         what the host has available and what's left under the cgroup
+	 *         limit, in bytes, or -1 if unknown
+	 */
+	public long getMemoryAvailableBytes() {
+		if (this.memoryLimit < 0 || this.memoryUsage < 0) {
+			return this.memoryAvailable;
+		}
+		long underLimit = Math.max(0L, this.memoryLimit - this.memoryUsage);
+		return (this.memoryAvailable < 0) ? underLimit : Math.min(
+				this.memoryAvailable, underLimit);
+	}
+
+	/**
+	 * @return the one minute load average, or -1 if unknown
+	 */
+	public double getLoadAverage() {
+		return this.loadAverage[0];
+	}
+
+	/**
+	 * @return the five minute load average, or -1 if unknown
+	 */
+	public double getLoadAverage5() {
+		return this.loadAverage[1];
+	}
+
+	/**
+	 * @return the fifteen minute load average, or -1 if unknown
+	 */
+	public double getLoadAverage15() {
+		return this.loadAverage[2];
+	}
+
+	/**
+	 * @return the one minute load average per effective processor, above 1
+	 *         when there's more work than processors, or -1 if unknown
+	 */
+	public double getLoadPerProcessor() {
+		return (this.loadAverage[0] < 0) ? -1 : this.loadAverage[0]
+				/ this.getEffectiveProcessors();
+	}
+
+	/**
+	 * @return the number of tasks running or ready to run on the host right
+	 *         now, or -1 if unknown
+	 */
+	public int getRunnableTasks() {
+		return this.runnableTasks;
+	}
+
+	/**
+	 * @return this process's soft limit on open file descriptors, or -1 if
+	 *         unknown or unlimited
+	 */
+	public long getOpenFilesLimit() {
+		return this.openFilesLimit;
+	}
+
+	/**
+	 * @return the file descriptors this process has open, or -1 if unknown
+	 */
+	public long getOpenFiles() {
+		return this.openFiles;
+	}
+
+	/**
+	 * @return the file descriptors this process can still open, or -1 if
+	 *         unknown
+	 */
+	public long getFreeFiles() {
+		return (this.openFilesLimit < 0 || this.openFiles < 0) ? -1 : Math
+				.max(0L, this.openFilesLimit - this.openFiles);
+	}
+
+	@Override
+	public String toString() {
+		return "HostResources [processors:" + this.availableProcessors
+				+ ", cpuQuota:" + this.cpuQuota + ", memoryLimit:"
+				+ this.memoryLimit + ", memoryAvailable:"
+				+ this.getMemoryAvailableBytes() + ", load:"
+				+ this.loadAverage[0] + ", runnable:" + this.runnableTasks
+				+ ", openFiles:" + this.openFiles + "/" + this.openFilesLimit
+				+ "]";
+	}
+
+	private static Map<String, Long> readMeminfo() {
+		Map<String, Long> meminfo = new HashMap<String, Long>();
+		for (String line : readLines(PROC_MEMINFO)) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String[] fields = line.substring(colon + 1).trim().split("\\s+");
+			long value = parseLong(fields[0]);
+			if (value >= 0 && fields.length > 1 && "kB".equals(fields[1])) {
+				value *= KILOBYTE;
+			}
+			meminfo.put(line.substring(0, colon), Long.valueOf(value));
+		}
+		return meminfo;
+	}
+
+	private static long readOpenFilesLimit() {
+		for (String line : readLines(new File(PROC_SELF, "limits"))) {
+			if (line.startsWith("Max open files")) {
+				String[] fields = line.substring("Max open files".length())
+						.trim().split("\\s+");
+				return parseLong(fields[0]);
+			}
+		}
+		return -1;
+	}
+
+	private static long value(final Map<String, Long> values, final String key) {
+		Long value = values.get(key);
+		return (value == null) ? -1 : value.longValue();
+	}
+
+	static List<String> readLines(final File file) {
+		try {
+			return Files.readLines(file, Charsets.US_ASCII);
+		} catch (IOException excep) {
+			// Not Linux, or not readable here
+			return Collections.emptyList();
+		}
+	}
+
+	static String[] readFields(final File file) {
+		List<String> lines = readLines(file);
+		return lines.isEmpty() ? new String[0] : lines.get(0).trim()
+				.split("\\s+");
+	}
+
+	static long parseLong(final String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException excep) {
+			// "max", "unlimited" or unreadable
+			return -1;
+		}
+	}
+
+	private static double parseDouble(final String value) {
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException excep) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The cgroup directories of this process, found once from
+	 * <code>/proc/self/cgroup</code> and <code>/proc/self/mountinfo</code>.
+	 * Each list runs from the process's own cgroup up to the root of the
+	 * mounted hierarchy, and is empty where there's no such cgroup.
+	 */
+	private static final class Cgroup {
+		static final boolean CPU_V2;
+		static final List<File> CPU;
+		static final boolean MEMORY_V2;
+		static final List<File> MEMORY;
+		static {
+			Map<String, String> paths = new HashMap<String, String>();
+			for (String line : readLines(new File(PROC_SELF, "cgroup"))) {
+				String[] parts = line.split(":", 3);
+				if (parts.length < 3) {
+					continue;
+				}
+				for (String controller : parts[1].split(",")) {
+					paths.put(controller, parts[2]);
+				}
+			}
+			List<File> cpuV1 = Collections.emptyList();
+			List<File> memoryV1 = Collections.emptyList();
+			List<File> unified = Collections.emptyList();
+			for (String line : readLines(new File(PROC_SELF, "mountinfo"))) {
+				int dash = line.indexOf(" - ");
+				if (dash < 0) {
+					continue;
+				}
+				String[] mount = line.substring(0, dash).split(" ");
+				String[] fs = line.substring(dash + 3).split(" ");
+				if (mount.length < 5 || fs.length < 3) {
+					continue;
+				}
+				String root = unescape(mount[3]);
+				File mountPoint = new File(unescape(mount[4]));
+				if ("cgroup2".equals(fs[0]) && paths.containsKey("")) {
+					unified = hierarchy(mountPoint, root, paths.get(""));
+				} else if ("cgroup".equals(fs[0])) {
+					for (String option : fs[2].split(",")) {
+						if ("cpu".equals(option) && paths.containsKey("cpu")) {
+							cpuV1 = hierarchy(mountPoint, root,
+									paths.get("cpu"));
+						} else if ("memory".equals(option)
+								&& paths.containsKey("memory")) {
+							memoryV1 = hierarchy(mountPoint, root,
+									paths.get("memory"));
+						}
+					}
+				}
+			}
+			// A controller mounted as v1 isn't available in the v2 hierarchy
+			CPU_V2 = cpuV1.isEmpty();
+			CPU = CPU_V2 ? unified : cpuV1;
+			MEMORY_V2 = memoryV1.isEmpty();
+			MEMORY = MEMORY_V2 ? unified : memoryV1;
+		}
+
+		private Cgroup() {
+			throw new AssertionError("In Cgroup no-arg constructor.");
+		}
+
+		static double cpuQuota() {
+			double quota = -1;
+			for (File dir : CPU) {
+				long limit;
+				long period;
+				if (CPU_V2) {
+					// "max 100000" or "50000 100000"
+					String[] fields = readFields(new File(dir, "cpu.max"));
+					limit = (fields.length < 2) ? -1 : parseLong(fields[0]);
+					period = (fields.length < 2) ? -1 : parseLong(fields[1]);
+				} else {
+					limit = first(new File(dir, "cpu.cfs_quota_us"));
+					period = first(new File(dir, "cpu.cfs_period_us"));
+				}
+				if (limit > 0 && period > 0) {
+					double cpus = (double) limit / period;
+					quota = (quota < 0) ? cpus : Math.min(quota, cpus);
+				}
+			}
+			return quota;
+		}
+
+		static long memoryLimit() {
+			long smallest = -1;
+			for (File dir : MEMORY) {
+				long limit = first(new File(dir, MEMORY_V2 ? "memory.max"
+						: "memory.limit_in_bytes"));
+				if (limit >= 0 && limit < UNLIMITED) {
+					smallest = (smallest < 0) ? limit : Math.min(smallest, limit);
+				}
+			}
+			return smallest;
+		}
+
+		static long memoryUsage() {
+			return MEMORY.isEmpty() ? -1 : first(new File(MEMORY.get(0),
+					MEMORY_V2 ? "memory.current" : "memory.usage_in_bytes"));
+		}
+
+		private static long first(final File file) {
+			String[] fields = readFields(file);
+			return (fields.length == 0) ? -1 : parseLong(fields[0]);
+		}
+
+		/**
+		 * @return the directories from a cgroup up to its mount point, or
+		 *         just the mount point if the cgroup isn't visible there, as
+		 *         in a container with its own cgroup namespace
+		 */
+		private static List<File> hierarchy(final File mountPoint,
+				final String root, final String path) {
+			String relative = path;
+			if (!"/".equals(root)) {
+				relative = path.startsWith(root) ? path.substring(root
+						.length()) : "";
+			}
+			List<File> dirs = new ArrayList<File>();
+			File dir = new File(mountPoint, relative);
+			if (!dir.isDirectory()) {
+				dir = mountPoint;
+			}
+			for (; dir != null; dir = dir.getParentFile()) {
+				dirs.add(dir);
+				if (dir.equals(mountPoint)) {
+					break;
+				}
+			}
+			return Collections.unmodifiableList(dirs);
+		}
+
+		private static String unescape(final String field) {
+			// mountinfo writes space, tab, newline and backslash as octal
+			return field.replace("\\040", " ").replace("\\011", "\t")
+					.replace("\\012", "\n").replace("\\134", "\\");
+		}
+	}
+}
@@ -0,0 +1,631 @@
+package org.opf_labs.utils;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * <p>
+ * Immutable, thread safe ISO 8601 date time formatter and parser, for use
+ * in place of a shared {@link java.text.SimpleDateFormat}. Formats look like
+ * <code>2012-07-27T12:56:47</code>, optionally followed by a fraction of the
+ * second in milliseconds or nanoseconds, and by the offset from UTC, either
+ * <code>Z</code> or <code>+01:00</code>. Historic offsets that aren't whole
+ * minutes, such as India's <code>+05:21:10</code> before 1906, keep their
+ * seconds.
+ * </p>
+ * <p>
+ * Formatting takes no locks. The text up to the seconds, and the offset, are
+ * worked out once per second and kept in a volatile cache, so timestamps
+ * close together in time share most of their work. Formatting at second
+ * precision then allocates nothing at all, and the other precisions
+ * allocate just the returned string, or nothing when appending to a
+ * caller's {@link StringBuilder}.
+ * </p>
+ * <p>
+ * Dates use the proleptic Gregorian calendar, as <code>java.time</code>
+ * does, so dates before 1582 differ from those of
+ * {@link java.util.GregorianCalendar}. Years outside 0000 to 9999 are
+ * written with a sign.
+ * </p>
+ */
+public final class Iso8601Format {
+	private static final int MILLIS_PER_SECOND = 1000;
+	private static final int NANOS_PER_MILLI = 1000000;
+	private static final int NANOS_PER_SECOND = 1000000000;
+	private static final int SECONDS_PER_DAY = 86400;
+	private static final long MILLIS_PER_DAY = SECONDS_PER_DAY * 1000L;
+	/** Days from 0000-03-01 to 1970-01-01 */
+	private static final long DAYS_0000_TO_1970 = 719468L;
+	/** Days in a 400 year cycle */
+	private static final long DAYS_PER_ERA = 146097L;
+
+	/**
+	 * The finest unit a format writes.
+	 */
+	public enum Precision {
+		/** Whole seconds, <code>12:56:47</code> */
+		SECONDS(0),
+		/** Milliseconds, <code>12:56:47.123</code> */
+		MILLISECONDS(3),
+		/** Nanoseconds, <code>12:56:47.123456789</code> */
+		NANOSECONDS(9);
+
+		private final int digits;
+
+		private Precision(final int digits) {
+			this.digits = digits;
+		}
+
+		/**
+		 * @return the number of digits after the seconds
+		 */
+		public int getDigits() {
+			return this.digits;
+		}
+	}
+
+	private final TimeZone zone;
+	private final Precision precision;
+	private final boolean offsetShown;
+	private volatile Second cached;
+
+	Iso8601Format(final Builder builder) {
+		this.zone = (TimeZone) builder.zone.clone();
+		this.precision = builder.precision;
+		this.offsetShown = builder.offsetShown;
+		this.cached = this.second(0L);
+	}
+
+	/**
+	 * @return a new builder, for UTC at millisecond precision with the
+	 *         offset shown
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return a copy of the time zone dates are written in
+	 */
+	public TimeZone getTimeZone() {
+		return (TimeZone) this.zone.clone();
+	}
+
+	/**
+	 * @return the finest unit written
+	 */
+	public Precision getPrecision() {
+		return this.precision;
+	}
+
+	/**
+	 * @return true if the offset from UTC is written
+	 */
+	public boolean isOffsetShown() {
+		return this.offsetShown;
+	}
+
+	/**
+	 * @param date
+	 *            the date to format
+	 * @return the date as an ISO 8601 string
+	 */
+	public String format(final Date date) {
+		if (date == null) {
+			throw new IllegalArgumentException("date can't be null.");
+		}
+		return this.format(date.getTime());
+	}
+
+	/**
+	 * @param epochMillis
+	 *            milliseconds since 1970-01-01T00:00:00Z
+	 * @return the instant as an ISO 8601 string
+	 */
+	public String format(final long epochMillis) {
+		return this.format(floorDiv(epochMillis, MILLIS_PER_SECOND),
+				(int) floorMod(epochMillis, MILLIS_PER_SECOND) * NANOS_PER_MILLI);
+	}
+
+	/**
+	 * @param epochSecond
+	 *            seconds since 1970-01-01T00:00:00Z
+	 * @param nanoOfSecond
+	 *            nanoseconds into the second, 0 to 999,999,999
+	 * @return the instant as an ISO 8601 string
+	 */
+	public String format(final long epochSecond, final int nanoOfSecond) {
+		checkNanos(nanoOfSecond);
+		Second second = this.secondOf(epochSecond);
+		if (this.precision == Precision.SECONDS) {
+			return second.text;
+		}
+		char[] chars = new char[second.dateTime.length + 1
+				+ this.precision.digits + second.offset.length];
+		this.write(second, nanoOfSecond, chars);
+		return new String(chars);
+	}
+
+	/**
+	 * @param sb
+	 *            the builder to append to
+	 * @param epochMillis
+	 *            milliseconds since 1970-01-01T00:00:00Z
+	 * @return sb
+	 */
+	public StringBuilder formatTo(final StringBuilder sb, final long epochMillis) {
+		return this.formatTo(sb, floorDiv(epochMillis, MILLIS_PER_SECOND),
+				(int) floorMod(epochMillis, MILLIS_PER_SECOND) * NANOS_PER_MILLI);
+	}
+
+	/**
+	 * @param sb
+	 *            the builder to append to
+	 * @param epochSecond
+	 *            seconds since 1970-01-01T00:00:00Z
+	 * @param nanoOfSecond
+	 *            nanoseconds into the second, 0 to 999,999,999
+	 * @return sb
+	 */
+	public StringBuilder formatTo(final StringBuilder sb,
+			final long epochSecond, final int nanoOfSecond) {
+		if (sb == null) {
+			throw new IllegalArgumentException("sb can't be null.");
+		}
+		checkNanos(nanoOfSecond);
+		Second second = this.secondOf(epochSecond);
+		sb.append(second.dateTime);
+		if (this.precision != Precision.SECONDS) {
+			sb.append('.');
+			appendFraction(sb, nanoOfSecond, this.precision.digits);
+		}
+		return sb.append(second.offset);
+	}
+
+	/**
+	 * Parse an ISO 8601 date time. Any fraction of the second, up to
+	 * nanoseconds, and any offset are accepted whatever this format writes;
+	 * text without an offset is taken to be in this format's time zone.
+	 *
+	 * @param text
+	 *            the date time, as <code>yyyy-MM-dd'T'HH:mm:ss</code> with
+	 *            an optional fraction and an optional <code>Z</code>,
+	 *            <code>&plusmn;HH</code>, <code>&plusmn;HHmm</code>,
+	 *            <code>&plusmn;HH:mm</code>, <code>&plusmn;HHmmss</code> or
+	 *            <code>&plusmn;HH:mm:ss</code> offset
+	 * @return the date, to the millisecond
+	 * @throws IllegalArgumentException
+	 *             if the text isn't an ISO 8601 date time
+	 */
+	public Date parse(final CharSequence text) {
+		return new Date(this.parseMillis(text));
+	}
+
+	/**
+	 * @param text
+	 *            the date time, see {@link #parse(CharSequence)}
+	 * @return milliseconds since 1970-01-01T00:00:00Z, any finer fraction is
+	 *         dropped
+	 * @throws IllegalArgumentException
+	 *             if the text isn't an ISO 8601 date time
+	 */
+	public long parseMillis(final CharSequence text) {
+		Parsed parsed = this.parseText(text);
+		return parsed.epochSecond * MILLIS_PER_SECOND + parsed.nanos
+				/ NANOS_PER_MILLI;
+	}
+
+	/**
+	 * @param text
+	 *            the date time, see {@link #parse(CharSequence)}
+	 * @return nanoseconds since 1970-01-01T00:00:00Z
+	 * @throws IllegalArgumentException
+	 *             if the text isn't an ISO 8601 date time, or is too far
+	 *             from 1970 to count in nanoseconds (about 292 years)
+	 */
+	public long parseNanos(final CharSequence text) {
+		Parsed parsed = this.parseText(text);
+		long nanos = parsed.epochSecond * NANOS_PER_SECOND;
+		if (nanos / NANOS_PER_SECOND != parsed.epochSecond
+				|| nanos + parsed.nanos < nanos) {
+			throw new IllegalArgumentException(text
+					+ " can't be counted in nanoseconds since 1970.");
+		}
+		return nanos + parsed.nanos;
+	}
+
+	@Override
+	public String toString() {
+		return "Iso8601Format [zone:" + this.zone.getID() + ", precision:"
+				+ this.precision + ", offsetShown:" + this.offsetShown + "]";
+	}
+
+	private Second secondOf(final long epochSecond) {
+		Second second = this.cached;
+		if (second.epochSecond != epochSecond) {
+			// Racing threads may each publish their own, any of them will do
+			second = this.second(epochSecond);
+			this.cached = second;
+		}
+		return second;
+	}
+
+	private Second second(final long epochSecond) {
+		int offsetMillis = this.zone.getOffset(epochSecond * MILLIS_PER_SECOND);
+		long local = epochSecond + offsetMillis / MILLIS_PER_SECOND;
+		long days = floorDiv(local, SECONDS_PER_DAY);
+		int secondOfDay = (int) floorMod(local, SECONDS_PER_DAY);
+		StringBuilder sb = new StringBuilder(32);
+		appendDate(sb, days);
+		sb.append('T');
+		appendDigits(sb, secondOfDay / 3600, 2).append(':');
+		appendDigits(sb, secondOfDay / 60 % 60, 2).append(':');
+		appendDigits(sb, secondOfDay % 60, 2);
+		char[] dateTime = sb.toString().toCharArray();
+		sb.setLength(0);
+		if (this.offsetShown) {
+			appendOffset(sb, offsetMillis);
+		}
+		char[] offset = sb.toString().toCharArray();
+		return new Second(epochSecond, dateTime, offset, new String(dateTime)
+				+ new String(offset));
+	}
+
+	private void write(final Second second, final int nanoOfSecond,
+			final char[] chars) {
+		int pos = second.dateTime.length;
+		System.arraycopy(second.dateTime, 0, chars, 0, pos);
+		chars[pos++] = '.';
+		int fraction = nanoOfSecond;
+		for (int i = 9; i > this.precision.digits; i--) {
+			fraction /= 10;
+		}
+		for (int i = pos + this.precision.digits - 1; i >= pos; i--) {
+			chars[i] = (char) ('0' + fraction % 10);
+			fraction /= 10;
+		}
+		pos += this.precision.digits;
+		System.arraycopy(second.offset, 0, chars, pos, second.offset.length);
+	}
+
+	private static void appendFraction(final StringBuilder sb,
+			final int nanoOfSecond, final int digits) {
+		int divisor = NANOS_PER_SECOND / 10;
+		for (int i = 0; i < digits; i++) {
+			sb.append((char) ('0' + nanoOfSecond / divisor % 10));
+			divisor /= 10;
+		}
+	}
+
+	private static void appendDate(final StringBuilder sb, final long epochDay) {
+		// Civil from days, after Howard Hinnant's chrono-compatible algorithms
+		long days = epochDay + DAYS_0000_TO_1970;
+		long era = floorDiv(days, DAYS_PER_ERA);
+		long dayOfEra = days - era * DAYS_PER_ERA;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+		int month = (int) ((shiftedMonth < 10) ? shiftedMonth + 3
+				: shiftedMonth - 9);
+		long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+		if (year < 0) {
+			sb.append('-');
+		} else if (year > 9999) {
+			sb.append('+');
+		}
+		long absYear = Math.abs(year);
+		if (absYear < 10000) {
+			appendDigits(sb, (int) absYear, 4);
+		} else {
+			sb.append(absYear);
+		}
+		sb.append('-');
+		appendDigits(sb, month, 2).append('-');
+		appendDigits(sb, day, 2);
+	}
+
+	private static void appendOffset(final StringBuilder sb,
+			final int offsetMillis) {
+		if (offsetMillis == 0) {
+			sb.append('Z');
+			return;
+		}
+		int seconds = Math.abs(offsetMillis) / MILLIS_PER_SECOND;
+		sb.append((offsetMillis < 0) ? '-' : '+');
+		appendDigits(sb, seconds / 3600, 2).append(':');
+		appendDigits(sb, seconds / 60 % 60, 2);
+		if (seconds % 60 != 0) {
+			sb.append(':');
+			appendDigits(sb, seconds % 60, 2);
+		}
+	}
+
+	private static StringBuilder appendDigits(final StringBuilder sb,
+			final int value, final int width) {
+		int divisor = 1;
+		for (int i = 1; i < width; i++) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			sb.append((char) ('0' + value / divisor % 10));
+		}
+		return sb;
+	}
+
+	private Parsed parseText(final CharSequence text) {
+		if (text == null) {
+			throw new IllegalArgumentException("text can't be null.");
+		}
+		Cursor cursor = new Cursor(text);
+		boolean negative = cursor.accept('-');
+		if (!negative) {
+			cursor.accept('+');
+		}
+		long year = cursor.number(4, 9);
+		cursor.expect('-');
+		int month = (int) cursor.number(2, 2);
+		cursor.expect('-');
+		int day = (int) cursor.number(2, 2);
+		if (!cursor.accept('T') && !cursor.accept('t') && !cursor.accept(' ')) {
+			throw cursor.invalid();
+		}
+		int hour = (int) cursor.number(2, 2);
+		cursor.expect(':');
+		int minute = (int) cursor.number(2, 2);
+		cursor.expect(':');
+		int second = (int) cursor.number(2, 2);
+		int nanos = 0;
+		if (cursor.accept('.') || cursor.accept(',')) {
+			int start = cursor.pos;
+			nanos = (int) cursor.number(1, 9);
+			for (int i = cursor.pos - start; i < 9; i++) {
+				nanos *= 10;
+			}
+		}
+		if (month < 1 || month > 12 || day < 1
+				|| day > daysInMonth(negative ? -year : year, month)
+				|| hour > 23 || minute > 59 || second > 59) {
+			throw cursor.invalid();
+		}
+		long local = (daysFromCivil(negative ? -year : year, month, day)
+				* SECONDS_PER_DAY) + hour * 3600 + minute * 60 + second;
+		long epochSecond;
+		if (cursor.atEnd()) {
+			epochSecond = local - this.zoneOffsetAt(local) / MILLIS_PER_SECOND;
+		} else {
+			epochSecond = local - cursor.offsetSeconds();
+		}
+		if (!cursor.atEnd()) {
+			throw cursor.invalid();
+		}
+		return new Parsed(epochSecond, nanos);
+	}
+
+	/**
+	 * @return the zone's offset in force at a local time. As in java.time, a
+	 *         time repeated by a transition takes the offset from before it,
+	 *         and a time skipped by one is moved on by the length of the gap.
+	 */
+	private int zoneOffsetAt(final long localSecond) {
+		long guess = localSecond * MILLIS_PER_SECOND - this.zone.getRawOffset();
+		int early = this.zone.getOffset(guess - MILLIS_PER_DAY);
+		if (this.zone.getOffset(guess + this.zone.getRawOffset() - early) == early) {
+			return early;
+		}
+		int late = this.zone.getOffset(guess + MILLIS_PER_DAY);
+		if (this.zone.getOffset(guess + this.zone.getRawOffset() - late) == late) {
+			return late;
+		}
+		return early;
+	}
+
+	private static long daysFromCivil(final long year, final int month,
+			final int day) {
+		long y = (month <= 2) ? year - 1 : year;
+		long era = floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * DAYS_PER_ERA + dayOfEra - DAYS_0000_TO_1970;
+	}
+
+	private static int daysInMonth(final long year, final int month) {
+		if (month == 2) {
+			boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+			return leap ? 29 : 28;
+		}
+		return (month == 4 || month == 6 || month == 9 || month == 11) ? 30
+				: 31;
+	}
+
+	private static void checkNanos(final int nanoOfSecond) {
+		if (nanoOfSecond < 0 || nanoOfSecond >= NANOS_PER_SECOND) {
+			throw new IllegalArgumentException(
+					"nanoOfSecond must be 0 to 999,999,999, was " + nanoOfSecond);
+		}
+	}
+
+	private static long floorDiv(final long value, final long divisor) {
+		long quotient = value / divisor;
+		return ((value % divisor != 0) && ((value < 0) != (divisor < 0))) ? quotient - 1
+				: quotient;
+	}
+
+	private static long floorMod(final long value, final long divisor) {
+		return value - floorDiv(value, divisor) * divisor;
+	}
+
+	/**
+	 * The text for one second: the date and time up to the seconds, the
+	 * offset, and both together.
+	 */
+	private static final class Second {
+		final long epochSecond;
+		final char[] dateTime;
+		final char[] offset;
+		final String text;
+
+		Second(final long epochSecond, final char[] dateTime,
+				final char[] offset, final String text) {
+			this.epochSecond = epochSecond;
+			this.dateTime = dateTime;
+			this.offset = offset;
+			this.text = text;
+		}
+	}
+
+	private static final class Parsed {
+		final long epochSecond;
+		final int nanos;
+
+		Parsed(final long epochSecond, final int nanos) {
+			this.epochSecond = epochSecond;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Reads through the text being parsed.
+	 */
+	private static final class Cursor {
+		final CharSequence text;
+		int pos;
+
+		Cursor(final CharSequence text) {
+			this.text = text;
+		}
+
+		boolean atEnd() {
+			return this.pos >= this.text.length();
+		}
+
+		boolean accept(final char c) {
+			if (!this.atEnd() && this.text.charAt(this.pos) == c) {
+				this.pos++;
+				return true;
+			}
+			return false;
+		}
+
+		void expect(final char c) {
+			if (!this.accept(c)) {
+				throw this.invalid();
+			}
+		}
+
+		long number(final int minDigits, final int maxDigits) {
+			long value = 0L;
+			int digits = 0;
+			while (digits < maxDigits && !this.atEnd()) {
+				char c = this.text.charAt(this.pos);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				value = value * 10 + (c - '0');
+				digits++;
+				this.pos++;
+			}
+			if (digits < minDigits) {
+				throw this.invalid();
+			}
+			return value;
+		}
+
+		int offsetSeconds() {
+			if (this.accept('Z') || this.accept('z')) {
+				return 0;
+			}
+			int sign;
+			if (this.accept('+')) {
+				sign = 1;
+			} else if (this.accept('-')) {
+				sign = -1;
+			} else {
+				throw this.invalid();
+			}
+			int hours = (int) this.number(2, 2);
+			int minutes = 0;
+			int seconds = 0;
+			if (!this.atEnd()) {
+				boolean extended = this.accept(':');
+				minutes = (int) this.number(2, 2);
+				if (!this.atEnd()) {
+					// Seconds use the same form as the minutes
+					if (extended) {
+						this.expect(':');
+					}
+					seconds = (int) this.number(2, 2);
+				}
+			}
+			if (hours > 18 || minutes > 59 || seconds > 59) {
+				throw this.invalid();
+			}
+			return sign * (hours * 3600 + minutes * 60 + seconds);
+		}
+
+		IllegalArgumentException invalid() {
+			return new IllegalArgumentException("Not an ISO 8601 date time, at "
+					+ this.pos + ": " + this.text);
+		}
+	}
+
+	/**
+	 * Builds {@link Iso8601Format}s. Builders aren't thread safe, the formats
+	 * they build are.
+	 */
+	public static final class Builder {
+		TimeZone zone = TimeZone.getTimeZone("UTC");
+		Precision precision = Precision.MILLISECONDS;
+		boolean offsetShown = true;
+
+		Builder() {
+		}
+
+		/**
+		 * @param zone
+		 *            the time zone to write dates in, default UTC
+		 * @return this builder
+		 */
+		public Builder setTimeZone(final TimeZone zone) {
+			if (zone == null) {
+				throw new IllegalArgumentException("zone can't be null.");
+			}
+			this.zone = zone;
+			return this;
+		}
+
+		/**
+		 * @param precision
+		 *            the finest unit written, default milliseconds
+		 * @return this builder
+		 */
+		public Builder setPrecision(final Precision precision) {
+			if (precision == null) {
+				throw new IllegalArgumentException("precision can't be null.");
+			}
+			this.precision = precision;
+			return this;
+		}
+
+		/**
+		 * @param offsetShown
+		 *            true to write the offset from UTC, default true
+		 * @return this builder
+		 */
+		public Builder setOffsetShown(final boolean offsetShown) {
+			this.offsetShown = offsetShown;
+			return this;
+		}
+
+		/**
+		 * @return a new format with the builder's settings
+		 */
+		public Iso8601Format build() {
+			return new Iso8601Format(this);
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package org.opf_labs.utils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+import org.opf_labs.utils.ProcessRunnerImpl.CollectionOverflow;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * <p>
+ * Immutable description of a command to run: the command and arguments,
+ * environment, starting directory, timeout and collection limits. A command
+ * is built once with a {@link Builder} and can then be executed any number of
+ * times, from any number of threads at once. Each execution runs its own
+ * process and returns its own immutable {@link ProcessResult}, so nothing is
+ * shared between executions.
+ * </p>
+ * <p>
+ * Input is given per execution, output and error are always collected in
+ * memory, up to the collection limits.
+ * </p>
+ *
+ * <pre>
+ * ProcessCommand identify = ProcessCommand.builder(&quot;file&quot;, &quot;-b&quot;, &quot;-&quot;)
+ * 		.setTimeout(5000).build();
+ * ProcessResult result = identify.execute(new FileInputStream(file));
+ * </pre>
+ */
+public final class ProcessCommand {
+	private final List<String> command;
+	private final Map<String, String> enviroment;
+	private final File startingDir;
+	private final long timeout;
+	private final long killGracePeriod;
+	private final ProcessLimits limits;
+	private final int maxOutput;
+	private final int maxError;
+	private final CollectionOverflow overflow;
+	private final int pumpBufferSize;
+	private final ProcessRunnerListener listener;
+
+	ProcessCommand(final Builder builder) {
+		this.command = Collections.unmodifiableList(new ArrayList<String>(
+				builder.command));
+		this.enviroment = Collections
+				.unmodifiableMap(new LinkedHashMap<String, String>(
+						builder.enviroment));
+		this.startingDir = builder.startingDir;
+		this.timeout = builder.timeout;
+		this.killGracePeriod = builder.killGracePeriod;
+		this.limits = builder.limits;
+		this.maxOutput = builder.maxOutput;
+		this.maxError = builder.maxError;
+		this.overflow = builder.overflow;
+		this.pumpBufferSize = builder.pumpBufferSize;
+		this.listener = builder.listener;
+	}
+
+	/**
+	 * @param command
+	 *            the command and its arguments
+	 * @return a builder for the command
+	 */
+	public static Builder builder(final String... command) {
+		return builder(Arrays.asList(command));
+	}
+
+	/**
+	 * @param command
+	 *            the command and its arguments
+	 * @return a builder for the command
+	 */
+	public static Builder builder(final List<String> command) {
+		return new Builder(command);
+	}
+
+	/**
+	 * @return a builder holding this command's settings, for making a
+	 *         variation of it
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder(this.command);
+		builder.enviroment.putAll(this.enviroment);
+		builder.startingDir = this.startingDir;
+		builder.timeout = this.timeout;
+		builder.killGracePeriod = this.killGracePeriod;
+		builder.limits = this.limits;
+		builder.maxOutput = this.maxOutput;
+		builder.maxError = this.maxError;
+		builder.overflow = this.overflow;
+		builder.pumpBufferSize = this.pumpBufferSize;
+		builder.listener = this.listener;
+		return builder;
+	}
+
+	/**
+	 * @param arguments
+	 *            arguments to append to the command
+	 * @return a command with the same settings as this one, and the
+	 *         arguments appended
+	 */
+	public ProcessCommand withArguments(final List<String> arguments) {
+		Builder builder = this.toBuilder();
+		builder.command.addAll(arguments);
+		return builder.build();
+	}
+
+	/**
+	 * Run the command with no input and wait for it to finish.
+	 *
+	 * @return the result of the run
+	 * @throws ProcessRunnerException
+	 *             when the process can't be started or run
+	 */
+	public ProcessResult execute() throws ProcessRunnerException {
+		return this.execute(null, null, ProcessRunnerImpl.defaultPumpExecutor());
+	}
+
+	/**
+	 * Run the command, feeding it the input, and wait for it to finish.
+	 *
+	 * @param input
+	 *            the input for the process, or null for none
+	 * @return the result of the run
+	 * @throws ProcessRunnerException
+	 *             when the process can't be started or run
+	 */
+	public ProcessResult execute(final InputStream input)
+			throws ProcessRunnerException {
+		return this.execute(input, null, ProcessRunnerImpl.defaultPumpExecutor());
+	}
+
+	/**
+	 * Run the command with its input redirected from a file, and wait for it
+	 * to finish.
+	 *
+	 * @param inputFile
+	 *            the file to read input from, or null for none
+	 * @return the result of the run
+	 * @throws ProcessRunnerException
+	 *             when the process can't be started or run
+	 */
+	public ProcessResult execute(final File inputFile)
+			throws ProcessRunnerException {
+		return this.execute(null, inputFile,
+				ProcessRunnerImpl.defaultPumpExecutor());
+	}
+
+	/**
+	 * Start the command, feeding it the input, and return straight away. The
+	 * future completes once the process has exited and its output has been
+	 * drained, without a thread waiting on the process where the runtime
+	 * supports exit notification. Cancelling the future destroys the process.
+	 *
+	 * @param input
+	 *            the input for the process, or null for none
+	 * @return a future holding the result of the run, failed with a
+	 *         {@link ProcessRunnerException} when the process can't be started
+	 *         or run
+	 */
+	public ListenableFuture<ProcessResult> executeAsync(final InputStream input) {
+		ListenableFuture<ProcessRunner> run = this.newRunner(input, null,
+				ProcessRunnerImpl.defaultPumpExecutor()).executeAsync();
+		// Cancelling the transformed future cancels the run, destroying it
+		return Futures.transform(run,
+				new Function<ProcessRunner, ProcessResult>() {
+					@Override
+					public ProcessResult apply(final ProcessRunner runner) {
+						return resultOf((ProcessRunnerImpl) runner);
+					}
+				});
+	}
+
+	ProcessResult execute(final InputStream input, final File inputFile,
+			final Executor pumpExecutor) throws ProcessRunnerException {
+		ProcessRunnerImpl runner = this.newRunner(input, inputFile,
+				pumpExecutor);
+		runner.execute();
+		return resultOf(runner);
+	}
+
+	private ProcessRunnerImpl newRunner(final InputStream input,
+			final File inputFile, final Executor pumpExecutor) {
+		// A runner is cheap, it's the process that costs, and a fresh runner
+		// per run keeps executions from sharing any mutable state
+		ProcessRunnerImpl runner = new ProcessRunnerImpl(pumpExecutor);
+		runner.setCommand(this.command);
+		if (!this.enviroment.isEmpty()) {
+			runner.setEnviroment(this.enviroment);
+		}
+		runner.setStartingDir(this.startingDir);
+		runner.setTimeout(this.timeout);
+		runner.setKillGracePeriod(this.killGracePeriod);
+		runner.setLimits(this.limits);
+		runner.setOutputCollectionByteSize(this.maxOutput);
+		runner.setErrorCollectionByteSize(this.maxError);
+		runner.setCollectionOverflow(this.overflow);
+		runner.setPumpBufferSize(this.pumpBufferSize);
+		runner.setListener(this.listener);
+		if (inputFile != null) {
+			runner.setInputFile(inputFile);
+		} else {
+			runner.setInputStream(input);
+		}
+		return runner;
+	}
+
+	static ProcessResult resultOf(final ProcessRunnerImpl runner) {
+		return new ProcessResult(runner.getReturnCode(), runner.isTimedOut(),
+				runner.getProcessOutputAsBytes(),
+				runner.getProcessErrorAsBytes(),
+				runner.getOutputTruncatedByteCount(),
+				runner.getErrorTruncatedByteCount(),
+				runner.getOutputSpillFile(), runner.getErrorSpillFile(),
+				runner.getMetrics(), runner.getLimitHit());
+	}
+
+	/**
+	 * @return the command and its arguments, unmodifiable
+	 */
+	public List<String> getCommand() {
+		return this.command;
+	}
+
+	/**
+	 * @return the environment added to the inherited one, unmodifiable
+	 */
+	public Map<String, String> getEnviroment() {
+		return this.enviroment;
+	}
+
+	/**
+	 * @return the starting dir, or null for the current dir
+	 */
+	public File getStartingDir() {
+		return this.startingDir;
+	}
+
+	/**
+	 * @return the timeout in milliseconds
+	 */
+	public long getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * @return the milliseconds a stopped process tree has to exit before
+	 *         it's killed
+	 */
+	public long getKillGracePeriod() {
+		return this.killGracePeriod;
+	}
+
+	/**
+	 * @return the resource limits the command runs under, or null for none
+	 */
+	public ProcessLimits getLimits() {
+		return this.limits;
+	}
+
+	/**
+	 * @return the most output bytes collected in memory
+	 */
+	public int getOutputCollectionByteSize() {
+		return this.maxOutput;
+	}
+
+	/**
+	 * @return the most error bytes collected in memory
+	 */
+	public int getErrorCollectionByteSize() {
+		return this.maxError;
+	}
+
+	/**
+	 * @return what's done with bytes beyond the collection limits
+	 */
+	public CollectionOverflow getCollectionOverflow() {
+		return this.overflow;
+	}
+
+	@Override
+	public String toString() {
+		return "ProcessCommand " + this.command;
+	}
+
+	/**
+	 * Mutable builder for {@link ProcessCommand}s, the defaults match those
+	 * of {@link ProcessRunnerImpl}. A builder isn't thread safe, but the
+	 * commands it builds are.
+	 */
+	public static final class Builder {
+		private final List<String> command;
+		final Map<String, String> enviroment = new LinkedHashMap<String, String>();
+		File startingDir = null;
+		long timeout = Long.MAX_VALUE;
+		long killGracePeriod = ProcessRunnerImpl.DEFAULT_KILL_GRACE_PERIOD;
+		ProcessLimits limits = null;
+		int maxOutput = 31000;
+		int maxError = 31000;
+		CollectionOverflow overflow = CollectionOverflow.DISCARD;
+		int pumpBufferSize = StreamPumps.DEFAULT_BUFFER_SIZE;
+		ProcessRunnerListener listener = null;
+
+		Builder(final List<String> command) {
+			if (command == null || command.isEmpty()) {
+				throw new IllegalArgumentException("command can't be empty.");
+			}
+			this.command = new ArrayList<String>(command);
+		}
+
+		/**
+		 * @param enviroment
+		 *            variables to add to the inherited environment
+		 * @return this builder
+		 */
+		public Builder setEnviroment(final Map<String, String> enviroment) {
+			if (enviroment != null) {
+				this.enviroment.putAll(enviroment);
+			}
+			return this;
+		}
+
+		/**
+		 * @param startingDir
+		 *            the starting dir, or null for the current dir
+		 * @return this builder
+		 */
+		public Builder setStartingDir(final File startingDir) {
+			this.startingDir = startingDir;
+			return this;
+		}
+
+		/**
+		 * @param timeout
+		 *            the timeout in milliseconds, default Long.MAX_VALUE
+		 * @return this builder
+		 */
+		public Builder setTimeout(final long timeout) {
+			this.timeout = timeout;
+			return this;
+		}
+
+		/**
+		 * @param killGracePeriod
+		 *            the milliseconds a stopped process tree has to exit
+		 *            before it's killed, default 2000, see
+		 *            {@link ProcessRunnerImpl#setKillGracePeriod(long)}
+		 * @return this builder
+		 */
+		public Builder setKillGracePeriod(final long killGracePeriod) {
+			if (killGracePeriod < 0) {
+				throw new IllegalArgumentException(
+						"killGracePeriod can't be negative, was "
+								+ killGracePeriod);
+			}
+			this.killGracePeriod = killGracePeriod;
+			return this;
+		}
+
+		/**
+		 * @param limits
+		 *            the resource limits to run under, or null for none
+		 * @return this builder
+		 */
+		public Builder setLimits(final ProcessLimits limits) {
+			this.limits = limits;
+			return this;
+		}
+
+		/**
+		 * @param maxOutput
+		 *            the most output bytes collected in memory, default
+		 *            31000, negative for no limit
+		 * @return this builder
+		 */
+		public Builder setOutputCollectionByteSize(final int maxOutput) {
+			this.maxOutput = maxOutput;
+			return this;
+		}
+
+		/**
+		 * @param maxError
+		 *            the most error bytes collected in memory, default 31000,
+		 *            negative for no limit
+		 * @return this builder
+		 */
+		public Builder setErrorCollectionByteSize(final int maxError) {
+			this.maxError = maxError;
+			return this;
+		}
+
+		/**
+		 * @param overflow
+		 *            what's done with bytes beyond the collection limits,
+		 *            default {@link CollectionOverflow#DISCARD}
+		 * @return this builder
+		 */
+		public Builder setCollectionOverflow(final CollectionOverflow overflow) {
+			if (overflow == null) {
+				throw new IllegalArgumentException("overflow can't be null.");
+			}
+			this.overflow = overflow;
+			return this;
+		}
+
+		/**
+		 * @param pumpBufferSize
+		 *            the pump buffer size in bytes, default 64KiB
+		 * @return this builder
+		 */
+		public Builder setPumpBufferSize(final int pumpBufferSize) {
+			if (pumpBufferSize < 1) {
+				throw new IllegalArgumentException(
+						"pumpBufferSize must be at least 1, was "
+								+ pumpBufferSize);
+			}
+			this.pumpBufferSize = pumpBufferSize;
+			return this;
+		}
+
+		/**
+		 * @param listener
+		 *            told about every run of the command, must be thread safe
+		 *            if the command is run concurrently, or null for none
+		 * @return this builder
+		 */
+		public Builder setListener(final ProcessRunnerListener listener) {
+			this.listener = listener;
+			return this;
+		}
+
+		/**
+		 * @return a new immutable command with this builder's settings
+		 */
+		public ProcessCommand build() {
+			return new ProcessCommand(this);
+		}
+	}
+}
@@ -0,0 +1,489 @@
+package org.opf_labs.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Runs {@link ProcessRunner} jobs from many queues, at most
+ * {@link #getMaxConcurrentProcesses()} at once, choosing which queued job to
+ * run next rather than running them in the order they came. Each queue is
+ * typically a tenant or a kind of work, say the web UI and bulk
+ * re-validation.
+ * </p>
+ * <p>
+ * When a process slot is free the next job is picked by:
+ * </p>
+ * <ol>
+ * <li>{@link Priority}, strictly: a queued interactive job always runs
+ * before a normal or bulk one, unless its queue is at its cap;</li>
+ * <li>weighted fair share between the queues with jobs of that priority: a
+ * queue with twice the weight gets twice the process time, and a queue
+ * that was idle doesn't bank time to burst with later;</li>
+ * <li>earliest deadline within the queue, then the order submitted.</li>
+ * </ol>
+ * <p>
+ * A queue's concurrency cap holds however much else is waiting, so bulk
+ * work can be kept from filling every slot. Jobs still queued when their
+ * deadline passes are dropped without starting a process, their futures
+ * fail with a {@link ProcessRunnerException}.
+ * </p>
+ * <p>
+ * Process time is charged to a queue when a job is picked, at the queue's
+ * average run time, and corrected to the actual run time when it finishes.
+ * </p>
+ */
+public final class ProcessJobScheduler {
+	/** Weight of each new run time in a queue's average */
+	private static final double RUN_TIME_WEIGHT = 0.2;
+	/** Run time charged for a queue's first job, in nanoseconds */
+	private static final double INITIAL_RUN_TIME = TimeUnit.MILLISECONDS
+			.toNanos(10);
+
+	/**
+	 * Priority classes, highest first.
+	 */
+	public enum Priority {
+		/** Someone is waiting on the result */
+		INTERACTIVE,
+		/** The default */
+		NORMAL,
+		/** Background work that can wait */
+		BULK
+	}
+
+	private final int maxConcurrentProcesses;
+	private final ExecutorService executor;
+	private final Map<String, JobQueue> queues = new LinkedHashMap<String, JobQueue>();
+	private int running = 0;
+	private long sequence = 0L;
+	private long dropped = 0L;
+	/** Virtual time of the last job picked, idle queues restart from here */
+	private double virtualTime = 0;
+	private boolean shutdown = false;
+
+	/**
+	 * @param maxConcurrentProcesses
+	 *            the maximum number of child processes to run at once
+	 */
+	public ProcessJobScheduler(final int maxConcurrentProcesses) {
+		if (maxConcurrentProcesses < 1) {
+			throw new IllegalArgumentException(
+					"maxConcurrentProcesses must be at least 1, was "
+							+ maxConcurrentProcesses);
+		}
+		this.maxConcurrentProcesses = maxConcurrentProcesses;
+		this.executor = new ThreadPoolExecutor(maxConcurrentProcesses,
+				maxConcurrentProcesses, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+						.setNameFormat("process-scheduler-%d").setDaemon(true)
+						.build());
+	}
+
+	/**
+	 * @return the maximum number of child processes run at once
+	 */
+	public int getMaxConcurrentProcesses() {
+		return this.maxConcurrentProcesses;
+	}
+
+	/**
+	 * Add a queue, or change the weight and cap of an existing one. Queues
+	 * that aren't added are made on first use with a weight of 1 and no cap.
+	 *
+	 * @param name
+	 *            the queue's name
+	 * @param weight
+	 *            the queue's share of process time relative to other queues
+	 * @param maxConcurrentProcesses
+	 *            the most of the queue's jobs run at once
+	 */
+	public synchronized void setQueue(final String name, final int weight,
+			final int maxConcurrentProcesses) {
+		if (name == null) {
+			throw new IllegalArgumentException("name can't be null.");
+		}
+		if (weight < 1 || maxConcurrentProcesses < 1) {
+			throw new IllegalArgumentException(
+					"weight and maxConcurrentProcesses must be at least 1, were "
+							+ weight + " and " + maxConcurrentProcesses);
+		}
+		JobQueue queue = this.queue(name);
+		queue.weight = weight;
+		queue.cap = maxConcurrentProcesses;
+		this.dispatch();
+	}
+
+	/**
+	 * Queue a job with no deadline.
+	 *
+	 * @param queue
+	 *            the name of the queue
+	 * @param priority
+	 *            the job's priority
+	 * @param runner
+	 *            the configured runner to execute
+	 * @return a future that completes with the finished runner
+	 */
+	public ListenableFuture<ProcessRunner> submit(final String queue,
+			final Priority priority, final ProcessRunner runner) {
+		return this.submit(queue, priority, runner, Long.MAX_VALUE,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Queue a job that must start before a deadline.
+	 *
+	 * @param queue
+	 *            the name of the queue
+	 * @param priority
+	 *            the job's priority
+	 * @param runner
+	 *            the configured runner to execute
+	 * @param deadline
+	 *            how long from now the job may wait to start, after which
+	 *            it's dropped, Long.MAX_VALUE for no deadline
+	 * @param unit
+	 *            the time unit of the deadline
+	 * @return a future that completes with the finished runner, or fails if
+	 *         the deadline passes first
+	 */
+	public ListenableFuture<ProcessRunner> submit(final String queue,
+			final Priority priority, final ProcessRunner runner,
+			final long deadline, final TimeUnit unit) {
+		if (queue == null || priority == null || runner == null
+				|| unit == null) {
+			throw new IllegalArgumentException(
+					"queue, priority, runner and unit can't be null.");
+		}
+		final SettableFuture<ProcessRunner> future = SettableFuture.create();
+		long wait = unit.toNanos(deadline);
+		boolean timed = deadline != Long.MAX_VALUE && wait != Long.MAX_VALUE;
+		final Job job;
+		synchronized (this) {
+			if (this.shutdown) {
+				throw new IllegalStateException("Scheduler is shut down.");
+			}
+			job = new Job(this.queue(queue), priority, runner, timed,
+					System.nanoTime() + wait, this.sequence++, future);
+			JobQueue jobQueue = job.queue;
+			if (jobQueue.isIdle()) {
+				jobQueue.virtualTime = Math.max(jobQueue.virtualTime,
+						this.virtualTime);
+			}
+			jobQueue.jobs.get(priority).add(job);
+			jobQueue.queued++;
+			if (timed) {
+				// Scheduled before dispatching, so starting the job cancels it
+				job.expiry = ProcessRunnerImpl.watchdog().schedule(
+						new Runnable() {
+							@SuppressWarnings("synthetic-access")
+							@Override
+							public void run() {
+								ProcessJobScheduler.this.expire(job);
+							}
+						}, wait, TimeUnit.NANOSECONDS);
+			}
+			this.dispatch();
+		}
+		future.addListener(new Runnable() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public void run() {
+				if (future.isCancelled()) {
+					ProcessJobScheduler.this.remove(job);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		return future;
+	}
+
+	/**
+	 * @param queue
+	 *            the name of a queue
+	 * @return the number of the queue's jobs waiting to run
+	 */
+	public synchronized int getQueuedCount(final String queue) {
+		JobQueue jobQueue = this.queues.get(queue);
+		return (jobQueue == null) ? 0 : jobQueue.queued;
+	}
+
+	/**
+	 * @param queue
+	 *            the name of a queue
+	 * @return the number of the queue's jobs running now
+	 */
+	public synchronized int getRunningCount(final String queue) {
+		JobQueue jobQueue = this.queues.get(queue);
+		return (jobQueue == null) ? 0 : jobQueue.running;
+	}
+
+	/**
+	 * @return the number of jobs running now, across all queues
+	 */
+	public synchronized int getRunningCount() {
+		return this.running;
+	}
+
+	/**
+	 * @return the number of jobs dropped because their deadline passed
+	 */
+	public synchronized long getDroppedCount() {
+		return this.dropped;
+	}
+
+	/**
+	 * @return the names of the queues
+	 */
+	public synchronized List<String> getQueueNames() {
+		return Collections.unmodifiableList(new ArrayList<String>(this.queues
+				.keySet()));
+	}
+
+	/**
+	 * Stop accepting new jobs, queued and running jobs are still completed,
+	 * unless their deadlines pass first.
+	 */
+	public synchronized void shutdown() {
+		this.shutdown = true;
+		this.shutdownIfDone();
+	}
+
+	/**
+	 * @return true if {@link #shutdown()} has been called
+	 */
+	public synchronized boolean isShutdown() {
+		return this.shutdown;
+	}
+
+	/**
+	 * Block until all jobs have completed after a shutdown request, or the
+	 * timeout occurs, or the current thread is interrupted.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the time unit of the timeout argument
+	 * @return true if the scheduler terminated, false if the timeout elapsed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		return this.executor.awaitTermination(timeout, unit);
+	}
+
+	private JobQueue queue(final String name) {
+		JobQueue queue = this.queues.get(name);
+		if (queue == null) {
+			queue = new JobQueue();
+			this.queues.put(name, queue);
+		}
+		return queue;
+	}
+
+	/**
+	 * Start picked jobs until the slots are full or nothing can be picked.
+	 * Called holding the lock.
+	 */
+	private void dispatch() {
+		while (this.running < this.maxConcurrentProcesses) {
+			Job job = this.pick();
+			if (job == null) {
+				break;
+			}
+			if (job.timed && job.deadline - System.nanoTime() <= 0) {
+				this.drop(job);
+				continue;
+			}
+			this.start(job);
+		}
+		this.shutdownIfDone();
+	}
+
+	private Job pick() {
+		for (Priority priority : Priority.values()) {
+			JobQueue best = null;
+			for (JobQueue queue : this.queues.values()) {
+				if (queue.running < queue.cap
+						&& !queue.jobs.get(priority).isEmpty()
+						&& (best == null || queue.virtualTime < best.virtualTime)) {
+					best = queue;
+				}
+			}
+			if (best != null) {
+				Job job = best.jobs.get(priority).poll();
+				best.queued--;
+				return job;
+			}
+		}
+		return null;
+	}
+
+	private void start(final Job job) {
+		final JobQueue queue = job.queue;
+		this.virtualTime = Math.max(this.virtualTime, queue.virtualTime);
+		final double charged = queue.runTime / queue.weight;
+		queue.virtualTime += charged;
+		queue.running++;
+		this.running++;
+		if (job.expiry != null) {
+			job.expiry.cancel(false);
+		}
+		this.executor.execute(new Runnable() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public void run() {
+				long started = System.nanoTime();
+				try {
+					if (!job.future.isCancelled()) {
+						job.runner.execute();
+						job.future.set(job.runner);
+					}
+				} catch (ProcessRunnerException excep) {
+					job.future.setException(excep);
+				} catch (RuntimeException excep) {
+					job.future.setException(excep);
+				} catch (Error excep) {
+					// Don't leave the caller waiting forever
+					job.future.setException(excep);
+					throw excep;
+				} finally {
+					ProcessJobScheduler.this.finished(job, charged,
+							System.nanoTime() - started);
+				}
+			}
+		});
+	}
+
+	private synchronized void finished(final Job job, final double charged,
+			final long runTime) {
+		JobQueue queue = job.queue;
+		queue.running--;
+		this.running--;
+		// Replace the estimate charged at the start with the actual run time
+		queue.virtualTime += runTime / (double) queue.weight - charged;
+		queue.runTime += RUN_TIME_WEIGHT * (runTime - queue.runTime);
+		this.dispatch();
+	}
+
+	private synchronized void expire(final Job job) {
+		if (job.queue.jobs.get(job.priority).remove(job)) {
+			job.queue.queued--;
+			this.drop(job);
+			this.shutdownIfDone();
+		}
+	}
+
+	private synchronized void remove(final Job job) {
+		if (job.queue.jobs.get(job.priority).remove(job)) {
+			job.queue.queued--;
+			if (job.expiry != null) {
+				job.expiry.cancel(false);
+			}
+			this.shutdownIfDone();
+		}
+	}
+
+	private void drop(final Job job) {
+		this.dropped++;
+		job.future.setException(new ProcessRunnerException(
+				"Deadline passed before the process could be started."));
+	}
+
+	private void shutdownIfDone() {
+		if (!this.shutdown || this.running > 0) {
+			return;
+		}
+		for (JobQueue queue : this.queues.values()) {
+			if (queue.queued > 0) {
+				return;
+			}
+		}
+		this.executor.shutdown();
+	}
+
+	/**
+	 * A queue's jobs, by priority, and its share of process time. Guarded by
+	 * the scheduler's lock.
+	 */
+	private static final class JobQueue {
+		final Map<Priority, PriorityQueue<Job>> jobs = new EnumMap<Priority, PriorityQueue<Job>>(
+				Priority.class);
+		int weight = 1;
+		int cap = Integer.MAX_VALUE;
+		int queued = 0;
+		int running = 0;
+		/** Process time received, in nanoseconds over the weight */
+		double virtualTime = 0;
+		/** Average run time, in nanoseconds */
+		double runTime = INITIAL_RUN_TIME;
+
+		JobQueue() {
+			for (Priority priority : Priority.values()) {
+				this.jobs.put(priority, new PriorityQueue<Job>());
+			}
+		}
+
+		boolean isIdle() {
+			return this.queued == 0 && this.running == 0;
+		}
+	}
+
+	/**
+	 * A queued job, ordered by deadline then submission.
+	 */
+	private static final class Job implements Comparable<Job> {
+		final JobQueue queue;
+		final Priority priority;
+		final ProcessRunner runner;
+		final boolean timed;
+		final long deadline;
+		final long sequence;
+		final SettableFuture<ProcessRunner> future;
+		volatile ScheduledFuture<?> expiry = null;
+
+		Job(final JobQueue queue, final Priority priority,
+				final ProcessRunner runner, final boolean timed,
+				final long deadline, final long sequence,
+				final SettableFuture<ProcessRunner> future) {
+			this.queue = queue;
+			this.priority = priority;
+			this.runner = runner;
+			this.timed = timed;
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.future = future;
+		}
+
+		@Override
+		public int compareTo(final Job other) {
+			// No deadline sorts after every deadline, and nanoTime values are
+			// compared by difference
+			if (this.timed != other.timed) {
+				return this.timed ? -1 : 1;
+			}
+			if (this.timed && this.deadline != other.deadline) {
+				return (this.deadline - other.deadline < 0) ? -1 : 1;
+			}
+			return (this.sequence < other.sequence) ? -1 : 1;
+		}
+	}
+}
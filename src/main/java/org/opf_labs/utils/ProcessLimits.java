@@ -0,0 +1,447 @@
+package org.opf_labs.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * <p>
+ * Immutable operating system resource limits for a spawned process and its
+ * children, so that a tool blowing up on a malformed file can't take the
+ * whole host down with it. Limits are only applied on Linux, and only those
+ * that are set, see {@link Builder}.
+ * </p>
+ * <p>
+ * The rlimits (CPU seconds, address space, file size and open files) are
+ * applied by wrapping the command in <code>prlimit</code>, or in a
+ * <code>/bin/sh</code> <code>ulimit</code> prologue where there's no
+ * <code>prlimit</code>. The nice level is applied by wrapping the command in
+ * <code>nice</code>. A memory limit needs a cgroup v2 directory delegated to
+ * this user, each run gets its own child cgroup that's removed once the
+ * run has finished.
+ * </p>
+ * <p>
+ * Which limit a run hit, where that can be told, is reported as a
+ * {@link Limit}: CPU time and file size from the SIGXCPU and SIGXFSZ exit
+ * statuses, memory from the cgroup's <code>memory.events</code>. Hitting the
+ * address space or open files limits makes allocations or opens fail inside
+ * the tool, which shows up only in its own exit code.
+ * </p>
+ */
+public final class ProcessLimits {
+	/**
+	 * A limit a run can be seen to have hit.
+	 */
+	public enum Limit {
+		/** Used more CPU seconds than allowed, killed with SIGXCPU */
+		CPU_TIME,
+		/** Tried to write a file bigger than allowed, killed with SIGXFSZ */
+		FILE_SIZE,
+		/** Used more memory than its cgroup allows, killed by the OOM killer */
+		MEMORY;
+	}
+
+	/** Exit value of a process killed by a signal, 128 plus the signal */
+	private static final int SIGNAL_EXIT_BASE = 128;
+	private static final int SIGXCPU = 24;
+	private static final int SIGXFSZ = 25;
+	private static final String PRLIMIT = findExecutable("prlimit");
+	private static final boolean IS_LINUX = System.getProperty("os.name", "")
+			.toLowerCase().startsWith("linux");
+
+	private final long cpuSeconds;
+	private final long addressSpaceBytes;
+	private final long fileSizeBytes;
+	private final long openFiles;
+	private final Integer niceLevel;
+	private final long memoryBytes;
+	private final File cgroupParent;
+
+	ProcessLimits(final Builder builder) {
+		this.cpuSeconds = builder.cpuSeconds;
+		this.addressSpaceBytes = builder.addressSpaceBytes;
+		this.fileSizeBytes = builder.fileSizeBytes;
+		this.openFiles = builder.openFiles;
+		this.niceLevel = builder.niceLevel;
+		this.memoryBytes = builder.memoryBytes;
+		this.cgroupParent = builder.cgroupParent;
+	}
+
+	/**
+	 * @return a builder with no limits set
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return the most CPU seconds, or -1 for no limit
+	 */
+	public long getCpuSeconds() {
+		return this.cpuSeconds;
+	}
+
+	/**
+	 * @return the largest address space in bytes, or -1 for no limit
+	 */
+	public long getAddressSpaceBytes() {
+		return this.addressSpaceBytes;
+	}
+
+	/**
+	 * @return the largest file written in bytes, or -1 for no limit
+	 */
+	public long getFileSizeBytes() {
+		return this.fileSizeBytes;
+	}
+
+	/**
+	 * @return the most open files, or -1 for no limit
+	 */
+	public long getOpenFiles() {
+		return this.openFiles;
+	}
+
+	/**
+	 * @return the nice level, or null to inherit it
+	 */
+	public Integer getNiceLevel() {
+		return this.niceLevel;
+	}
+
+	/**
+	 * @return the most memory in bytes, or -1 for no limit
+	 */
+	public long getMemoryBytes() {
+		return this.memoryBytes;
+	}
+
+	/**
+	 * @return the cgroup v2 directory run cgroups are made in, or null
+	 */
+	public File getCgroupParent() {
+		return this.cgroupParent;
+	}
+
+	/**
+	 * Prepare a run under these limits, creating its cgroup if needed.
+	 *
+	 * @param command
+	 *            the command to limit
+	 * @return the prepared run, whose command is to be started instead
+	 * @throws IOException
+	 *             when the cgroup can't be created
+	 */
+	Applied apply(final List<String> command) throws IOException {
+		if (!IS_LINUX) {
+			return new Applied(command, null);
+		}
+		File cgroup = null;
+		if (this.memoryBytes >= 0) {
+			cgroup = new File(this.cgroupParent, "opf-"
+					+ UUID.randomUUID().toString());
+			if (!cgroup.mkdir()) {
+				throw new IOException("Couldn't create cgroup " + cgroup);
+			}
+			try {
+				write(new File(cgroup, "memory.max"),
+						Long.toString(this.memoryBytes));
+				// Stop it swapping instead of being killed, where allowed
+				File swap = new File(cgroup, "memory.swap.max");
+				if (swap.exists()) {
+					write(swap, "0");
+				}
+			} catch (IOException excep) {
+				cgroup.delete();
+				throw excep;
+			}
+		}
+		List<String> wrapped = new ArrayList<String>();
+		if (cgroup != null) {
+			// Join the cgroup, then become the command, so it and all of its
+			// children are accounted to the cgroup from the start
+			wrapped.add("/bin/sh");
+			wrapped.add("-c");
+			wrapped.add("echo $$ > \"$0\" && exec \"$@\"");
+			wrapped.add(new File(cgroup, "cgroup.procs").getPath());
+		}
+		if (this.niceLevel != null) {
+			wrapped.add("nice");
+			wrapped.add("-n");
+			wrapped.add(this.niceLevel.toString());
+		}
+		this.addRlimits(wrapped);
+		wrapped.addAll(command);
+		return new Applied(wrapped, cgroup);
+	}
+
+	private void addRlimits(final List<String> wrapped) {
+		if (this.cpuSeconds < 0 && this.addressSpaceBytes < 0
+				&& this.fileSizeBytes < 0 && this.openFiles < 0) {
+			return;
+		}
+		if (PRLIMIT != null) {
+			wrapped.add(PRLIMIT);
+			if (this.cpuSeconds >= 0) {
+				// A hard limit equal to the soft one is enforced with SIGKILL,
+				// one a second higher lets SIGXCPU say why the tool died
+				wrapped.add("--cpu=" + this.cpuSeconds + ":"
+						+ (this.cpuSeconds + 1));
+			}
+			addPrlimit(wrapped, "--as=", this.addressSpaceBytes);
+			addPrlimit(wrapped, "--fsize=", this.fileSizeBytes);
+			addPrlimit(wrapped, "--nofile=", this.openFiles);
+			wrapped.add("--");
+			return;
+		}
+		// POSIX sh ulimit units: -v in KiB and -f in 512 byte blocks
+		StringBuilder script = new StringBuilder();
+		if (this.cpuSeconds >= 0) {
+			// Soft first, the hard limit can't go below the soft one
+			addUlimit(script, "-S -t", this.cpuSeconds);
+			addUlimit(script, "-H -t", this.cpuSeconds + 1);
+		}
+		addUlimit(script, "-v", (this.addressSpaceBytes < 0) ? -1
+				: this.addressSpaceBytes / 1024);
+		addUlimit(script, "-f", (this.fileSizeBytes < 0) ? -1
+				: this.fileSizeBytes / 512);
+		addUlimit(script, "-n", this.openFiles);
+		script.append("exec \"$@\"");
+		wrapped.add("/bin/sh");
+		wrapped.add("-c");
+		wrapped.add(script.toString());
+		wrapped.add("sh");
+	}
+
+	private static void addPrlimit(final List<String> wrapped,
+			final String option, final long limit) {
+		if (limit >= 0) {
+			wrapped.add(option + limit);
+		}
+	}
+
+	private static void addUlimit(final StringBuilder script,
+			final String option, final long limit) {
+		if (limit >= 0) {
+			script.append("ulimit ").append(option).append(' ').append(limit)
+					.append(" && ");
+		}
+	}
+
+	private static void write(final File file, final String value)
+			throws IOException {
+		Files.write(value, file, Charsets.US_ASCII);
+	}
+
+	private static String findExecutable(final String name) {
+		String path = System.getenv("PATH");
+		if (path == null) {
+			return null;
+		}
+		for (String dir : path.split(File.pathSeparator)) {
+			File candidate = new File(dir, name);
+			if (candidate.isFile() && candidate.canExecute()) {
+				return candidate.getPath();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "ProcessLimits [cpuSeconds:" + this.cpuSeconds
+				+ ", addressSpaceBytes:" + this.addressSpaceBytes
+				+ ", fileSizeBytes:" + this.fileSizeBytes + ", openFiles:"
+				+ this.openFiles + ", niceLevel:" + this.niceLevel
+				+ ", memoryBytes:" + this.memoryBytes + "]";
+	}
+
+	/**
+	 * A run prepared under limits: the wrapped command, and its cgroup if it
+	 * has one.
+	 */
+	static final class Applied {
+		private final List<String> command;
+		private final File cgroup;
+
+		Applied(final List<String> command, final File cgroup) {
+			this.command = Collections.unmodifiableList(command);
+			this.cgroup = cgroup;
+		}
+
+		/**
+		 * @return the command to start
+		 */
+		List<String> getCommand() {
+			return this.command;
+		}
+
+		/**
+		 * Work out which limit the finished run hit, and remove its cgroup.
+		 *
+		 * @param exitValue
+		 *            the exit value of the run
+		 * @return the limit hit, or null if none was seen
+		 */
+		Limit finish(final int exitValue) {
+			Limit hit = null;
+			if (exitValue == SIGNAL_EXIT_BASE + SIGXCPU) {
+				hit = Limit.CPU_TIME;
+			} else if (exitValue == SIGNAL_EXIT_BASE + SIGXFSZ) {
+				hit = Limit.FILE_SIZE;
+			}
+			if (this.cgroup != null) {
+				if (this.oomKilled()) {
+					hit = Limit.MEMORY;
+				}
+				this.removeCgroup();
+			}
+			return hit;
+		}
+
+		private boolean oomKilled() {
+			try {
+				for (String line : Files.readLines(new File(this.cgroup,
+						"memory.events"), Charsets.US_ASCII)) {
+					if (line.startsWith("oom_kill ")
+							&& !line.equals("oom_kill 0")) {
+						return true;
+					}
+				}
+			} catch (IOException excep) {
+				// No events, so no sign of it
+			}
+			return false;
+		}
+
+		private void removeCgroup() {
+			// Kill anything left behind, a populated cgroup can't be removed
+			File kill = new File(this.cgroup, "cgroup.kill");
+			if (kill.exists()) {
+				try {
+					write(kill, "1");
+				} catch (IOException excep) {
+					// Older kernel, the rmdir may fail and leave it behind
+				}
+			}
+			this.cgroup.delete();
+		}
+	}
+
+	/**
+	 * Mutable builder for {@link ProcessLimits}, every limit starts unset.
+	 */
+	public static final class Builder {
+		long cpuSeconds = -1;
+		long addressSpaceBytes = -1;
+		long fileSizeBytes = -1;
+		long openFiles = -1;
+		Integer niceLevel = null;
+		long memoryBytes = -1;
+		File cgroupParent = null;
+
+		Builder() {
+		}
+
+		/**
+		 * @param cpuSeconds
+		 *            the most CPU seconds the process may use (RLIMIT_CPU)
+		 * @return this builder
+		 */
+		public Builder setCpuSeconds(final long cpuSeconds) {
+			this.cpuSeconds = checkLimit("cpuSeconds", cpuSeconds);
+			return this;
+		}
+
+		/**
+		 * @param addressSpaceBytes
+		 *            the largest virtual address space in bytes (RLIMIT_AS)
+		 * @return this builder
+		 */
+		public Builder setAddressSpaceBytes(final long addressSpaceBytes) {
+			this.addressSpaceBytes = checkLimit("addressSpaceBytes",
+					addressSpaceBytes);
+			return this;
+		}
+
+		/**
+		 * @param fileSizeBytes
+		 *            the largest file the process may write in bytes
+		 *            (RLIMIT_FSIZE)
+		 * @return this builder
+		 */
+		public Builder setFileSizeBytes(final long fileSizeBytes) {
+			this.fileSizeBytes = checkLimit("fileSizeBytes", fileSizeBytes);
+			return this;
+		}
+
+		/**
+		 * @param openFiles
+		 *            the most files the process may have open
+		 *            (RLIMIT_NOFILE)
+		 * @return this builder
+		 */
+		public Builder setOpenFiles(final long openFiles) {
+			this.openFiles = checkLimit("openFiles", openFiles);
+			return this;
+		}
+
+		/**
+		 * @param niceLevel
+		 *            the nice level to add, from -20 to 19, only root can use
+		 *            negative values
+		 * @return this builder
+		 */
+		public Builder setNiceLevel(final int niceLevel) {
+			if (niceLevel < -20 || niceLevel > 19) {
+				throw new IllegalArgumentException(
+						"niceLevel must be from -20 to 19, was " + niceLevel);
+			}
+			this.niceLevel = Integer.valueOf(niceLevel);
+			return this;
+		}
+
+		/**
+		 * Limit the memory of the process and all of its children with a
+		 * cgroup v2 memory controller.
+		 *
+		 * @param memoryBytes
+		 *            the most memory in bytes
+		 * @param cgroupParent
+		 *            a cgroup v2 directory this user can create cgroups in,
+		 *            with the memory controller enabled for its children
+		 * @return this builder
+		 */
+		public Builder setMemoryBytes(final long memoryBytes,
+				final File cgroupParent) {
+			if (cgroupParent == null) {
+				throw new IllegalArgumentException(
+						"cgroupParent can't be null.");
+			}
+			this.memoryBytes = checkLimit("memoryBytes", memoryBytes);
+			this.cgroupParent = cgroupParent;
+			return this;
+		}
+
+		/**
+		 * @return new immutable limits with this builder's settings
+		 */
+		public ProcessLimits build() {
+			return new ProcessLimits(this);
+		}
+
+		private static long checkLimit(final String name, final long limit) {
+			if (limit < 0) {
+				throw new IllegalArgumentException(name
+						+ " can't be negative, was " + limit);
+			}
+			return limit;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package org.opf_labs.utils;
+
+import java.util.List;
+
+/**
+ * Immutable timing and volume breakdown of a single process run. Times are
+ * in nanoseconds, measured with {@link System#nanoTime()}. Byte counts only
+ * cover bytes that passed through the JVM, streams redirected to or from
+ * files count as zero.
+ */
+public final class ProcessMetrics {
+	private final String commandName;
+	private final long spawnNanos;
+	private final long wallNanos;
+	private final long firstByteNanos;
+	private final long bytesIn;
+	private final long bytesOut;
+	private final long bytesErr;
+	private final long bytesTruncated;
+	private final int returnCode;
+	private final boolean timedOut;
+	private final boolean killed;
+
+	ProcessMetrics(final Builder builder) {
+		this.commandName = builder.commandName;
+		this.spawnNanos = builder.spawnNanos;
+		this.wallNanos = builder.wallNanos;
+		this.firstByteNanos = builder.firstByteNanos;
+		this.bytesIn = builder.bytesIn;
+		this.bytesOut = builder.bytesOut;
+		this.bytesErr = builder.bytesErr;
+		this.bytesTruncated = builder.bytesTruncated;
+		this.returnCode = builder.returnCode;
+		this.timedOut = builder.timedOut;
+		this.killed = builder.killed;
+	}
+
+	/**
+	 * @param commandName
+	 *            the name of the command that was run
+	 * @return a builder with every time and count zero, no first byte, and
+	 *         neither timed out nor killed
+	 */
+	static Builder builder(final String commandName) {
+		return new Builder(commandName);
+	}
+
+	/**
+	 * The name metrics are grouped under, the file name of the command
+	 * without its directory, so <code>/usr/bin/file</code> becomes
+	 * <code>file</code>.
+	 *
+	 * @param command
+	 *            the command and arguments
+	 * @return the command name, or an empty string if there's no command
+	 */
+	public static String commandName(final List<String> command) {
+		if (command == null || command.isEmpty() || command.get(0) == null) {
+			return "";
+		}
+		String executable = command.get(0);
+		int slash = Math.max(executable.lastIndexOf('/'),
+				executable.lastIndexOf('\\'));
+		return executable.substring(slash + 1);
+	}
+
+	/**
+	 * @return the name of the command that was run
+	 */
+	public String getCommandName() {
+		return this.commandName;
+	}
+
+	/**
+	 * @return the time taken to fork and exec the process
+	 */
+	public long getSpawnNanos() {
+		return this.spawnNanos;
+	}
+
+	/**
+	 * @return the time from starting the process to its output being fully
+	 *         drained
+	 */
+	public long getWallNanos() {
+		return this.wallNanos;
+	}
+
+	/**
+	 * @return the time from starting the process to the first byte of output
+	 *         or error, or -1 if there was none
+	 */
+	public long getFirstByteNanos() {
+		return this.firstByteNanos;
+	}
+
+	/**
+	 * @return the number of bytes fed to the process
+	 */
+	public long getBytesIn() {
+		return this.bytesIn;
+	}
+
+	/**
+	 * @return the number of bytes read from the process output
+	 */
+	public long getBytesOut() {
+		return this.bytesOut;
+	}
+
+	/**
+	 * @return the number of bytes read from the process error
+	 */
+	public long getBytesErr() {
+		return this.bytesErr;
+	}
+
+	/**
+	 * @return the number of output and error bytes that didn't fit in memory
+	 */
+	public long getBytesTruncated() {
+		return this.bytesTruncated;
+	}
+
+	/**
+	 * @return the process return code
+	 */
+	public int getReturnCode() {
+		return this.returnCode;
+	}
+
+	/**
+	 * @return true if the process exceeded its timeout
+	 */
+	public boolean isTimedOut() {
+		return this.timedOut;
+	}
+
+	/**
+	 * @return true if the process was destroyed, on timeout or interrupt
+	 */
+	public boolean isKilled() {
+		return this.killed;
+	}
+
+	@Override
+	public String toString() {
+		return "ProcessMetrics [command:" + this.commandName + ", spawn:"
+				+ this.spawnNanos + "ns, wall:" + this.wallNanos
+				+ "ns, firstByte:" + this.firstByteNanos + "ns, in:"
+				+ this.bytesIn + ", out:" + this.bytesOut + ", err:"
+				+ this.bytesErr + ", truncated:" + this.bytesTruncated
+				+ ", rc:" + this.returnCode + ", timedOut:" + this.timedOut
+				+ ", killed:" + this.killed + "]";
+	}
+
+	/**
+	 * Mutable builder for {@link ProcessMetrics}.
+	 */
+	static final class Builder {
+		final String commandName;
+		long spawnNanos = 0L;
+		long wallNanos = 0L;
+		long firstByteNanos = -1L;
+		long bytesIn = 0L;
+		long bytesOut = 0L;
+		long bytesErr = 0L;
+		long bytesTruncated = 0L;
+		int returnCode = 0;
+		boolean timedOut = false;
+		boolean killed = false;
+
+		Builder(final String commandName) {
+			if (commandName == null) {
+				throw new IllegalArgumentException("commandName can't be null.");
+			}
+			this.commandName = commandName;
+		}
+
+		Builder setSpawnNanos(final long spawnNanos) {
+			this.spawnNanos = spawnNanos;
+			return this;
+		}
+
+		Builder setWallNanos(final long wallNanos) {
+			this.wallNanos = wallNanos;
+			return this;
+		}
+
+		Builder setFirstByteNanos(final long firstByteNanos) {
+			this.firstByteNanos = firstByteNanos;
+			return this;
+		}
+
+		Builder setBytesIn(final long bytesIn) {
+			this.bytesIn = bytesIn;
+			return this;
+		}
+
+		Builder setBytesOut(final long bytesOut) {
+			this.bytesOut = bytesOut;
+			return this;
+		}
+
+		Builder setBytesErr(final long bytesErr) {
+			this.bytesErr = bytesErr;
+			return this;
+		}
+
+		Builder setBytesTruncated(final long bytesTruncated) {
+			this.bytesTruncated = bytesTruncated;
+			return this;
+		}
+
+		Builder setReturnCode(final int returnCode) {
+			this.returnCode = returnCode;
+			return this;
+		}
+
+		Builder setTimedOut(final boolean timedOut) {
+			this.timedOut = timedOut;
+			return this;
+		}
+
+		Builder setKilled(final boolean killed) {
+			this.killed = killed;
+			return this;
+		}
+
+		ProcessMetrics build() {
+			return new ProcessMetrics(this);
+		}
+	}
+}
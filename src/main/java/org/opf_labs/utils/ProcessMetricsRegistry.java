@@ -0,0 +1,325 @@
+package org.opf_labs.utils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link ProcessRunnerListener} that aggregates process metrics per command
+ * name, as counts and histograms, for finding slow tools and capacity
+ * planning. The registry is thread safe and lock free, so a single instance
+ * can be shared by every runner in the JVM.
+ */
+public final class ProcessMetricsRegistry implements ProcessRunnerListener {
+	private final ConcurrentMap<String, CommandStats> stats = new ConcurrentHashMap<String, CommandStats>();
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerListener#processFinished(org.opf_labs.utils.ProcessMetrics)
+	 */
+	@Override
+	public void processFinished(final ProcessMetrics metrics) {
+		this.statsFor(metrics.getCommandName()).record(metrics);
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerListener#processFailed(java.lang.String,
+	 *      java.lang.Throwable)
+	 */
+	@Override
+	public void processFailed(final String commandName, final Throwable cause) {
+		this.statsFor(commandName).failures.incrementAndGet();
+	}
+
+	/**
+	 * @param commandName
+	 *            the command name
+	 * @return the statistics for the command, or null if it hasn't been run
+	 */
+	public CommandStats getStats(final String commandName) {
+		return this.stats.get(commandName);
+	}
+
+	/**
+	 * @return the statistics for every command run, sorted by command name
+	 */
+	public Map<String, CommandStats> getAllStats() {
+		return Collections.unmodifiableMap(new TreeMap<String, CommandStats>(
+				this.stats));
+	}
+
+	/**
+	 * Forget all of the statistics collected so far.
+	 */
+	public void clear() {
+		this.stats.clear();
+	}
+
+	private CommandStats statsFor(final String commandName) {
+		CommandStats commandStats = this.stats.get(commandName);
+		if (commandStats == null) {
+			CommandStats created = new CommandStats(commandName);
+			commandStats = this.stats.putIfAbsent(commandName, created);
+			if (commandStats == null) {
+				commandStats = created;
+			}
+		}
+		return commandStats;
+	}
+
+	/**
+	 * Aggregated statistics for a single command.
+	 */
+	public static final class CommandStats {
+		private final String commandName;
+		final AtomicLong runs = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong timeouts = new AtomicLong();
+		final AtomicLong kills = new AtomicLong();
+		final AtomicLong nonZeroExits = new AtomicLong();
+		final AtomicLong truncatedRuns = new AtomicLong();
+		final AtomicLong bytesIn = new AtomicLong();
+		final AtomicLong bytesOut = new AtomicLong();
+		final AtomicLong bytesErr = new AtomicLong();
+		private final Histogram spawnNanos = new Histogram();
+		private final Histogram wallNanos = new Histogram();
+		private final Histogram firstByteNanos = new Histogram();
+		private final Histogram outputBytes = new Histogram();
+
+		CommandStats(final String commandName) {
+			this.commandName = commandName;
+		}
+
+		void record(final ProcessMetrics metrics) {
+			this.runs.incrementAndGet();
+			if (metrics.isTimedOut()) {
+				this.timeouts.incrementAndGet();
+			}
+			if (metrics.isKilled()) {
+				this.kills.incrementAndGet();
+			}
+			if (metrics.getReturnCode() != 0) {
+				this.nonZeroExits.incrementAndGet();
+			}
+			if (metrics.getBytesTruncated() > 0) {
+				this.truncatedRuns.incrementAndGet();
+			}
+			this.bytesIn.addAndGet(metrics.getBytesIn());
+			this.bytesOut.addAndGet(metrics.getBytesOut());
+			this.bytesErr.addAndGet(metrics.getBytesErr());
+			this.spawnNanos.record(metrics.getSpawnNanos());
+			this.wallNanos.record(metrics.getWallNanos());
+			if (metrics.getFirstByteNanos() >= 0) {
+				this.firstByteNanos.record(metrics.getFirstByteNanos());
+			}
+			this.outputBytes.record(metrics.getBytesOut());
+		}
+
+		/**
+		 * @return the command name
+		 */
+		public String getCommandName() {
+			return this.commandName;
+		}
+
+		/**
+		 * @return the number of completed runs
+		 */
+		public long getRuns() {
+			return this.runs.get();
+		}
+
+		/**
+		 * @return the number of runs that couldn't be started or run
+		 */
+		public long getFailures() {
+			return this.failures.get();
+		}
+
+		/**
+		 * @return the number of runs that timed out
+		 */
+		public long getTimeouts() {
+			return this.timeouts.get();
+		}
+
+		/**
+		 * @return the number of runs whose process was destroyed
+		 */
+		public long getKills() {
+			return this.kills.get();
+		}
+
+		/**
+		 * @return the number of runs with a non zero return code
+		 */
+		public long getNonZeroExits() {
+			return this.nonZeroExits.get();
+		}
+
+		/**
+		 * @return the number of runs whose output didn't fit in memory
+		 */
+		public long getTruncatedRuns() {
+			return this.truncatedRuns.get();
+		}
+
+		/**
+		 * @return the total bytes fed to the command
+		 */
+		public long getBytesIn() {
+			return this.bytesIn.get();
+		}
+
+		/**
+		 * @return the total bytes read from the command output
+		 */
+		public long getBytesOut() {
+			return this.bytesOut.get();
+		}
+
+		/**
+		 * @return the total bytes read from the command error
+		 */
+		public long getBytesErr() {
+			return this.bytesErr.get();
+		}
+
+		/**
+		 * @return the distribution of fork and exec times in nanoseconds
+		 */
+		public Histogram getSpawnNanos() {
+			return this.spawnNanos;
+		}
+
+		/**
+		 * @return the distribution of wall times in nanoseconds
+		 */
+		public Histogram getWallNanos() {
+			return this.wallNanos;
+		}
+
+		/**
+		 * @return the distribution of times to first byte in nanoseconds
+		 */
+		public Histogram getFirstByteNanos() {
+			return this.firstByteNanos;
+		}
+
+		/**
+		 * @return the distribution of output sizes in bytes
+		 */
+		public Histogram getOutputBytes() {
+			return this.outputBytes;
+		}
+
+		@Override
+		public String toString() {
+			return this.commandName + " [runs:" + getRuns() + ", failures:"
+					+ getFailures() + ", timeouts:" + getTimeouts()
+					+ ", kills:" + getKills() + ", wall p50:"
+					+ this.wallNanos.getPercentile(50) + "ns, wall p99:"
+					+ this.wallNanos.getPercentile(99) + "ns, spawn p50:"
+					+ this.spawnNanos.getPercentile(50) + "ns, out:"
+					+ getBytesOut() + "]";
+		}
+	}
+
+	/**
+	 * Lock free histogram of non negative values, using power of two
+	 * buckets. Percentiles are reported as the upper bound of the bucket they
+	 * fall in, so are accurate to within a factor of two.
+	 */
+	public static final class Histogram {
+		private static final int BUCKETS = 64;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram() {
+		}
+
+		/**
+		 * @param value
+		 *            the value to record, negative values count as zero
+		 */
+		public void record(final long value) {
+			long recorded = Math.max(0L, value);
+			this.counts.incrementAndGet(bucket(recorded));
+			this.count.incrementAndGet();
+			this.sum.addAndGet(recorded);
+			long current;
+			while ((current = this.max.get()) < recorded
+					&& !this.max.compareAndSet(current, recorded)) {
+				// Retry until max is at least the recorded value
+			}
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long getCount() {
+			return this.count.get();
+		}
+
+		/**
+		 * @return the largest value recorded
+		 */
+		public long getMax() {
+			return this.max.get();
+		}
+
+		/**
+		 * @return the mean of the values recorded, or 0 if there are none
+		 */
+		public double getMean() {
+			long total = this.count.get();
+			return (total == 0) ? 0.0 : (double) this.sum.get() / total;
+		}
+
+		/**
+		 * @param percentile
+		 *            the percentile to report, from 0 to 100
+		 * @return the upper bound of the bucket holding the percentile, or 0
+		 *         if nothing has been recorded
+		 */
+		public long getPercentile(final double percentile) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException(
+						"percentile must be from 0 to 100, was " + percentile);
+			}
+			long total = 0L;
+			long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = this.counts.get(i);
+				total += snapshot[i];
+			}
+			if (total == 0) {
+				return 0L;
+			}
+			long rank = (long) Math.ceil(percentile / 100.0 * total);
+			long seen = 0L;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if (seen >= Math.max(1L, rank)) {
+					return Math.min(upperBound(i), this.max.get());
+				}
+			}
+			return this.max.get();
+		}
+
+		private static int bucket(final long value) {
+			return (value == 0) ? 0 : BUCKETS - Long.numberOfLeadingZeros(value);
+		}
+
+		private static long upperBound(final int bucket) {
+			return (bucket == 0) ? 0L : (bucket >= BUCKETS - 1) ? Long.MAX_VALUE
+					: (1L << bucket) - 1;
+		}
+	}
+}
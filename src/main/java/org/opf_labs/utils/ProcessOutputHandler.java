@@ -0,0 +1,44 @@
+package org.opf_labs.utils;
+
+import java.io.IOException;
+
+/**
+ * Receives the output of a process as it is produced, rather than once the
+ * process has finished. Handlers are called on the pump thread for the
+ * stream, one chunk at a time and never concurrently. A handler that blocks
+ * blocks the pump, and once the pipe is full the process itself, so a slow
+ * consumer applies back pressure rather than the output being buffered
+ * without limit.
+ * 
+ * @see ProcessOutputHandlers for handlers that split output into lines or
+ *      records
+ */
+public interface ProcessOutputHandler {
+
+	/**
+	 * Called with each chunk of bytes read from the process. The buffer is
+	 * reused once the call returns, so handlers must copy anything they want
+	 * to keep.
+	 * 
+	 * @param buffer
+	 *            the buffer holding the chunk
+	 * @param offset
+	 *            the offset of the chunk in the buffer
+	 * @param length
+	 *            the length of the chunk
+	 * @throws IOException
+	 *             when the handler can't process the chunk, no further
+	 *             output is passed to the handler and the run fails
+	 */
+	public abstract void handleOutput(byte[] buffer, int offset, int length)
+			throws IOException;
+
+	/**
+	 * Called once the process has closed the stream, and only if all chunks
+	 * were handled successfully.
+	 * 
+	 * @throws IOException
+	 *             when the handler can't complete, the run fails
+	 */
+	public abstract void outputFinished() throws IOException;
+}
@@ -0,0 +1,380 @@
+package org.opf_labs.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Static factory for {@link ProcessOutputHandler}s that split process output
+ * into lines or records and pass each one on as soon as it is complete. All
+ * of the handlers hold at most one record in memory, however much output
+ * the process produces.
+ */
+public final class ProcessOutputHandlers {
+	/** Default maximum record length, longer records are split or rejected */
+	public static final int DEFAULT_MAX_RECORD_LENGTH = 1024 * 1024;
+
+	private static final byte LINE_FEED = '\n';
+	private static final byte CARRIAGE_RETURN = '\r';
+	private static final int LENGTH_PREFIX_SIZE = 4;
+	private static final byte[] NO_BYTES = new byte[0];
+
+	private ProcessOutputHandlers() {
+		throw new AssertionError("In ProcessOutputHandlers no-arg constructor.");
+	}
+
+	/**
+	 * Receives complete lines of process output.
+	 */
+	public interface LineConsumer {
+		/**
+		 * @param line
+		 *            the decoded line, without its line terminator
+		 * @throws IOException
+		 *             when the line can't be processed
+		 */
+		public abstract void line(String line) throws IOException;
+	}
+
+	/**
+	 * Receives complete records of process output. The buffer is reused once
+	 * the call returns, so consumers must copy anything they want to keep.
+	 */
+	public interface RecordConsumer {
+		/**
+		 * @param buffer
+		 *            the buffer holding the record
+		 * @param offset
+		 *            the offset of the record in the buffer
+		 * @param length
+		 *            the length of the record
+		 * @throws IOException
+		 *             when the record can't be processed
+		 */
+		public abstract void record(byte[] buffer, int offset, int length)
+				throws IOException;
+	}
+
+	/**
+	 * Split output into lines terminated by "\n" or "\r\n" and decode them
+	 * with the given charset, which must encode line feed as the single byte
+	 * 0x0A (true for UTF-8, ISO-8859-* and other ASCII based charsets). Lines
+	 * longer than {@link #DEFAULT_MAX_RECORD_LENGTH} bytes are split between
+	 * characters, and a carriage return is only dropped from a line's end, not
+	 * from the end of a part of a split line.
+	 *
+	 * @param consumer
+	 *            receives each line
+	 * @param charset
+	 *            the charset the process writes in
+	 * @return a handler that passes lines to the consumer
+	 */
+	public static ProcessOutputHandler lines(final LineConsumer consumer,
+			final Charset charset) {
+		if (consumer == null || charset == null) {
+			throw new IllegalArgumentException(
+					"consumer and charset can't be null.");
+		}
+		return new DelimitedRecordHandler(LINE_FEED,
+				DEFAULT_MAX_RECORD_LENGTH, new LineDecoder(consumer, charset));
+	}
+
+	/**
+	 * Split output into records terminated by a delimiter byte, the
+	 * delimiter isn't passed to the consumer. Records longer than
+	 * maxRecordLength bytes are split, and a final record with no delimiter
+	 * is passed on when the stream ends.
+	 *
+	 * @param delimiter
+	 *            the byte that terminates each record
+	 * @param maxRecordLength
+	 *            the longest record held in memory
+	 * @param consumer
+	 *            receives each record
+	 * @return a handler that passes records to the consumer
+	 */
+	public static ProcessOutputHandler delimitedRecords(final byte delimiter,
+			final int maxRecordLength, final RecordConsumer consumer) {
+		if (consumer == null) {
+			throw new IllegalArgumentException("consumer can't be null.");
+		}
+		if (maxRecordLength < 1) {
+			throw new IllegalArgumentException(
+					"maxRecordLength must be at least 1, was "
+							+ maxRecordLength);
+		}
+		return new DelimitedRecordHandler(delimiter, maxRecordLength,
+				new RecordSink() {
+					@Override
+					public void record(final byte[] buffer, final int offset,
+							final int length, final boolean whole)
+							throws IOException {
+						consumer.record(buffer, offset, length);
+					}
+
+					@Override
+					public void finished() {
+						// Nothing held back
+					}
+				});
+	}
+
+	/**
+	 * Split output into records that are each preceded by their length, as a
+	 * four byte big endian integer. The length prefix isn't passed to the
+	 * consumer.
+	 *
+	 * @param maxRecordLength
+	 *            the longest record accepted, longer records fail the run
+	 * @param consumer
+	 *            receives each record
+	 * @return a handler that passes records to the consumer
+	 */
+	public static ProcessOutputHandler lengthPrefixedRecords(
+			final int maxRecordLength, final RecordConsumer consumer) {
+		if (consumer == null) {
+			throw new IllegalArgumentException("consumer can't be null.");
+		}
+		if (maxRecordLength < 0) {
+			throw new IllegalArgumentException(
+					"maxRecordLength can't be negative, was " + maxRecordLength);
+		}
+		return new LengthPrefixedRecordHandler(maxRecordLength, consumer);
+	}
+
+	/**
+	 * Receives delimited records, and whether each was whole or a part of a
+	 * record split for length.
+	 */
+	private interface RecordSink {
+		/**
+		 * @param whole
+		 *            true if the record ended at a delimiter or the end of
+		 *            output, false if it was split for length
+		 */
+		public abstract void record(byte[] buffer, int offset, int length,
+				boolean whole) throws IOException;
+
+		/**
+		 * Called once the last record has been passed on.
+		 */
+		public abstract void finished() throws IOException;
+	}
+
+	/**
+	 * Decodes lines, carrying the bytes of a character cut by a split over to
+	 * the next part.
+	 */
+	private static final class LineDecoder implements RecordSink {
+		private final LineConsumer consumer;
+		private final Charset charset;
+		private final CharsetDecoder decoder;
+		private byte[] carried = NO_BYTES;
+
+		LineDecoder(final LineConsumer consumer, final Charset charset) {
+			this.consumer = consumer;
+			this.charset = charset;
+			// Replace bad input, as decoding with new String does
+			this.decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		@Override
+		public void record(final byte[] buffer, final int offset,
+				final int length, final boolean whole) throws IOException {
+			byte[] bytes = buffer;
+			int start = offset;
+			int end = offset + length;
+			if (this.carried.length > 0) {
+				bytes = Arrays.copyOf(this.carried, this.carried.length
+						+ length);
+				System.arraycopy(buffer, offset, bytes, this.carried.length,
+						length);
+				start = 0;
+				end = bytes.length;
+				this.carried = NO_BYTES;
+			}
+			if (whole) {
+				if (end > start && bytes[end - 1] == CARRIAGE_RETURN) {
+					end--;
+				}
+				this.consumer.line(new String(bytes, start, end - start,
+						this.charset));
+				return;
+			}
+			ByteBuffer in = ByteBuffer.wrap(bytes, start, end - start);
+			CharBuffer out = CharBuffer.allocate((int) ((end - start) * this.decoder
+					.maxCharsPerByte()) + 1);
+			this.decoder.reset();
+			// Not the end of input, so a cut character is left unread
+			this.decoder.decode(in, out, false);
+			this.carried = Arrays.copyOfRange(bytes, in.position(), end);
+			out.flip();
+			this.consumer.line(out.toString());
+		}
+
+		@Override
+		public void finished() throws IOException {
+			if (this.carried.length > 0) {
+				// The rest of a cut character the output never finished
+				byte[] rest = this.carried;
+				this.carried = NO_BYTES;
+				this.consumer.line(new String(rest, this.charset));
+			}
+		}
+	}
+
+	private static final class DelimitedRecordHandler implements
+			ProcessOutputHandler {
+		private final byte delimiter;
+		private final int maxRecordLength;
+		private final RecordSink sink;
+		private byte[] pending = new byte[0];
+		private int pendingLength = 0;
+
+		DelimitedRecordHandler(final byte delimiter, final int maxRecordLength,
+				final RecordSink sink) {
+			this.delimiter = delimiter;
+			this.maxRecordLength = maxRecordLength;
+			this.sink = sink;
+		}
+
+		@Override
+		public void handleOutput(final byte[] buffer, final int offset,
+				final int length) throws IOException {
+			int start = offset;
+			int end = offset + length;
+			for (int i = offset; i < end; i++) {
+				if (buffer[i] == this.delimiter) {
+					this.emit(buffer, start, i - start, true);
+					start = i + 1;
+				} else if (this.pendingLength + (i + 1 - start) >= this.maxRecordLength) {
+					this.emit(buffer, start, i + 1 - start, false);
+					start = i + 1;
+				}
+			}
+			this.append(buffer, start, end - start);
+		}
+
+		@Override
+		public void outputFinished() throws IOException {
+			if (this.pendingLength > 0) {
+				this.emit(this.pending, 0, 0, true);
+			}
+			this.sink.finished();
+		}
+
+		private void emit(final byte[] buffer, final int offset,
+				final int length, final boolean whole) throws IOException {
+			if (this.pendingLength == 0) {
+				// Nothing carried over, so hand over the slice directly
+				this.sink.record(buffer, offset, length, whole);
+				return;
+			}
+			this.append(buffer, offset, length);
+			int recordLength = this.pendingLength;
+			this.pendingLength = 0;
+			this.sink.record(this.pending, 0, recordLength, whole);
+		}
+
+		private void append(final byte[] buffer, final int offset,
+				final int length) {
+			if (length == 0) {
+				return;
+			}
+			int required = this.pendingLength + length;
+			if (required > this.pending.length) {
+				this.pending = Arrays.copyOf(this.pending, Math.min(
+						this.maxRecordLength,
+						Math.max(required, this.pending.length * 2)));
+			}
+			System.arraycopy(buffer, offset, this.pending, this.pendingLength,
+					length);
+			this.pendingLength = required;
+		}
+	}
+
+	private static final class LengthPrefixedRecordHandler implements
+			ProcessOutputHandler {
+		private final int maxRecordLength;
+		private final RecordConsumer consumer;
+		private final byte[] prefix = new byte[LENGTH_PREFIX_SIZE];
+		private int prefixLength = 0;
+		private byte[] record = new byte[0];
+		private int recordLength = -1;
+		private int received = 0;
+
+		LengthPrefixedRecordHandler(final int maxRecordLength,
+				final RecordConsumer consumer) {
+			this.maxRecordLength = maxRecordLength;
+			this.consumer = consumer;
+		}
+
+		@Override
+		public void handleOutput(final byte[] buffer, final int offset,
+				final int length) throws IOException {
+			int pos = offset;
+			int end = offset + length;
+			while (pos < end) {
+				if (this.recordLength < 0) {
+					this.prefix[this.prefixLength++] = buffer[pos++];
+					if (this.prefixLength == LENGTH_PREFIX_SIZE) {
+						this.startRecord();
+					}
+				} else {
+					int wanted = this.recordLength - this.received;
+					if (this.received == 0 && end - pos >= wanted) {
+						// Whole record in the chunk, hand over the slice
+						this.consumer.record(buffer, pos, wanted);
+						pos += wanted;
+						this.recordLength = -1;
+						continue;
+					}
+					int count = Math.min(wanted, end - pos);
+					System.arraycopy(buffer, pos, this.record, this.received,
+							count);
+					pos += count;
+					this.received += count;
+					if (this.received == this.recordLength) {
+						this.recordLength = -1;
+						this.consumer.record(this.record, 0, this.received);
+					}
+				}
+			}
+		}
+
+		@Override
+		public void outputFinished() throws IOException {
+			if (this.prefixLength > 0 || this.recordLength >= 0) {
+				throw new IOException(
+						"Output ended part way through a length prefixed record.");
+			}
+		}
+
+		private void startRecord() throws IOException {
+			this.prefixLength = 0;
+			this.received = 0;
+			int length = ((this.prefix[0] & 0xFF) << 24)
+					| ((this.prefix[1] & 0xFF) << 16)
+					| ((this.prefix[2] & 0xFF) << 8) | (this.prefix[3] & 0xFF);
+			if (length < 0 || length > this.maxRecordLength) {
+				throw new IOException("Record length " + length
+						+ " is outside the allowed range 0 to "
+						+ this.maxRecordLength);
+			}
+			if (length == 0) {
+				this.consumer.record(this.record, 0, 0);
+				return;
+			}
+			if (length > this.record.length) {
+				this.record = new byte[length];
+			}
+			this.recordLength = length;
+		}
+	}
+}
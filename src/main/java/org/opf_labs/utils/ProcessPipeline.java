@@ -0,0 +1,561 @@
+package org.opf_labs.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+import org.opf_labs.utils.ProcessRunnerImpl.OutputCollector;
+
+/**
+ * <p>
+ * Immutable chain of commands, like a shell pipeline, where each stage's
+ * output is connected straight to the next stage's input. All of the stages
+ * run at once, so the output of one stage never has to be held whole in
+ * memory before the next stage starts.
+ * </p>
+ * <p>
+ * On Java 9 and later the stages are connected natively with
+ * <code>ProcessBuilder.startPipeline</code>, looked up reflectively, so the
+ * bytes between stages never pass through the JVM. On older runtimes they're
+ * copied between stages by pump threads.
+ * </p>
+ * <p>
+ * Each stage is a {@link ProcessCommand}, whose command, environment,
+ * starting directory and limits are used, and whose error output is
+ * collected up to its error collection limit. The last stage's output is
+ * collected up to its output collection limit. The stages' own timeouts are
+ * ignored in favour of the pipeline's overall timeout, once it expires every
+ * stage is terminated. Output is collected until every stage's streams are
+ * closed, which may be after the stages exit if they left children behind,
+ * but not past the timeout.
+ * </p>
+ *
+ * <pre>
+ * ProcessPipeline pipeline = ProcessPipeline.builder()
+ * 		.add(ProcessCommand.builder(&quot;unzip&quot;, &quot;-p&quot;, zip).build())
+ * 		.add(ProcessCommand.builder(&quot;file&quot;, &quot;-b&quot;, &quot;-&quot;).build())
+ * 		.setTimeout(10000).build();
+ * </pre>
+ */
+public final class ProcessPipeline {
+	private static final int THREADTIMEOUT = 1000; // Milliseconds
+	/** ProcessBuilder.startPipeline(List), null before Java 9 */
+	private static final Method START_PIPELINE = findStartPipeline();
+
+	private final List<ProcessCommand> stages;
+	private final long timeout;
+	private final long killGracePeriod;
+
+	ProcessPipeline(final Builder builder) {
+		this.stages = Collections.unmodifiableList(new ArrayList<ProcessCommand>(
+				builder.stages));
+		this.timeout = builder.timeout;
+		this.killGracePeriod = builder.killGracePeriod;
+	}
+
+	/**
+	 * @return a builder for a pipeline with no stages
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return the stages, in order, unmodifiable
+	 */
+	public List<ProcessCommand> getStages() {
+		return this.stages;
+	}
+
+	/**
+	 * @return the overall timeout in milliseconds
+	 */
+	public long getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * Run the pipeline with no input and wait for every stage to finish.
+	 *
+	 * @return the result of the run
+	 * @throws ProcessRunnerException
+	 *             when a stage can't be started
+	 */
+	public Result execute() throws ProcessRunnerException {
+		return this.execute(null);
+	}
+
+	/**
+	 * Run the pipeline, feeding the input to the first stage, and wait for
+	 * every stage to finish.
+	 *
+	 * @param input
+	 *            the input for the first stage, or null for none
+	 * @return the result of the run
+	 * @throws ProcessRunnerException
+	 *             when a stage can't be started, any stages already started
+	 *             are killed
+	 */
+	public Result execute(final InputStream input)
+			throws ProcessRunnerException {
+		int count = this.stages.size();
+		List<ProcessBuilder> builders = new ArrayList<ProcessBuilder>(count);
+		List<ProcessLimits.Applied> limited = new ArrayList<ProcessLimits.Applied>(
+				count);
+		List<Process> processes = new ArrayList<Process>(count);
+		try {
+			for (ProcessCommand stage : this.stages) {
+				ProcessBuilder builder = new ProcessBuilder(stage.getCommand());
+				if (stage.getLimits() != null) {
+					ProcessLimits.Applied applied = stage.getLimits().apply(
+							stage.getCommand());
+					limited.add(applied);
+					builder.command(applied.getCommand());
+				} else {
+					limited.add(null);
+				}
+				if (!stage.getEnviroment().isEmpty()) {
+					builder.environment().putAll(stage.getEnviroment());
+				}
+				builder.directory(stage.getStartingDir());
+				builders.add(builder);
+			}
+			processes.addAll(start(builders));
+		} catch (IOException excep) {
+			for (Process started : processes) {
+				started.destroy();
+			}
+			for (ProcessLimits.Applied applied : limited) {
+				if (applied != null) {
+					applied.finish(-1);
+				}
+			}
+			throw new ProcessRunnerException("Couldn't start pipeline: "
+					+ excep.getMessage(), excep);
+		}
+		return this.run(processes, limited, input);
+	}
+
+	private Result run(final List<Process> processes,
+			final List<ProcessLimits.Applied> limited, final InputStream input) {
+		int count = processes.size();
+		Executor pumps = ProcessRunnerImpl.defaultPumpExecutor();
+		ProcessCommand last = this.stages.get(count - 1);
+		OutputCollector output = new OutputCollector(
+				last.getOutputCollectionByteSize(),
+				last.getCollectionOverflow());
+		List<OutputCollector> errors = new ArrayList<OutputCollector>(count);
+		// Errors for every stage, the output, and a copy between each stage
+		// when they aren't connected natively
+		int bridges = (START_PIPELINE == null) ? count - 1 : 0;
+		CountDownLatch pumpsFinished = new CountDownLatch(count + 1 + bridges);
+		for (int i = 0; i < count; i++) {
+			ProcessCommand stage = this.stages.get(i);
+			OutputCollector error = new OutputCollector(
+					stage.getErrorCollectionByteSize(),
+					stage.getCollectionOverflow());
+			errors.add(error);
+			pumps.execute(new Collect(processes.get(i).getErrorStream(), error,
+					pumpsFinished));
+			if (i < bridges) {
+				pumps.execute(new Copy(processes.get(i).getInputStream(),
+						processes.get(i + 1).getOutputStream(), pumpsFinished));
+			}
+		}
+		pumps.execute(new Collect(processes.get(count - 1).getInputStream(),
+				output, pumpsFinished));
+		OutputStream first = processes.get(0).getOutputStream();
+		if (input == null) {
+			IOUtils.closeQuietly(first);
+		} else {
+			pumps.execute(new Copy(input, first, null));
+		}
+
+		final AtomicBoolean expired = new AtomicBoolean(false);
+		long started = System.nanoTime();
+		ScheduledFuture<?> watchdog = null;
+		if (this.timeout < Long.MAX_VALUE) {
+			final List<Process> all = processes;
+			final long grace = this.killGracePeriod;
+			watchdog = ProcessRunnerImpl.watchdog().schedule(new Runnable() {
+				@Override
+				public void run() {
+					expired.set(true);
+					for (Process process : all) {
+						ProcessTrees.terminate(process, grace,
+								ProcessRunnerImpl.watchdog());
+					}
+				}
+			}, Math.max(0L, this.timeout), TimeUnit.MILLISECONDS);
+		}
+
+		int[] returnCodes = new int[count];
+		boolean interrupted = false;
+		try {
+			for (int i = 0; i < count; i++) {
+				while (true) {
+					try {
+						returnCodes[i] = processes.get(i).waitFor();
+						break;
+					} catch (InterruptedException excep) {
+						if (!interrupted) {
+							for (Process process : processes) {
+								ProcessTrees.terminate(process,
+										this.killGracePeriod,
+										ProcessRunnerImpl.watchdog());
+							}
+						}
+						interrupted = true;
+					}
+				}
+			}
+			try {
+				// A stage's children may still be writing, so wait for the
+				// streams to close for as long as the pipeline may run
+				if (this.timeout == Long.MAX_VALUE) {
+					pumpsFinished.await();
+				} else {
+					long left = this.timeout
+							- TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+									- started);
+					pumpsFinished.await(Math.max(THREADTIMEOUT, left),
+							TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException excep) {
+				interrupted = true;
+			}
+		} finally {
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		List<ProcessLimits.Limit> limitsHit = new ArrayList<ProcessLimits.Limit>(
+				count);
+		List<byte[]> errorBytes = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			ProcessLimits.Applied applied = limited.get(i);
+			limitsHit.add((applied == null) ? null : applied
+					.finish(returnCodes[i]));
+			errorBytes.add(errors.get(i).toByteArray());
+		}
+		return new Result(returnCodes, expired.get(), output.toByteArray(),
+				output.getTruncated(), errorBytes, limitsHit);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Process> start(final List<ProcessBuilder> builders)
+			throws IOException {
+		if (START_PIPELINE != null) {
+			try {
+				return (List<Process>) START_PIPELINE.invoke(null, builders);
+			} catch (InvocationTargetException excep) {
+				if (excep.getCause() instanceof IOException) {
+					throw (IOException) excep.getCause();
+				}
+				throw new IOException(excep.getCause());
+			} catch (IllegalAccessException excep) {
+				throw new IOException(excep);
+			}
+		}
+		List<Process> processes = new ArrayList<Process>(builders.size());
+		try {
+			for (ProcessBuilder builder : builders) {
+				processes.add(builder.redirectInput(Redirect.PIPE).start());
+			}
+		} catch (IOException excep) {
+			for (Process started : processes) {
+				started.destroy();
+			}
+			throw excep;
+		}
+		return processes;
+	}
+
+	private static Method findStartPipeline() {
+		try {
+			return ProcessBuilder.class.getMethod("startPipeline", List.class);
+		} catch (NoSuchMethodException excep) {
+			return null;
+		}
+	}
+
+	/**
+	 * Drains a stream into a collector.
+	 */
+	private static final class Collect implements Runnable {
+		private final InputStream in;
+		private final OutputCollector collector;
+		private final CountDownLatch finished;
+
+		Collect(final InputStream in, final OutputCollector collector,
+				final CountDownLatch finished) {
+			this.in = in;
+			this.collector = collector;
+			this.finished = finished;
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = StreamPumps
+					.acquireBuffer(StreamPumps.DEFAULT_BUFFER_SIZE);
+			try {
+				int read;
+				while ((read = this.in.read(buffer)) != -1) {
+					this.collector.handleOutput(buffer, 0, read);
+				}
+			} catch (IOException excep) {
+				// The stage has gone, keep what was collected
+			} finally {
+				try {
+					// Always, so a kept tail is appended and a spill closed
+					this.collector.outputFinished();
+				} catch (IOException excep) {
+					// Only the spill file can fail, the bytes in memory stay
+				}
+				StreamPumps.releaseBuffer(buffer);
+				IOUtils.closeQuietly(this.in);
+				this.finished.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Copies one stream to another, closing both when done.
+	 */
+	private static final class Copy implements Runnable {
+		private final InputStream in;
+		private final OutputStream out;
+		private final CountDownLatch finished;
+
+		Copy(final InputStream in, final OutputStream out,
+				final CountDownLatch finished) {
+			this.in = in;
+			this.out = out;
+			this.finished = finished;
+		}
+
+		@Override
+		public void run() {
+			try {
+				StreamPumps.copy(this.in, this.out,
+						StreamPumps.DEFAULT_BUFFER_SIZE);
+			} catch (IOException excep) {
+				// The next stage exited early, like SIGPIPE in a shell
+			} finally {
+				IOUtils.closeQuietly(this.out);
+				IOUtils.closeQuietly(this.in);
+				if (this.finished != null) {
+					this.finished.countDown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Immutable result of a pipeline run.
+	 */
+	public static final class Result {
+		private final int[] returnCodes;
+		private final boolean timedOut;
+		private final byte[] output;
+		private final long outputTruncated;
+		private final List<byte[]> errors;
+		private final List<ProcessLimits.Limit> limitsHit;
+
+		Result(final int[] returnCodes, final boolean timedOut,
+				final byte[] output, final long outputTruncated,
+				final List<byte[]> errors,
+				final List<ProcessLimits.Limit> limitsHit) {
+			this.returnCodes = returnCodes;
+			this.timedOut = timedOut;
+			this.output = output;
+			this.outputTruncated = outputTruncated;
+			this.errors = Collections.unmodifiableList(errors);
+			this.limitsHit = Collections.unmodifiableList(limitsHit);
+		}
+
+		/**
+		 * @return the number of stages
+		 */
+		public int getStageCount() {
+			return this.returnCodes.length;
+		}
+
+		/**
+		 * @param stage
+		 *            the stage, from 0
+		 * @return the stage's return code
+		 */
+		public int getReturnCode(final int stage) {
+			return this.returnCodes[stage];
+		}
+
+		/**
+		 * @return the last stage's return code, as a shell reports it
+		 */
+		public int getReturnCode() {
+			return this.returnCodes[this.returnCodes.length - 1];
+		}
+
+		/**
+		 * @return true if every stage returned 0, like a shell's pipefail
+		 */
+		public boolean isSuccessful() {
+			for (int returnCode : this.returnCodes) {
+				if (returnCode != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if the pipeline was terminated for exceeding its
+		 *         timeout
+		 */
+		public boolean isTimedOut() {
+			return this.timedOut;
+		}
+
+		/**
+		 * @return a copy of the last stage's collected output
+		 */
+		public byte[] getOutput() {
+			return this.output.clone();
+		}
+
+		/**
+		 * @return a stream reading the last stage's collected output, without
+		 *         copying it
+		 */
+		public InputStream getOutputAsStream() {
+			return new ByteArrayInputStream(this.output);
+		}
+
+		/**
+		 * @return the number of output bytes that didn't fit in memory
+		 */
+		public long getOutputTruncatedByteCount() {
+			return this.outputTruncated;
+		}
+
+		/**
+		 * @param stage
+		 *            the stage, from 0
+		 * @return a copy of the stage's collected error
+		 */
+		public byte[] getError(final int stage) {
+			return this.errors.get(stage).clone();
+		}
+
+		/**
+		 * @param stage
+		 *            the stage, from 0
+		 * @return a stream reading the stage's collected error, without
+		 *         copying it
+		 */
+		public InputStream getErrorAsStream(final int stage) {
+			return new ByteArrayInputStream(this.errors.get(stage));
+		}
+
+		/**
+		 * @param stage
+		 *            the stage, from 0
+		 * @return the resource limit the stage was seen to hit, or null
+		 */
+		public ProcessLimits.Limit getLimitHit(final int stage) {
+			return this.limitsHit.get(stage);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder codes = new StringBuilder();
+			for (int returnCode : this.returnCodes) {
+				codes.append((codes.length() == 0) ? "" : "|").append(returnCode);
+			}
+			return "ProcessPipeline.Result [returnCodes:" + codes
+					+ ", timedOut:" + this.timedOut + ", output:"
+					+ this.output.length + " bytes]";
+		}
+	}
+
+	/**
+	 * Mutable builder for {@link ProcessPipeline}s.
+	 */
+	public static final class Builder {
+		final List<ProcessCommand> stages = new ArrayList<ProcessCommand>();
+		long timeout = Long.MAX_VALUE;
+		long killGracePeriod = ProcessRunnerImpl.DEFAULT_KILL_GRACE_PERIOD;
+
+		Builder() {
+		}
+
+		/**
+		 * @param stage
+		 *            the command to add as the next stage
+		 * @return this builder
+		 */
+		public Builder add(final ProcessCommand stage) {
+			if (stage == null) {
+				throw new IllegalArgumentException("stage can't be null.");
+			}
+			this.stages.add(stage);
+			return this;
+		}
+
+		/**
+		 * @param timeout
+		 *            the timeout for the whole pipeline in milliseconds,
+		 *            default Long.MAX_VALUE
+		 * @return this builder
+		 */
+		public Builder setTimeout(final long timeout) {
+			this.timeout = timeout;
+			return this;
+		}
+
+		/**
+		 * @param killGracePeriod
+		 *            the milliseconds stages have to exit once terminated
+		 *            before they're killed, default 2000
+		 * @return this builder
+		 */
+		public Builder setKillGracePeriod(final long killGracePeriod) {
+			if (killGracePeriod < 0) {
+				throw new IllegalArgumentException(
+						"killGracePeriod can't be negative, was "
+								+ killGracePeriod);
+			}
+			this.killGracePeriod = killGracePeriod;
+			return this;
+		}
+
+		/**
+		 * @return a new immutable pipeline with this builder's stages
+		 */
+		public ProcessPipeline build() {
+			if (this.stages.isEmpty()) {
+				throw new IllegalStateException(
+						"A pipeline needs at least one stage.");
+			}
+			return new ProcessPipeline(this);
+		}
+	}
+}
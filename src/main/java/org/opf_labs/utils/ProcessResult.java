@@ -0,0 +1,156 @@
+package org.opf_labs.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Immutable result of one execution of a {@link ProcessCommand}, safe to
+ * share between threads.
+ */
+public final class ProcessResult {
+	private static final byte[] NO_BYTES = new byte[0];
+
+	private final int returnCode;
+	private final boolean timedOut;
+	private final byte[] output;
+	private final byte[] error;
+	private final long outputTruncated;
+	private final long errorTruncated;
+	private final File outputSpillFile;
+	private final File errorSpillFile;
+	private final ProcessMetrics metrics;
+	private final ProcessLimits.Limit limitHit;
+
+	ProcessResult(final int returnCode, final boolean timedOut,
+			final byte[] output, final byte[] error,
+			final long outputTruncated, final long errorTruncated,
+			final File outputSpillFile, final File errorSpillFile,
+			final ProcessMetrics metrics, final ProcessLimits.Limit limitHit) {
+		this.returnCode = returnCode;
+		this.timedOut = timedOut;
+		this.output = (output == null) ? NO_BYTES : output;
+		this.error = (error == null) ? NO_BYTES : error;
+		this.outputTruncated = outputTruncated;
+		this.errorTruncated = errorTruncated;
+		this.outputSpillFile = outputSpillFile;
+		this.errorSpillFile = errorSpillFile;
+		this.metrics = metrics;
+		this.limitHit = limitHit;
+	}
+
+	/**
+	 * @return the process return code, -1 if it timed out
+	 */
+	public int getReturnCode() {
+		return this.returnCode;
+	}
+
+	/**
+	 * @return true if the process was killed for exceeding its timeout
+	 */
+	public boolean isTimedOut() {
+		return this.timedOut;
+	}
+
+	/**
+	 * @return a copy of the collected output
+	 */
+	public byte[] getOutput() {
+		return this.output.clone();
+	}
+
+	/**
+	 * @return a copy of the collected error
+	 */
+	public byte[] getError() {
+		return this.error.clone();
+	}
+
+	/**
+	 * @return a stream reading the collected output, without copying it
+	 */
+	public InputStream getOutputAsStream() {
+		return new ByteArrayInputStream(this.output);
+	}
+
+	/**
+	 * @return a stream reading the collected error, without copying it
+	 */
+	public InputStream getErrorAsStream() {
+		return new ByteArrayInputStream(this.error);
+	}
+
+	/**
+	 * @param charset
+	 *            the charset to decode with
+	 * @return the collected output decoded as a string
+	 */
+	public String getOutputAsString(final Charset charset) {
+		return new String(this.output, charset);
+	}
+
+	/**
+	 * @param charset
+	 *            the charset to decode with
+	 * @return the collected error decoded as a string
+	 */
+	public String getErrorAsString(final Charset charset) {
+		return new String(this.error, charset);
+	}
+
+	/**
+	 * @return the number of output bytes that didn't fit in memory
+	 */
+	public long getOutputTruncatedByteCount() {
+		return this.outputTruncated;
+	}
+
+	/**
+	 * @return the number of error bytes that didn't fit in memory
+	 */
+	public long getErrorTruncatedByteCount() {
+		return this.errorTruncated;
+	}
+
+	/**
+	 * @return the file holding spilled output, or null if none was spilled.
+	 *         The caller is responsible for deleting it.
+	 */
+	public File getOutputSpillFile() {
+		return this.outputSpillFile;
+	}
+
+	/**
+	 * @return the file holding spilled error, or null if none was spilled.
+	 *         The caller is responsible for deleting it.
+	 */
+	public File getErrorSpillFile() {
+		return this.errorSpillFile;
+	}
+
+	/**
+	 * @return the timing and volume breakdown of the run
+	 */
+	public ProcessMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return the resource limit the run was seen to hit, or null if none
+	 *         was
+	 */
+	public ProcessLimits.Limit getLimitHit() {
+		return this.limitHit;
+	}
+
+	@Override
+	public String toString() {
+		return "ProcessResult [returnCode:" + this.returnCode + ", timedOut:"
+				+ this.timedOut + ", output:" + this.output.length
+				+ " bytes, error:" + this.error.length + " bytes"
+				+ ((this.limitHit == null) ? "" : ", limitHit:" + this.limitHit)
+				+ "]";
+	}
+}
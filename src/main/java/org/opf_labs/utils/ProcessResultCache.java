@@ -0,0 +1,444 @@
+package org.opf_labs.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * Bounded cache of process results, the return code plus collected output
+ * and error bytes, keyed by a digest of everything that determines them. See
+ * {@link CachingProcessRunnerFactory} for how keys are made.
+ * </p>
+ * <p>
+ * Results are held in memory up to a byte budget, and optionally written to a
+ * directory with a byte budget of its own. Both tiers evict the least recently
+ * used results first. A result evicted from memory can still be found on disk,
+ * and is promoted back into memory when it is.
+ * </p>
+ * <p>
+ * The cache is thread safe, and hit and miss counts are kept for monitoring.
+ * Disk reads and writes happen outside the cache's own lock, under one of a
+ * set of striped locks chosen by key, so a slow disk only holds up lookups of
+ * keys sharing a stripe. An entry that can't be read back, say a truncated or
+ * corrupt file, is deleted and counted as a miss.
+ * </p>
+ */
+public final class ProcessResultCache {
+	private static final int FORMAT_VERSION = 1;
+	private static final String RESULT_SUFFIX = ".result";
+	private static final String TEMP_SUFFIX = ".tmp";
+	/** Rough per entry overhead, so that empty results still count */
+	private static final int ENTRY_OVERHEAD = 64;
+	private static final int DISK_LOCK_STRIPES = 32;
+
+	private final long maxMemoryBytes;
+	private final File directory;
+	private final long maxDiskBytes;
+	private final LinkedHashMap<String, Result> memory = new LinkedHashMap<String, Result>(
+			16, 0.75f, true);
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(
+			16, 0.75f, true);
+	private long memoryBytes = 0L;
+	private long diskBytes = 0L;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final Object[] diskLocks = new Object[DISK_LOCK_STRIPES];
+
+	/**
+	 * Create an in memory only cache.
+	 *
+	 * @param maxMemoryBytes
+	 *            the most result bytes held in memory
+	 */
+	public ProcessResultCache(final long maxMemoryBytes) {
+		this(maxMemoryBytes, null, 0L);
+	}
+
+	/**
+	 * Create a cache backed by a directory, any results already in the
+	 * directory are available straight away.
+	 *
+	 * @param maxMemoryBytes
+	 *            the most result bytes held in memory
+	 * @param directory
+	 *            the directory to hold results in, created if necessary
+	 * @param maxDiskBytes
+	 *            the most result bytes held in the directory
+	 */
+	public ProcessResultCache(final long maxMemoryBytes, final File directory,
+			final long maxDiskBytes) {
+		if (maxMemoryBytes < 0 || maxDiskBytes < 0) {
+			throw new IllegalArgumentException(
+					"maxMemoryBytes and maxDiskBytes can't be negative.");
+		}
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		for (int i = 0; i < this.diskLocks.length; i++) {
+			this.diskLocks[i] = new Object();
+		}
+		if (directory != null) {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IllegalArgumentException("Can't create cache directory "
+						+ directory);
+			}
+			this.loadDiskIndex();
+		}
+	}
+
+	/**
+	 * Look up a result, counting a hit or a miss.
+	 *
+	 * @param key
+	 *            the result key
+	 * @return the result, or null if it isn't cached
+	 */
+	public Result get(final String key) {
+		Result result;
+		boolean onDisk;
+		synchronized (this) {
+			result = this.memory.get(key);
+			onDisk = result == null && this.disk.containsKey(key);
+		}
+		if (onDisk) {
+			synchronized (this.diskLock(key)) {
+				result = this.readFromDisk(key);
+			}
+			if (result != null) {
+				synchronized (this) {
+					// Don't replace a result put while the disk was read
+					if (!this.memory.containsKey(key)) {
+						this.putInMemory(key, result);
+					}
+					// Record the use in the disk index too
+					this.disk.get(key);
+				}
+			}
+		}
+		if (result == null) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Add a result, evicting older results as needed. Results too big for a
+	 * tier aren't held in it.
+	 *
+	 * @param key
+	 *            the result key
+	 * @param result
+	 *            the result to cache
+	 */
+	public void put(final String key, final Result result) {
+		if (key == null || result == null) {
+			throw new IllegalArgumentException("key and result can't be null.");
+		}
+		synchronized (this) {
+			this.putInMemory(key, result);
+		}
+		if (this.directory != null) {
+			List<String> evicted;
+			synchronized (this.diskLock(key)) {
+				evicted = this.writeToDisk(key, result);
+			}
+			// Evicted files are deleted under their own stripes
+			for (String evictedKey : evicted) {
+				this.deleteIfUnindexed(evictedKey);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of lookups that found a result
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that didn't find a result
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of result bytes held in memory
+	 */
+	public synchronized long getMemoryBytes() {
+		return this.memoryBytes;
+	}
+
+	/**
+	 * @return the number of result bytes held on disk
+	 */
+	public synchronized long getDiskBytes() {
+		return this.diskBytes;
+	}
+
+	private void putInMemory(final String key, final Result result) {
+		long size = result.size();
+		Result previous = this.memory.remove(key);
+		if (previous != null) {
+			this.memoryBytes -= previous.size();
+		}
+		if (size > this.maxMemoryBytes) {
+			return;
+		}
+		this.memory.put(key, result);
+		this.memoryBytes += size;
+		Iterator<Result> eldest = this.memory.values().iterator();
+		while (this.memoryBytes > this.maxMemoryBytes) {
+			this.memoryBytes -= eldest.next().size();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Called holding the key's disk lock, returns the keys evicted from the
+	 * index, whose files still need deleting.
+	 */
+	private List<String> writeToDisk(final String key, final Result result) {
+		List<String> evicted = new ArrayList<String>();
+		File file = this.fileFor(key);
+		if (result.size() > this.maxDiskBytes) {
+			this.unindex(key);
+			file.delete();
+			return evicted;
+		}
+		File temp = new File(this.directory, key + TEMP_SUFFIX);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(result.returnCode);
+			out.writeInt(result.output.length);
+			out.write(result.output);
+			out.writeInt(result.error.length);
+			out.write(result.error);
+			out.close();
+			out = null;
+			file.delete();
+			if (!temp.renameTo(file)) {
+				this.unindex(key);
+				temp.delete();
+				return evicted;
+			}
+		} catch (IOException excep) {
+			// Disk is a best effort tier, the result is still in memory
+			IOUtils.closeQuietly(out);
+			this.unindex(key);
+			temp.delete();
+			return evicted;
+		}
+		long size = file.length();
+		synchronized (this) {
+			Long previous = this.disk.put(key, Long.valueOf(size));
+			if (previous != null) {
+				this.diskBytes -= previous.longValue();
+			}
+			this.diskBytes += size;
+			Iterator<Map.Entry<String, Long>> eldest = this.disk.entrySet()
+					.iterator();
+			while (this.diskBytes > this.maxDiskBytes) {
+				Map.Entry<String, Long> entry = eldest.next();
+				this.diskBytes -= entry.getValue().longValue();
+				evicted.add(entry.getKey());
+				eldest.remove();
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Called holding the key's disk lock.
+	 */
+	private Result readFromDisk(final String key) {
+		synchronized (this) {
+			if (!this.disk.containsKey(key)) {
+				// Evicted or replaced since the index was checked
+				return null;
+			}
+		}
+		File file = this.fileFor(key);
+		DataInputStream in = null;
+		try {
+			long fileLength = file.length();
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unknown cache format in " + file);
+			}
+			int returnCode = in.readInt();
+			byte[] output = new byte[readLength(in, fileLength, file)];
+			in.readFully(output);
+			byte[] error = new byte[readLength(in, fileLength, file)];
+			in.readFully(error);
+			// Record the use, so the index order survives a restart
+			file.setLastModified(System.currentTimeMillis());
+			return new Result(returnCode, output, error);
+		} catch (IOException excep) {
+			// Unreadable, so forget it
+			IOUtils.closeQuietly(in);
+			in = null;
+			this.unindex(key);
+			file.delete();
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static int readLength(final DataInputStream in,
+			final long fileLength, final File file) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > fileLength) {
+			throw new IOException("Corrupt length " + length + " in " + file);
+		}
+		return length;
+	}
+
+	private void deleteIfUnindexed(final String key) {
+		synchronized (this.diskLock(key)) {
+			synchronized (this) {
+				if (this.disk.containsKey(key)) {
+					// Written again since it was evicted
+					return;
+				}
+			}
+			this.fileFor(key).delete();
+		}
+	}
+
+	private synchronized void unindex(final String key) {
+		Long size = this.disk.remove(key);
+		if (size != null) {
+			this.diskBytes -= size.longValue();
+		}
+	}
+
+	/**
+	 * Disk locks are always taken before the cache's own lock, never while
+	 * holding it.
+	 */
+	private Object diskLock(final String key) {
+		return this.diskLocks[(key.hashCode() & Integer.MAX_VALUE)
+				% this.diskLocks.length];
+	}
+
+	private void loadDiskIndex() {
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File first, final File second) {
+				long diff = first.lastModified() - second.lastModified();
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile()) {
+				continue;
+			}
+			if (name.endsWith(RESULT_SUFFIX)) {
+				long size = file.length();
+				this.disk.put(
+						name.substring(0, name.length()
+								- RESULT_SUFFIX.length()), Long.valueOf(size));
+				this.diskBytes += size;
+			} else if (name.endsWith(TEMP_SUFFIX)) {
+				// Left by a write that never finished
+				file.delete();
+			}
+		}
+		// The budget may be smaller than last time, or files added by hand
+		Iterator<Map.Entry<String, Long>> eldest = this.disk.entrySet()
+				.iterator();
+		while (this.diskBytes > this.maxDiskBytes) {
+			Map.Entry<String, Long> entry = eldest.next();
+			this.diskBytes -= entry.getValue().longValue();
+			this.fileFor(entry.getKey()).delete();
+			eldest.remove();
+		}
+	}
+
+	private File fileFor(final String key) {
+		return new File(this.directory, key + RESULT_SUFFIX);
+	}
+
+	/**
+	 * Immutable result of a process run.
+	 */
+	public static final class Result {
+		private final int returnCode;
+		private final byte[] output;
+		private final byte[] error;
+
+		/**
+		 * @param returnCode
+		 *            the process return code
+		 * @param output
+		 *            the collected output, which mustn't be modified later
+		 * @param error
+		 *            the collected error, which mustn't be modified later
+		 */
+		public Result(final int returnCode, final byte[] output,
+				final byte[] error) {
+			if (output == null || error == null) {
+				throw new IllegalArgumentException(
+						"output and error can't be null.");
+			}
+			this.returnCode = returnCode;
+			this.output = output;
+			this.error = error;
+		}
+
+		/**
+		 * @return the process return code
+		 */
+		public int getReturnCode() {
+			return this.returnCode;
+		}
+
+		/**
+		 * @return the collected output, which must not be modified
+		 */
+		public byte[] getOutput() {
+			return this.output;
+		}
+
+		/**
+		 * @return the collected error, which must not be modified
+		 */
+		public byte[] getError() {
+			return this.error;
+		}
+
+		long size() {
+			return ENTRY_OVERHEAD + this.output.length + this.error.length;
+		}
+	}
+}
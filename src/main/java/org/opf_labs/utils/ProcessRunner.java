@@ -2,12 +2,20 @@ package org.opf_labs.utils;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Interface created for ProcessRunnerImpl, really just for mocking out to test.
- * 
+ * <p>
+ * Methods have been added since the first release, file redirection, output
+ * handlers, charset aware and byte output, metrics and listeners, and more
+ * may be, so classes implementing this interface directly break when they
+ * are. Extend {@link AbstractProcessRunner} instead, which has defaults for
+ * every method added.
+ * </p>
  */
 public interface ProcessRunner {
 
@@ -36,6 +44,70 @@ public interface ProcessRunner {
 	 */
 	public abstract void setInputStream(InputStream processInput);
 
+	/**
+	 * Redirect the process input from a file. The operating system feeds the
+	 * file to the process directly, so the bytes never pass through the JVM.
+	 * Replaces any input stream set with {@link #setInputStream(InputStream)}.
+	 * 
+	 * @param inputFile
+	 *            the file to read from, or null to read from a pipe again.
+	 */
+	public abstract void setInputFile(File inputFile);
+
+	/**
+	 * Redirect the process input from a file, see {@link #setInputFile(File)}.
+	 * 
+	 * @param inputFile
+	 *            the file to read from, or null to read from a pipe again.
+	 */
+	public abstract void setInputFile(Path inputFile);
+
+	/**
+	 * Redirect the process output to a file. The operating system writes the
+	 * output to the file directly, so the bytes never pass through the JVM,
+	 * and {@link #getProcessOutput()} will be empty.
+	 * 
+	 * @param outputFile
+	 *            the file to write to, or null to collect the output again.
+	 * @param append
+	 *            true to append to the file, false to truncate it first.
+	 */
+	public abstract void setOutputFile(File outputFile, boolean append);
+
+	/**
+	 * Redirect the process output to a file, see
+	 * {@link #setOutputFile(File, boolean)}.
+	 * 
+	 * @param outputFile
+	 *            the file to write to, or null to collect the output again.
+	 * @param append
+	 *            true to append to the file, false to truncate it first.
+	 */
+	public abstract void setOutputFile(Path outputFile, boolean append);
+
+	/**
+	 * Redirect the process error output to a file. The operating system
+	 * writes the error output to the file directly, so the bytes never pass
+	 * through the JVM, and {@link #getProcessError()} will be empty.
+	 * 
+	 * @param errorFile
+	 *            the file to write to, or null to collect the error again.
+	 * @param append
+	 *            true to append to the file, false to truncate it first.
+	 */
+	public abstract void setErrorFile(File errorFile, boolean append);
+
+	/**
+	 * Redirect the process error output to a file, see
+	 * {@link #setErrorFile(File, boolean)}.
+	 * 
+	 * @param errorFile
+	 *            the file to write to, or null to collect the error again.
+	 * @param append
+	 *            true to append to the file, false to truncate it first.
+	 */
+	public abstract void setErrorFile(Path errorFile, boolean append);
+
 	/**
 	 * The directory to be used as starting dir. If not set, uses the dir of the
 	 * current process.
@@ -70,6 +142,28 @@ public interface ProcessRunner {
 	 */
 	public abstract void setCollection(boolean collect);
 
+	/**
+	 * Stream the output of the process to a handler as it is produced,
+	 * instead of collecting it. The handler is used whether or not collection
+	 * is on, {@link #getProcessOutput()} will be empty and {@link #execute()}
+	 * only returns once the handler has seen all of the output.
+	 * 
+	 * @param outputHandler
+	 *            receives the output, or null to stop streaming it.
+	 */
+	public abstract void setOutputHandler(ProcessOutputHandler outputHandler);
+
+	/**
+	 * Stream the error output of the process to a handler as it is produced,
+	 * instead of collecting it. The handler is used whether or not collection
+	 * is on, {@link #getProcessError()} will be empty and {@link #execute()}
+	 * only returns once the handler has seen all of the error output.
+	 * 
+	 * @param errorHandler
+	 *            receives the error output, or null to stop streaming it.
+	 */
+	public abstract void setErrorHandler(ProcessOutputHandler errorHandler);
+
 	/**
 	 * The OutputStream will either be the OutputStream directly from the
 	 * execution of the native commands or a cache with the output of the
@@ -107,7 +201,7 @@ public interface ProcessRunner {
 
 	/**
 	 * Return what was printed on the output channel of a _finished_ process, as
-	 * a string, including newlines.
+	 * a string, including newlines, decoded with the platform default charset.
 	 * 
 	 * @return the output as a string
 	 */
@@ -115,12 +209,66 @@ public interface ProcessRunner {
 
 	/**
 	 * Return what was printed on the error channel of a _finished_ process, as
-	 * a string, including newlines.
+	 * a string, including newlines, decoded with the platform default charset.
 	 * 
 	 * @return the error as a string
 	 */
 	public abstract String getProcessErrorAsString();
 
+	/**
+	 * Return what was printed on the output channel of a _finished_ process,
+	 * decoded with the given charset.
+	 * 
+	 * @param charset
+	 *            the charset the process wrote its output in
+	 * @return the output as a string
+	 */
+	public abstract String getProcessOutputAsString(Charset charset);
+
+	/**
+	 * Return what was printed on the error channel of a _finished_ process,
+	 * decoded with the given charset.
+	 * 
+	 * @param charset
+	 *            the charset the process wrote its error in
+	 * @return the error as a string
+	 */
+	public abstract String getProcessErrorAsString(Charset charset);
+
+	/**
+	 * Return the raw bytes printed on the output channel of a _finished_
+	 * process. Collected output is returned without copying, so the array
+	 * must not be modified.
+	 * 
+	 * @return the output bytes, or null if no output is available
+	 */
+	public abstract byte[] getProcessOutputAsBytes();
+
+	/**
+	 * Return the raw bytes printed on the error channel of a _finished_
+	 * process. Collected error output is returned without copying, so the
+	 * array must not be modified.
+	 * 
+	 * @return the error bytes, or null if no error output is available
+	 */
+	public abstract byte[] getProcessErrorAsBytes();
+
+	/**
+	 * Set a listener to be told the metrics of each run, or why it failed.
+	 * 
+	 * @param listener
+	 *            the listener, or null for none.
+	 */
+	public abstract void setListener(ProcessRunnerListener listener);
+
+	/**
+	 * Return the timing and volume breakdown of the last run. Only valid
+	 * after the process has been run, of course.
+	 * 
+	 * @return the metrics of the last run, or null if no process was run.
+	 */
+	public abstract ProcessMetrics getMetrics();
+
 	/**
 	 * Execute the command
 	 * 
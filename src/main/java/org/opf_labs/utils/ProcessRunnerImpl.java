@@ -10,22 +10,38 @@
  *******************************************************************************/
 package org.opf_labs.utils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringWriter;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.IOUtils;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * <p>
  * Native command executor. Based on ProcessBuilder.
@@ -34,7 +50,7 @@ import org.apache.commons.io.IOUtils;
  * <li>Handle automatic collection of bytes from the output and error streams,
  * to ensure that they dont block.
  * <li>Handles automatic feeding of input to the process.
- * <li>Blocking while executing
+ * <li>Blocking while executing, or asynchronous with {@link #executeAsync()}
  * <li>Implements Runnable, to be wrapped in a Thread.
  * </ul>
  * </p>
@@ -46,41 +62,94 @@ import org.apache.commons.io.IOUtils;
  * 
  * <p>
  * This code is not yet entirely thread safe. Be sure to only call a given
- * processRunner from one thread, and do not reuse it.
+ * processRunner from one thread, and do not reuse it. To run the same
+ * command many times, or from many threads, build a {@link ProcessCommand}
+ * instead.
  * </p>
  */
-public class ProcessRunnerImpl implements Runnable, ProcessRunner {
+public class ProcessRunnerImpl extends AbstractProcessRunner implements
+		Runnable {
 	private InputStream processInput = null;
 	private InputStream processOutput = null;
 	private InputStream processError = null;
+	/** The collected output, or null if it was left in the process stream */
+	private byte[] outputBytes = null;
+	/** The collected error, or null if it was left in the process stream */
+	private byte[] errorBytes = null;
+
+	/**
+	 * Counted down by each of the pumps that collect the output from the
+	 * commands when it's finished.
+	 */
+	private CountDownLatch pumpsFinished = new CountDownLatch(0);
 
 	/**
-	 * The threads that polls the output from the commands. When a thread is
-	 * finished, it removes itself from this list.
+	 * Executor that runs the stream pumps, shared by all runners that aren't
+	 * given one of their own so that pump threads are reused rather than
+	 * started afresh for every process.
 	 */
-	private final List<Thread> threads = Collections
-			.synchronizedList(new LinkedList<Thread>());
+	private final Executor pumpExecutor;
 
 	private static final int MAXINITIALBUFFER = 1000000;
 	private static final int THREADTIMEOUT = 1000; // Milliseconds
-	private static final int POLLING_INTERVAL = 100;// milli
+	/** Milliseconds to wait after exit for output handlers to finish */
+	static final long HANDLER_TIMEOUT = 30000;
+	/** Milliseconds between asking a process tree to stop and killing it */
+	static final long DEFAULT_KILL_GRACE_PERIOD = 2000;
 
 	private final ProcessBuilder pb;
 
 	private long timeout = Long.MAX_VALUE;
+	private long killGracePeriod = DEFAULT_KILL_GRACE_PERIOD;
 
 	private boolean collect = true;
 	private int maxOutput = 31000;
 	private int maxError = 31000;
+	private CollectionOverflow overflow = CollectionOverflow.DISCARD;
+	private long outputTruncated = 0L;
+	private long errorTruncated = 0L;
+	private File outputSpillFile = null;
+	private File errorSpillFile = null;
+	private int pumpBufferSize = StreamPumps.DEFAULT_BUFFER_SIZE;
+	private ProcessOutputHandler outputHandler = null;
+	private ProcessOutputHandler errorHandler = null;
+	private ProcessRunnerListener listener = null;
+	private ProcessMetrics metrics = null;
+	private volatile boolean killed;
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong bytesErr = new AtomicLong();
+	/** The nanoTime the first output or error byte was read, 0 for none */
+	private final AtomicLong firstByteAt = new AtomicLong();
+	/** The first failure reported by an output handler during a run */
+	private final AtomicReference<Exception> handlerFailure = new AtomicReference<Exception>();
 	private int return_code;
 	private boolean timedOut;
+	private ProcessLimits limits = null;
+	private ProcessLimits.Limit limitHit = null;
 
 	/**
 	 * Create a new ProcessRunner. Cannot run, until you specify something with
 	 * the assessor methods.
 	 */
 	ProcessRunnerImpl() {
+		this(DefaultPumpExecutor.INSTANCE);
+	}
+
+	/**
+	 * Create a new ProcessRunner whose stream pumps run on the given executor.
+	 * The executor must be able to run at least three tasks concurrently for
+	 * each process in flight, or the pumps will starve.
+	 * 
+	 * @param pumpExecutor
+	 *            the executor used to pump the process streams
+	 */
+	ProcessRunnerImpl(final Executor pumpExecutor) {
+		if (pumpExecutor == null) {
+			throw new IllegalArgumentException("pumpExecutor can't be null.");
+		}
 		this.pb = new ProcessBuilder();
+		this.pumpExecutor = pumpExecutor;
 	}
 
 	/**
@@ -100,6 +169,45 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 	@Override
 	public synchronized void setInputStream(final InputStream processInput) {
 		this.processInput = processInput;
+		if (processInput != null) {
+			this.pb.redirectInput(Redirect.PIPE);
+		}
+	}
+
+	/**
+	 * @see ProcessRunner#setInputFile(java.io.File)
+	 */
+	@Override
+	public synchronized void setInputFile(final File inputFile) {
+		if (inputFile == null) {
+			this.pb.redirectInput(Redirect.PIPE);
+		} else {
+			this.processInput = null;
+			this.pb.redirectInput(inputFile);
+		}
+	}
+
+	/**
+	 * @see ProcessRunner#setOutputFile(java.io.File, boolean)
+	 */
+	@Override
+	public void setOutputFile(final File outputFile, final boolean append) {
+		this.pb.redirectOutput(redirectTo(outputFile, append));
+	}
+
+	/**
+	 * @see ProcessRunner#setErrorFile(java.io.File, boolean)
+	 */
+	@Override
+	public void setErrorFile(final File errorFile, final boolean append) {
+		this.pb.redirectError(redirectTo(errorFile, append));
+	}
+
+	private static Redirect redirectTo(final File file, final boolean append) {
+		if (file == null) {
+			return Redirect.PIPE;
+		}
+		return append ? Redirect.appendTo(file) : Redirect.to(file);
 	}
 
 	/**
@@ -126,6 +234,75 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 		this.timeout = timeout;
 	}
 
+	/**
+	 * How long a process that's timed out, been cancelled or been interrupted
+	 * has to exit after being asked to terminate (SIGTERM on UNIX), before it
+	 * is killed (SIGKILL). Both signals go to the whole process tree, so
+	 * grandchildren started by shell wrappers are stopped too. Timeouts and
+	 * the grace period are measured with the monotonic clock. Default 2000.
+	 * 
+	 * @param killGracePeriod
+	 *            the grace period in millisecs, 0 to kill straight away.
+	 */
+	public void setKillGracePeriod(final long killGracePeriod) {
+		if (killGracePeriod < 0) {
+			throw new IllegalArgumentException(
+					"killGracePeriod can't be negative, was " + killGracePeriod);
+		}
+		this.killGracePeriod = killGracePeriod;
+	}
+
+	/**
+	 * Run the process under operating system resource limits, see
+	 * {@link ProcessLimits}. Default none.
+	 * 
+	 * @param limits
+	 *            the limits, or null for none.
+	 */
+	public void setLimits(final ProcessLimits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * @return the resource limit the last run was seen to hit, or null if
+	 *         none was.
+	 */
+	public ProcessLimits.Limit getLimitHit() {
+		return this.limitHit;
+	}
+
+	/**
+	 * @see ProcessRunner#setOutputHandler(ProcessOutputHandler)
+	 */
+	@Override
+	public void setOutputHandler(final ProcessOutputHandler outputHandler) {
+		this.outputHandler = outputHandler;
+	}
+
+	/**
+	 * @see ProcessRunner#setErrorHandler(ProcessOutputHandler)
+	 */
+	@Override
+	public void setErrorHandler(final ProcessOutputHandler errorHandler) {
+		this.errorHandler = errorHandler;
+	}
+
+	/**
+	 * @see ProcessRunner#setListener(ProcessRunnerListener)
+	 */
+	@Override
+	public void setListener(final ProcessRunnerListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @see ProcessRunner#getMetrics()
+	 */
+	@Override
+	public ProcessMetrics getMetrics() {
+		return this.metrics;
+	}
+
 	/**
 	 * @see ProcessRunner#setCollection(boolean)
 	 */
@@ -135,9 +312,41 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 	}
 
 	/**
-	 * How many bytes should we collect from the ErrorStream. Will block when
-	 * limit is reached. Default 31000. If set to negative values, will collect
-	 * until out of memory.
+	 * What to do with collected output beyond the collection byte size.
+	 */
+	public enum CollectionOverflow {
+		/** Keep the first bytes in memory and discard the rest, the default */
+		DISCARD,
+		/** Keep the first bytes in memory and spill the rest to a temp file */
+		SPILL_TO_FILE,
+		/**
+		 * Keep the first half and the last half of the bytes in memory and
+		 * discard the middle, so both the start and the end of the output are
+		 * kept
+		 */
+		KEEP_HEAD_AND_TAIL;
+	}
+
+	/**
+	 * What to do with output and error bytes beyond the collection byte
+	 * sizes. Default {@link CollectionOverflow#DISCARD}.
+	 * 
+	 * @param overflow
+	 *            the overflow behaviour for both streams.
+	 */
+	public void setCollectionOverflow(final CollectionOverflow overflow) {
+		if (overflow == null) {
+			throw new IllegalArgumentException("overflow can't be null.");
+		}
+		this.overflow = overflow;
+	}
+
+	/**
+	 * How many bytes should we collect from the ErrorStream in memory. The
+	 * stream is always drained, so the process never blocks, and bytes over
+	 * the limit are handled according to
+	 * {@link #setCollectionOverflow(CollectionOverflow)}. Default 31000. If
+	 * set to negative values, will collect until out of memory.
 	 * 
 	 * @param maxError
 	 *            number of bytes to max collect.
@@ -147,9 +356,11 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 	}
 
 	/**
-	 * How many bytes should we collect from the OutputStream. Will block when
-	 * limit is reached. Default 31000; If set to negative values, will collect
-	 * until out of memory.
+	 * How many bytes should we collect from the OutputStream in memory. The
+	 * stream is always drained, so the process never blocks, and bytes over
+	 * the limit are handled according to
+	 * {@link #setCollectionOverflow(CollectionOverflow)}. Default 31000. If
+	 * set to negative values, will collect until out of memory.
 	 * 
 	 * @param maxOutput
 	 *            number of bytes to max collect.
@@ -159,6 +370,57 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 		this.maxOutput = maxOutput;
 	}
 
+	/**
+	 * The size of the chunks in which the pumps copy bytes to and from the
+	 * process. Default 64KiB, buffers are pooled and reused between runs.
+	 * 
+	 * @param pumpBufferSize
+	 *            the pump buffer size in bytes, must be at least 1.
+	 */
+	public void setPumpBufferSize(final int pumpBufferSize) {
+		if (pumpBufferSize < 1) {
+			throw new IllegalArgumentException(
+					"pumpBufferSize must be at least 1, was " + pumpBufferSize);
+		}
+		this.pumpBufferSize = pumpBufferSize;
+	}
+
+	/**
+	 * @return the number of output bytes that didn't fit in memory, they're
+	 *         either discarded or in the output spill file.
+	 */
+	public long getOutputTruncatedByteCount() {
+		return this.outputTruncated;
+	}
+
+	/**
+	 * @return the number of error bytes that didn't fit in memory, they're
+	 *         either discarded or in the error spill file.
+	 */
+	public long getErrorTruncatedByteCount() {
+		return this.errorTruncated;
+	}
+
+	/**
+	 * The temp file holding the output bytes that didn't fit in memory, when
+	 * spilling to file. The caller is responsible for deleting it.
+	 * 
+	 * @return the spill file, or null if nothing was spilled.
+	 */
+	public File getOutputSpillFile() {
+		return this.outputSpillFile;
+	}
+
+	/**
+	 * The temp file holding the error bytes that didn't fit in memory, when
+	 * spilling to file. The caller is responsible for deleting it.
+	 * 
+	 * @return the spill file, or null if nothing was spilled.
+	 */
+	public File getErrorSpillFile() {
+		return this.errorSpillFile;
+	}
+
 	/**
 	 * @see ProcessRunner#getProcessOutput()
 	 */
@@ -196,7 +458,7 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 	 */
 	@Override
 	public String getProcessOutputAsString() {
-		return getStringContent(getProcessOutput());
+		return getProcessOutputAsString(Charset.defaultCharset());
 	}
 
 	/**
@@ -204,46 +466,143 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 	 */
 	@Override
 	public String getProcessErrorAsString() {
-		return getStringContent(getProcessError());
+		return getProcessErrorAsString(Charset.defaultCharset());
+	}
+
+	/**
+	 * @see ProcessRunner#getProcessOutputAsString(java.nio.charset.Charset)
+	 */
+	@Override
+	public String getProcessOutputAsString(final Charset charset) {
+		return getStringContent(getProcessOutputAsBytes(), charset);
+	}
+
+	/**
+	 * @see ProcessRunner#getProcessErrorAsString(java.nio.charset.Charset)
+	 */
+	@Override
+	public String getProcessErrorAsString(final Charset charset) {
+		return getStringContent(getProcessErrorAsBytes(), charset);
+	}
+
+	/**
+	 * @see ProcessRunner#getProcessOutputAsBytes()
+	 */
+	@Override
+	public synchronized byte[] getProcessOutputAsBytes() {
+		if (this.outputBytes == null) {
+			this.outputBytes = readFully(this.processOutput);
+		}
+		return this.outputBytes;
+	}
+
+	/**
+	 * @see ProcessRunner#getProcessErrorAsBytes()
+	 */
+	@Override
+	public synchronized byte[] getProcessErrorAsBytes() {
+		if (this.errorBytes == null) {
+			this.errorBytes = readFully(this.processError);
+		}
+		return this.errorBytes;
+	}
+
+	/**
+	 * Wait for the pumps feeding output handlers to finish, for up to
+	 * {@link #HANDLER_TIMEOUT}, and record a handler failure if they don't.
+	 * A descendant holding the output open, or a handler that blocks, would
+	 * otherwise hold the run up for ever.
+	 */
+	private void waitForHandlers() {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(HANDLER_TIMEOUT);
+		long endTime = System.nanoTime() + remaining;
+		boolean interrupted = false;
+		try {
+			while (remaining > 0) {
+				try {
+					if (this.pumpsFinished.await(remaining,
+							TimeUnit.NANOSECONDS)) {
+						return;
+					}
+				} catch (InterruptedException e) {
+					// Carry on waiting, the flag is restored below
+					interrupted = true;
+				}
+				remaining = endTime - System.nanoTime();
+			}
+			this.handlerFailure.compareAndSet(null, new IOException(
+					"Output handlers hadn't finished " + HANDLER_TIMEOUT
+							+ "ms after the process exited."));
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	/**
 	 * Wait for the polling threads to finish.
 	 */
-	private synchronized void waitForThreads() {
-		long endTime = System.currentTimeMillis() + THREADTIMEOUT;
-		while (System.currentTimeMillis() < endTime && this.threads.size() > 0) {
-			try {
-				wait(POLLING_INTERVAL);
-			} catch (InterruptedException e) {
-				// Ignore, as we are just waiting
+	private void waitForThreads() {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(THREADTIMEOUT);
+		long endTime = System.nanoTime() + remaining;
+		boolean interrupted = false;
+		try {
+			while (remaining > 0) {
+				try {
+					this.pumpsFinished.await(remaining, TimeUnit.NANOSECONDS);
+					return;
+				} catch (InterruptedException e) {
+					// Carry on waiting, the flag is restored below
+					interrupted = true;
+				}
+				remaining = endTime - System.nanoTime();
 			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Utility Method for decoding collected bytes into a string, for
+	 * returning
+	 * 
+	 * @param bytes
+	 *            the bytes to decode.
+	 * @param charset
+	 *            the charset to decode with.
+	 * @return A string with the decoded bytes.
+	 */
+	private static String getStringContent(final byte[] bytes,
+			final Charset charset) {
+		if (charset == null) {
+			throw new IllegalArgumentException("charset can't be null.");
 		}
+		if (bytes == null) {
+			return null;
+		}
+		return new String(bytes, charset);
 	}
 
 	/**
-	 * Utility Method for reading a stream into a string, for returning
+	 * Utility Method for reading an uncollected process stream into a byte
+	 * array.
 	 * 
 	 * @param stream
-	 *            the string to read.
-	 * @return A string with the contents of the stream.
+	 *            the stream to read.
+	 * @return the contents of the stream, or null if it couldn't be read.
 	 */
-	private static String getStringContent(final InputStream stream) {
+	private static byte[] readFully(final InputStream stream) {
 		if (stream == null) {
 			return null;
 		}
-		BufferedInputStream in = new BufferedInputStream(stream, 1000);
-		StringWriter sw = new StringWriter(1000);
-		int c;
 		try {
-			while ((c = in.read()) != -1) {
-				sw.append((char) c);
-			}
-			return sw.toString();
+			return IOUtils.toByteArray(stream);
 		} catch (IOException e) {
-			return "Could not transform content of stream to String";
+			return null;
 		}
-
 	}
 
 	@Override
@@ -251,10 +610,68 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 		try {
 			run();
 		} catch (RuntimeException excep) {
-			throw new ProcessRunnerException("Error running process: " + excep.getMessage());
+			throw new ProcessRunnerException("Error running process: "
+					+ excep.getMessage(), excep);
 		}
 	}
 
+	/**
+	 * Start the process and return straight away, without tying up the
+	 * calling thread while it runs. The future completes with this runner,
+	 * whose getters then hold the results, once the process has exited and
+	 * its output has been drained. Completion is driven by the JVM's process
+	 * exit notification where the runtime has one (Java 9 on), otherwise by a
+	 * shared waiter thread.
+	 * <p>
+	 * Cancelling the future destroys the process. Failure to start the process
+	 * or an output handler failing fail the future with a
+	 * {@link ProcessRunnerException}.
+	 * </p>
+	 * 
+	 * @return a future holding this runner once the process has finished.
+	 */
+	public ListenableFuture<ProcessRunner> executeAsync() {
+		final SettableFuture<ProcessRunner> future = SettableFuture.create();
+		final Launch launch;
+		try {
+			launch = launch();
+		} catch (RuntimeException excep) {
+			future.setException(new ProcessRunnerException(
+					"Error running process: " + excep.getMessage(), excep));
+			return future;
+		}
+		launch.whenDone = new Runnable() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public void run() {
+				try {
+					complete(launch, launch.process.exitValue());
+					future.set(ProcessRunnerImpl.this);
+				} catch (RuntimeException excep) {
+					future.setException(new ProcessRunnerException(
+							"Error running process: " + excep.getMessage(),
+							excep));
+				}
+			}
+		};
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (future.isCancelled()) {
+					ProcessRunnerImpl.this.killed = true;
+					terminate(launch.process);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		ExitNotifier.whenExited(launch.process, new Runnable() {
+			@Override
+			public void run() {
+				launch.countDown();
+			}
+		});
+		return future;
+	}
+
 	/**
 	 * Run the method, feeding it input, and killing it if the timeout is
 	 * exceeded. Blocking.
@@ -262,165 +679,611 @@ public class ProcessRunnerImpl implements Runnable, ProcessRunner {
 	 * @see java.lang.Runnable#run()
 	 */
 	@Override
-	@SuppressWarnings("resource")
 	public void run() {
-		ByteArrayOutputStream pOut = null;
-		ByteArrayOutputStream pError = null;
-		try {
-			Process p = this.pb.start();
-			if (this.collect) {
-				pOut = collectProcessOutput(p.getInputStream(), this.maxOutput);
-				pError = collectProcessOutput(p.getErrorStream(), this.maxError);
-				this.return_code = execute(p);
-				waitForThreads();
-				this.processOutput = new ByteArrayInputStream(
-						pOut.toByteArray());
-				this.processError = new ByteArrayInputStream(
-						pError.toByteArray());
+		Launch launch = launch();
+		complete(launch, waitFor(launch.process));
+	}
 
-			} else {
-				this.processOutput = p.getInputStream();
-				this.processError = p.getErrorStream();
-				this.return_code = execute(p);
+	/**
+	 * Start the process, its pumps, its input feeder and its watchdog.
+	 */
+	private Launch launch() {
+		this.timedOut = false;
+		this.killed = false;
+		this.metrics = null;
+		this.bytesIn.set(0L);
+		this.bytesOut.set(0L);
+		this.bytesErr.set(0L);
+		this.firstByteAt.set(0L);
+		this.limitHit = null;
+		List<String> command = this.pb.command();
+		String commandName = ProcessMetrics.commandName(command);
+		long started = System.nanoTime();
+		ProcessLimits.Applied limited = null;
+		Process p;
+		try {
+			if (this.limits != null) {
+				limited = this.limits.apply(command);
+				this.pb.command(limited.getCommand());
 			}
+			p = this.pb.start();
 		} catch (IOException e) {
+			if (limited != null) {
+				limited.finish(-1);
+			}
+			notifyListener(this.listener, commandName, null, e);
 			throw new RuntimeException(
 					"An io error occurred when running the command", e);
 		} finally {
-			IOUtils.closeQuietly(pOut);
-			IOUtils.closeQuietly(pError);
+			this.pb.command(command);
 		}
-	}
-
-	private synchronized int execute(final Process p) {
-		long startTime = System.currentTimeMillis();
-		feedProcess(p, this.processInput);
-		int return_value;
-
-		while (true) {
-			// is the thread finished?
-			try {
-				// then return
-				return_value = p.exitValue();
-				break;
-			} catch (IllegalThreadStateException e) {
-				// not finished
+		long spawned = System.nanoTime();
+		OutputCollector pOut = null;
+		OutputCollector pError = null;
+		if (this.collect) {
+			pOut = (this.outputHandler == null) ? new OutputCollector(
+					this.maxOutput, this.overflow) : null;
+			pError = (this.errorHandler == null) ? new OutputCollector(
+					this.maxError, this.overflow) : null;
+		}
+		ProcessOutputHandler outSink = (this.outputHandler != null) ? this.outputHandler
+				: pOut;
+		ProcessOutputHandler errSink = (this.errorHandler != null) ? this.errorHandler
+				: pError;
+		int pumps = ((outSink != null) ? 1 : 0) + ((errSink != null) ? 1 : 0);
+		final Launch launch = new Launch(p, commandName, started, spawned,
+				pOut, pError, outSink, errSink, pumps, limited);
+		this.handlerFailure.set(null);
+		this.pumpsFinished = new CountDownLatch(pumps);
+		try {
+			if (outSink != null) {
+				pumpProcessOutput(p.getInputStream(), outSink, this.bytesOut,
+						launch);
 			}
-			// is the runtime exceeded?
-			if (System.currentTimeMillis() - startTime > this.timeout) {
-				// then return
-				p.destroy();
-				return_value = -1;
-				this.timedOut = true;
+			if (errSink != null) {
+				pumpProcessOutput(p.getErrorStream(), errSink, this.bytesErr,
+						launch);
 			}
-			// else sleep again
-			try {
-				wait(POLLING_INTERVAL);
-			} catch (InterruptedException e) {
-				// just go on.
+			feedProcess(p, this.processInput);
+			if (this.timeout < Long.MAX_VALUE) {
+				final Process process = p;
+				launch.watchdog = Watchdog.INSTANCE.schedule(new Runnable() {
+					@Override
+					public void run() {
+						launch.expired.set(true);
+						ProcessRunnerImpl.this.killed = true;
+						terminate(process);
+					}
+				}, Math.max(0L, this.timeout), TimeUnit.MILLISECONDS);
+			}
+		} catch (RuntimeException e) {
+			// Say a shut down pump executor, the process is running but no
+			// one will ever wait for it, so don't leave it or its group
+			terminate(p);
+			if (limited != null) {
+				limited.finish(-1);
 			}
+			notifyListener(this.listener, commandName, null, e);
+			throw e;
+		}
+		return launch;
+	}
 
+	/**
+	 * Gather the results of a launched process once it has exited.
+	 */
+	private void complete(final Launch launch, final int exitValue) {
+		if (launch.watchdog != null) {
+			launch.watchdog.cancel(false);
+		}
+		this.return_code = exitValue;
+		if (launch.limited != null) {
+			this.limitHit = launch.limited.finish(exitValue);
+		}
+		if (launch.expired.get()) {
+			this.timedOut = true;
+			this.return_code = -1;
+		}
+		if (this.outputHandler != null || this.errorHandler != null) {
+			// Handlers must see everything before we return
+			waitForHandlers();
+		} else {
+			waitForThreads();
 		}
-		return return_value;
+		OutputCollector pOut = launch.pOut;
+		OutputCollector pError = launch.pError;
+		this.outputTruncated = (pOut != null) ? pOut.getTruncated() : 0L;
+		this.errorTruncated = (pError != null) ? pError.getTruncated() : 0L;
+		this.outputSpillFile = (pOut != null) ? pOut.getSpillFile() : null;
+		this.errorSpillFile = (pError != null) ? pError.getSpillFile() : null;
+		this.outputBytes = collectedBytes(launch.outSink, pOut);
+		this.errorBytes = collectedBytes(launch.errSink, pError);
+		Process p = launch.process;
+		this.processOutput = (this.outputBytes != null) ? new ByteArrayInputStream(
+				this.outputBytes) : p.getInputStream();
+		this.processError = (this.errorBytes != null) ? new ByteArrayInputStream(
+				this.errorBytes) : p.getErrorStream();
+		long firstByte = this.firstByteAt.get();
+		this.metrics = ProcessMetrics.builder(launch.commandName)
+				.setSpawnNanos(launch.spawned - launch.started)
+				.setWallNanos(System.nanoTime() - launch.started)
+				.setFirstByteNanos((firstByte == 0L) ? -1L
+						: Math.max(0L, firstByte - launch.started))
+				.setBytesIn(this.bytesIn.get())
+				.setBytesOut(this.bytesOut.get())
+				.setBytesErr(this.bytesErr.get())
+				.setBytesTruncated(this.outputTruncated + this.errorTruncated)
+				.setReturnCode(this.return_code).setTimedOut(this.timedOut)
+				.setKilled(this.killed).build();
+		notifyListener(this.listener, launch.commandName, this.metrics, null);
+		Exception failure = this.handlerFailure.get();
+		if (failure != null) {
+			throw new RuntimeException("An output handler failed: "
+					+ failure.getMessage(), failure);
+		}
+	}
 
+	/**
+	 * Tell a listener how a run went, ignoring anything it throws.
+	 *
+	 * @param listener
+	 *            the listener, or null for none
+	 * @param commandName
+	 *            the name of the command that was run
+	 * @param finished
+	 *            the metrics of a finished run, or null if the run failed
+	 * @param cause
+	 *            why the run failed, when it did
+	 */
+	static void notifyListener(final ProcessRunnerListener listener,
+			final String commandName, final ProcessMetrics finished,
+			final Throwable cause) {
+		if (listener == null) {
+			return;
+		}
+		try {
+			if (finished != null) {
+				listener.processFinished(finished);
+			} else {
+				listener.processFailed(commandName, cause);
+			}
+		} catch (RuntimeException excep) {
+			// Listeners mustn't break the run
+		}
 	}
 
-	private ByteArrayOutputStream collectProcessOutput(
-			final InputStream inputStream, final int maxCollect) {
-		final ByteArrayOutputStream stream;
-		if (maxCollect < 0) {
-			stream = new ByteArrayOutputStream();
-		} else {
-			stream = new ByteArrayOutputStream(Math.min(MAXINITIALBUFFER,
-					maxCollect));
+	private static byte[] collectedBytes(final ProcessOutputHandler sink,
+			final OutputCollector collector) {
+		if (collector != null) {
+			return collector.toByteArray();
 		}
+		if (sink != null) {
+			// Handed to a handler, so there's nothing left to read
+			return new byte[0];
+		}
+		return null;
+	}
 
-		Thread t = new Thread() {
+	/**
+	 * Block until the process exits, the watchdog terminates the process if
+	 * the timeout is exceeded, so no polling is needed. If the calling thread
+	 * is interrupted the process is terminated, and the interrupt flag is
+	 * restored once it has exited.
+	 */
+	private int waitFor(final Process p) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return p.waitFor();
+				} catch (InterruptedException e) {
+					if (!interrupted) {
+						this.killed = true;
+						terminate(p);
+					}
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Terminate the process and all of its descendants, killing any left
+	 * after the grace period.
+	 */
+	private void terminate(final Process p) {
+		ProcessTrees.terminate(p, this.killGracePeriod, Watchdog.INSTANCE);
+	}
+
+	private void pumpProcessOutput(final InputStream inputStream,
+			final ProcessOutputHandler sink, final AtomicLong byteCount,
+			final Launch launch) {
+		final int bufferSize = this.pumpBufferSize;
+		Runnable t = new Runnable() {
 			@SuppressWarnings("synthetic-access")
 			@Override
 			public void run() {
+				byte[] buffer = StreamPumps.acquireBuffer(bufferSize);
 				try {
-					InputStream reader = null;
-					OutputStream writer = null;
 					try {
-						reader = new BufferedInputStream(inputStream);
-						writer = new BufferedOutputStream(stream);
-						int c;
-						int counter = 0;
-						while ((c = reader.read()) != -1) {
-							counter++;
-							if (maxCollect < 0 || counter < maxCollect) {
-								writer.write(c);
+						boolean handling = true;
+						int read;
+						while ((read = inputStream.read(buffer)) != -1) {
+							if (byteCount.getAndAdd(read) == 0L) {
+								ProcessRunnerImpl.this.firstByteAt
+										.compareAndSet(0L, System.nanoTime());
+							}
+							// Once the sink has failed keep draining, so
+							// the process doesn't block on a full pipe
+							if (handling) {
+								handling = handle(sink, buffer, read);
 							}
 						}
-					} finally {
-						if (reader != null) {
-							reader.close();
-						}
-						if (writer != null) {
-							writer.close();
+						if (handling) {
+							finish(sink);
 						}
+					} finally {
+						StreamPumps.releaseBuffer(buffer);
+						inputStream.close();
 					}
 				} catch (IOException e) {
 					// This seems ugly
 					throw new RuntimeException("Couldn't read output from "
 							+ "process.", e);
+				} finally {
+					ProcessRunnerImpl.this.pumpsFinished.countDown();
+					launch.countDown();
 				}
-				ProcessRunnerImpl.this.threads.remove(this);
 			}
 		};
-		this.threads.add(t);
-		t.start();
-		return stream;
+		this.pumpExecutor.execute(t);
+	}
+
+	private boolean handle(final ProcessOutputHandler sink,
+			final byte[] buffer, final int length) {
+		try {
+			sink.handleOutput(buffer, 0, length);
+			return true;
+		} catch (IOException excep) {
+			this.handlerFailure.compareAndSet(null, excep);
+		} catch (RuntimeException excep) {
+			// A broken handler mustn't stop the pipe being drained
+			this.handlerFailure.compareAndSet(null, excep);
+		}
+		return false;
+	}
+
+	private void finish(final ProcessOutputHandler sink) {
+		try {
+			sink.outputFinished();
+		} catch (IOException excep) {
+			this.handlerFailure.compareAndSet(null, excep);
+		} catch (RuntimeException excep) {
+			this.handlerFailure.compareAndSet(null, excep);
+		}
 	}
 
-	@SuppressWarnings("resource")
-	private static void feedProcess(final Process process,
+	private void feedProcess(final Process process,
 			final InputStream input) {
+		final OutputStream pIn = process.getOutputStream();
 		if (input == null) {
-			// No complaints here - null just means no input
+			// No complaints here - null just means no input, so the process
+			// sees end of file straight away rather than waiting on us
+			IOUtils.closeQuietly(pIn);
 			return;
 		}
 
-		final OutputStream pIn = process.getOutputStream();
 		final InputStream given = input;
-		Thread t = new Thread() {
+		final int bufferSize = this.pumpBufferSize;
+		Runnable t = new Runnable() {
 			@Override
 			public void run() {
 				try {
-					OutputStream writer = null;
-					try {
-						writer = new BufferedOutputStream(pIn);
-						int c;
-						while ((c = given.read()) != -1) {
-							writer.write(c);
-						}
-					} finally {
-						if (writer != null) {
-							writer.close();
-						}
-						pIn.close();
-					}
+					ProcessRunnerImpl.this.bytesIn.set(StreamPumps.copy(given,
+							pIn, bufferSize));
 				} catch (IOException e) {
-					// This seems ugly
-					throw new RuntimeException("Couldn't write input to "
-							+ "process.", e);
+					// Might not be the prettiest solution, but the process
+					// has most likely gone away and there's no-one to tell.
+				} finally {
+					IOUtils.closeQuietly(pIn);
 				}
 			}
 		};
+		this.pumpExecutor.execute(t);
+	}
 
-		Thread.UncaughtExceptionHandler u = new Thread.UncaughtExceptionHandler() {
-			@Override
-			public void uncaughtException(final Thread thread, final Throwable e) {
-				// Might not be the prettiest solution...
+	/**
+	 * @return the executor shared by all runners that aren't given one of
+	 *         their own
+	 */
+	static Executor defaultPumpExecutor() {
+		return DefaultPumpExecutor.INSTANCE;
+	}
+
+	/**
+	 * @return the scheduler that times out and kills processes
+	 */
+	static ScheduledExecutorService watchdog() {
+		return Watchdog.INSTANCE;
+	}
+
+	/**
+	 * Lazily created pool of daemon pump threads, shared by all runners that
+	 * aren't given an executor of their own. Virtual threads when selected,
+	 * see {@link PumpThreads}.
+	 */
+	private static final class DefaultPumpExecutor {
+		static final ExecutorService INSTANCE = PumpThreads
+				.newPumpExecutor("process-pump-%d");
+
+		private DefaultPumpExecutor() {
+			throw new AssertionError("In DefaultPumpExecutor no-arg constructor.");
+		}
+	}
+
+	/**
+	 * A started process and what's needed to gather its results. The
+	 * pending count starts at one per pump plus one for the process exit,
+	 * {@link #whenDone} runs when it reaches zero. Only asynchronous runs
+	 * count the exit, so synchronous runs never reach zero.
+	 */
+	private static final class Launch {
+		final Process process;
+		final String commandName;
+		final long started;
+		final long spawned;
+		final OutputCollector pOut;
+		final OutputCollector pError;
+		final ProcessOutputHandler outSink;
+		final ProcessOutputHandler errSink;
+		final AtomicBoolean expired = new AtomicBoolean(false);
+		/** The limits the process runs under, or null for none */
+		final ProcessLimits.Applied limited;
+		private final AtomicInteger pending;
+		volatile ScheduledFuture<?> watchdog = null;
+		volatile Runnable whenDone = null;
+
+		Launch(final Process process, final String commandName,
+				final long started, final long spawned,
+				final OutputCollector pOut, final OutputCollector pError,
+				final ProcessOutputHandler outSink,
+				final ProcessOutputHandler errSink, final int pumps,
+				final ProcessLimits.Applied limited) {
+			this.process = process;
+			this.commandName = commandName;
+			this.started = started;
+			this.spawned = spawned;
+			this.pOut = pOut;
+			this.pError = pError;
+			this.outSink = outSink;
+			this.errSink = errSink;
+			this.pending = new AtomicInteger(pumps + 1);
+			this.limited = limited;
+		}
+
+		void countDown() {
+			if (this.pending.decrementAndGet() == 0) {
+				this.whenDone.run();
 			}
-		};
-		t.setUncaughtExceptionHandler(u);
-		t.start();
-		try {
-			pIn.close();
-		} catch (IOException excep) {
-			// Nothing to do
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Runs a callback when a process exits. On Java 9 and later this hooks
+	 * <code>Process.onExit()</code>, which completes from the JVM's own
+	 * process reaper, so no thread is parked per process. On older runtimes
+	 * a shared pool of daemon threads waits for each process instead.
+	 */
+	private static final class ExitNotifier {
+		private static final Method ON_EXIT;
+		private static final Method THEN_RUN;
+		static {
+			Method onExit = null;
+			Method thenRun = null;
+			try {
+				onExit = Process.class.getMethod("onExit");
+				thenRun = Class.forName("java.util.concurrent.CompletionStage")
+						.getMethod("thenRun", Runnable.class);
+			} catch (Exception excep) {
+				// Older runtime, so fall back to waiting threads
+				onExit = null;
+				thenRun = null;
+			}
+			ON_EXIT = onExit;
+			THEN_RUN = thenRun;
+		}
+		private static final Executor WAITERS = Executors
+				.newCachedThreadPool(new ThreadFactoryBuilder()
+						.setNameFormat("process-waiter-%d").setDaemon(true)
+						.build());
+
+		private ExitNotifier() {
+			throw new AssertionError("In ExitNotifier no-arg constructor.");
+		}
+
+		static void whenExited(final Process process, final Runnable callback) {
+			if (ON_EXIT != null) {
+				try {
+					THEN_RUN.invoke(ON_EXIT.invoke(process), callback);
+					return;
+				} catch (Exception excep) {
+					// Not usable after all, so wait for it instead
+				}
+			}
+			WAITERS.execute(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							process.waitFor();
+							break;
+						} catch (InterruptedException excep) {
+							// Only the process exiting ends the wait
+						}
+					}
+					callback.run();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Lazily created single daemon thread that terminates processes whose
+	 * timeout has expired, and kills them once their grace period is up.
+	 */
+	private static final class Watchdog {
+		static final ScheduledThreadPoolExecutor INSTANCE = newWatchdog();
+
+		private Watchdog() {
+			throw new AssertionError("In Watchdog no-arg constructor.");
+		}
+
+		private static ScheduledThreadPoolExecutor newWatchdog() {
+			ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(
+					1, new ThreadFactoryBuilder()
+							.setNameFormat("process-watchdog-%d")
+							.setDaemon(true).build());
+			watchdog.setRemoveOnCancelPolicy(true);
+			return watchdog;
+		}
+	}
+
+	/**
+	 * Collects up to a maximum number of bytes of output in memory, and
+	 * discards or spills the rest. A negative maximum collects everything.
+	 */
+	static final class OutputCollector extends ByteArrayOutputStream
+			implements ProcessOutputHandler {
+		private final int maxCollect;
+		private final CollectionOverflow overflow;
+		private final int headSize;
+		/** Ring buffer holding the tail when keeping head and tail */
+		private final byte[] tail;
+		private int tailStart = 0;
+		private int tailLength = 0;
+		private long truncated = 0L;
+		private File spillFile = null;
+		private OutputStream spill = null;
+
+		OutputCollector(final int maxCollect, final CollectionOverflow overflow) {
+			super((maxCollect < 0) ? 32 : Math.min(MAXINITIALBUFFER,
+					maxCollect));
+			this.maxCollect = maxCollect;
+			this.overflow = overflow;
+			if (maxCollect >= 0
+					&& overflow == CollectionOverflow.KEEP_HEAD_AND_TAIL) {
+				this.headSize = maxCollect - maxCollect / 2;
+				this.tail = new byte[maxCollect / 2];
+			} else {
+				this.headSize = maxCollect;
+				this.tail = new byte[0];
+			}
+		}
+
+		@Override
+		public synchronized void handleOutput(final byte[] buffer,
+				final int offset, final int length) throws IOException {
+			if (this.maxCollect < 0) {
+				write(buffer, offset, length);
+				return;
+			}
+			int kept = Math.max(0, Math.min(length, this.headSize - this.count));
+			write(buffer, offset, kept);
+			if (kept < length) {
+				overflow(buffer, offset + kept, length - kept);
+			}
+		}
+
+		private void overflow(final byte[] buffer, final int offset,
+				final int length) throws IOException {
+			switch (this.overflow) {
+			case SPILL_TO_FILE:
+				if (this.spill == null) {
+					this.spillFile = File.createTempFile("process-output",
+							".spill");
+					this.spill = new FileOutputStream(this.spillFile);
+				}
+				this.spill.write(buffer, offset, length);
+				this.truncated += length;
+				break;
+			case KEEP_HEAD_AND_TAIL:
+				keepTail(buffer, offset, length);
+				break;
+			default:
+				this.truncated += length;
+				break;
+			}
+		}
+
+		private void keepTail(final byte[] buffer, final int offset,
+				final int length) {
+			int capacity = this.tail.length;
+			if (capacity == 0) {
+				this.truncated += length;
+				return;
+			}
+			int from = offset;
+			int remaining = length;
+			if (remaining > capacity) {
+				// Only the last capacity bytes can survive
+				from += remaining - capacity;
+				remaining = capacity;
+			}
+			// Everything pushed out of the ring, or never let in, is lost
+			this.truncated += length
+					- remaining
+					+ Math.max(0, this.tailLength + remaining - capacity);
+			while (remaining > 0) {
+				int end = (this.tailStart + this.tailLength) % capacity;
+				int chunk = Math.min(remaining, capacity - end);
+				System.arraycopy(buffer, from, this.tail, end, chunk);
+				from += chunk;
+				remaining -= chunk;
+				if (this.tailLength + chunk > capacity) {
+					this.tailStart = (this.tailStart + this.tailLength + chunk - capacity)
+							% capacity;
+					this.tailLength = capacity;
+				} else {
+					this.tailLength += chunk;
+				}
+			}
+		}
+
+		@Override
+		public synchronized void outputFinished() throws IOException {
+			if (this.spill != null) {
+				this.spill.close();
+			}
+			if (this.tailLength > 0) {
+				// Append the tail after the head, oldest bytes first
+				int firstChunk = Math.min(this.tailLength, this.tail.length
+						- this.tailStart);
+				write(this.tail, this.tailStart, firstChunk);
+				write(this.tail, 0, this.tailLength - firstChunk);
+				this.tailLength = 0;
+			}
+		}
+
+		synchronized long getTruncated() {
+			return this.truncated;
+		}
+
+		synchronized File getSpillFile() {
+			return this.spillFile;
+		}
+
+		/**
+		 * Hand over the internal buffer when it's exactly full, rather than
+		 * copying it. Only called once collection has finished.
+		 */
+		@Override
+		public synchronized byte[] toByteArray() {
+			return (this.count == this.buf.length) ? this.buf : super
+					.toByteArray();
+		}
+	}
+}
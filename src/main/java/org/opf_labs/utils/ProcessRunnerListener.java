@@ -0,0 +1,31 @@
+package org.opf_labs.utils;
+
+/**
+ * Notified when a {@link ProcessRunner} finishes a run, for collecting
+ * metrics. Listeners are called on the thread that ran the process, so they
+ * should be quick, and any RuntimeException they throw is ignored.
+ * 
+ * @see ProcessMetricsRegistry for a listener that aggregates metrics per
+ *      command
+ */
+public interface ProcessRunnerListener {
+
+	/**
+	 * Called once a process has exited and its output has been drained.
+	 * 
+	 * @param metrics
+	 *            the metrics for the run
+	 */
+	public abstract void processFinished(ProcessMetrics metrics);
+
+	/**
+	 * Called when a process couldn't be started or run.
+	 * 
+	 * @param commandName
+	 *            the name of the command, see
+	 *            {@link ProcessMetrics#commandName(java.util.List)}
+	 * @param cause
+	 *            what went wrong
+	 */
+	public abstract void processFailed(String commandName, Throwable cause);
+}
@@ -0,0 +1,254 @@
+package org.opf_labs.utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Executor backed service for running many {@link ProcessRunner} jobs
+ * concurrently. At most {@link #getMaxConcurrentProcesses()} child processes
+ * are run at once, any further jobs are queued until a slot is free.
+ * </p>
+ * <p>
+ * The service is also a {@link ProcessRunnerFactory}, runners created through
+ * it pump their streams on a pool of threads owned by the service, so no new
+ * threads are started per process once the pool has warmed up. Runners
+ * created elsewhere can still be submitted, they just pump on their own
+ * threads. Pumps run on virtual threads when the
+ * <code>org.opf_labs.utils.virtualThreads</code> system property is true and
+ * the runtime supports them.
+ * </p>
+ * <p>
+ * Submitted jobs are returned as {@link ListenableFuture}s that complete with
+ * the finished runner, or fail with the {@link ProcessRunnerException} thrown
+ * by {@link ProcessRunner#execute()}.
+ * </p>
+ */
+public final class ProcessRunnerService implements ProcessRunnerFactory {
+	private final int maxConcurrentProcesses;
+	private final ListeningExecutorService jobExecutor;
+	private final ExecutorService pumpExecutor;
+	private final boolean usingVirtualThreads;
+	private volatile ProcessRunnerListener listener = null;
+
+	/**
+	 * Create a service that runs at most one process per available processor.
+	 */
+	public ProcessRunnerService() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param maxConcurrentProcesses
+	 *            the maximum number of child processes to run at once
+	 */
+	public ProcessRunnerService(final int maxConcurrentProcesses) {
+		if (maxConcurrentProcesses < 1) {
+			throw new IllegalArgumentException(
+					"maxConcurrentProcesses must be at least 1, was "
+							+ maxConcurrentProcesses);
+		}
+		this.maxConcurrentProcesses = maxConcurrentProcesses;
+		this.pumpExecutor = PumpThreads.newPumpExecutor("process-job-pump-%d");
+		// What was built, which is platform threads if virtual ones failed
+		this.usingVirtualThreads = PumpThreads.isVirtual(this.pumpExecutor);
+		this.jobExecutor = MoreExecutors
+				.listeningDecorator(new ThreadPoolExecutor(
+						maxConcurrentProcesses, maxConcurrentProcesses, 0L,
+						TimeUnit.MILLISECONDS,
+						new LinkedBlockingQueue<Runnable>(),
+						new ThreadFactoryBuilder()
+								.setNameFormat("process-job-%d")
+								.setDaemon(true).build()) {
+					@SuppressWarnings("synthetic-access")
+					@Override
+					protected void terminated() {
+						ProcessRunnerService.this.pumpExecutor.shutdown();
+					}
+				});
+	}
+
+	/**
+	 * @return the maximum number of child processes run at once
+	 */
+	public int getMaxConcurrentProcesses() {
+		return this.maxConcurrentProcesses;
+	}
+
+	/**
+	 * @return true if this service's pumps run on virtual threads
+	 */
+	public boolean isUsingVirtualThreads() {
+		return this.usingVirtualThreads;
+	}
+
+	/**
+	 * Set the listener given to every runner created by this service from
+	 * now on, for example a shared {@link ProcessMetricsRegistry}.
+	 *
+	 * @param listener
+	 *            the listener, or null for none
+	 */
+	public void setListener(final ProcessRunnerListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner()
+	 */
+	@Override
+	public ProcessRunner createProcessRunner() {
+		ProcessRunner processRunner = new ProcessRunnerImpl(this.pumpExecutor);
+		processRunner.setListener(this.listener);
+		return processRunner;
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.lang.String)
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final String command) {
+		return this.createProcessRunner(new String[] { command });
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.lang.String[])
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final String[] commands) {
+		return this.createProcessRunner(Arrays.asList(commands));
+	}
+
+	/**
+	 * @see org.opf_labs.utils.ProcessRunnerFactory#createProcessRunner(java.util.List)
+	 */
+	@Override
+	public ProcessRunner createProcessRunner(final List<String> commands) {
+		ProcessRunner processRunner = this.createProcessRunner();
+		processRunner.setCommand(commands);
+		return processRunner;
+	}
+
+	/**
+	 * Create a runner for the command and queue it for execution.
+	 *
+	 * @param commands
+	 *            commands and arguments as a List
+	 * @return a future that completes with the finished runner
+	 */
+	public ListenableFuture<ProcessRunner> submit(final List<String> commands) {
+		return this.submit(this.createProcessRunner(commands));
+	}
+
+	/**
+	 * Queue an already configured runner for execution.
+	 *
+	 * @param runner
+	 *            the runner to execute
+	 * @return a future that completes with the finished runner
+	 */
+	public ListenableFuture<ProcessRunner> submit(final ProcessRunner runner) {
+		if (runner == null) {
+			throw new IllegalArgumentException("runner can't be null.");
+		}
+		return this.jobExecutor.submit(new Callable<ProcessRunner>() {
+			@Override
+			public ProcessRunner call() throws ProcessRunnerException {
+				runner.execute();
+				return runner;
+			}
+		});
+	}
+
+	/**
+	 * Queue a runner for execution and notify the callback on completion. The
+	 * callback is invoked on the thread that ran the process, so it should be
+	 * quick or hand its work off elsewhere.
+	 *
+	 * @param runner
+	 *            the runner to execute
+	 * @param callback
+	 *            notified with the finished runner or the failure
+	 * @return a future that completes with the finished runner
+	 */
+	public ListenableFuture<ProcessRunner> submit(final ProcessRunner runner,
+			final FutureCallback<? super ProcessRunner> callback) {
+		ListenableFuture<ProcessRunner> future = this.submit(runner);
+		Futures.addCallback(future, callback);
+		return future;
+	}
+
+	/**
+	 * Queue an execution of a command, with no input. The same command can
+	 * be submitted any number of times, each execution gets its own result.
+	 * 
+	 * @param command
+	 *            the command to run
+	 * @return a future holding the result once the process has finished
+	 */
+	public ListenableFuture<ProcessResult> submit(final ProcessCommand command) {
+		if (command == null) {
+			throw new IllegalArgumentException("command can't be null.");
+		}
+		return this.jobExecutor.submit(new Callable<ProcessResult>() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public ProcessResult call() throws ProcessRunnerException {
+				return command.execute(null, null,
+						ProcessRunnerService.this.pumpExecutor);
+			}
+		});
+	}
+
+	/**
+	 * Stop accepting new jobs, queued and running jobs are still completed.
+	 * The pump threads are released once the last job has finished.
+	 */
+	public void shutdown() {
+		this.jobExecutor.shutdown();
+	}
+
+	/**
+	 * @return true if {@link #shutdown()} has been called
+	 */
+	public boolean isShutdown() {
+		return this.jobExecutor.isShutdown();
+	}
+
+	/**
+	 * Block until all jobs have completed after a shutdown request, or the
+	 * timeout occurs, or the current thread is interrupted.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the time unit of the timeout argument
+	 * @return true if the service terminated, false if the timeout elapsed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (!this.jobExecutor.awaitTermination(timeout, unit)) {
+			return false;
+		}
+		return this.pumpExecutor.awaitTermination(
+				Math.max(0L, deadline - System.nanoTime()),
+				TimeUnit.NANOSECONDS);
+	}
+}
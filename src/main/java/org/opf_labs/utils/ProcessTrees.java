@@ -0,0 +1,387 @@
+package org.opf_labs.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Terminates a process together with all of its descendants, so that the
+ * grandchildren of shell wrapped tools don't outlive a timeout and keep the
+ * output pipes open. Each process in the tree is asked to terminate (SIGTERM
+ * on UNIX), and any still alive after a grace period are killed (SIGKILL).
+ * </p>
+ * <p>
+ * On Java 9 and later the tree is found and signalled with
+ * <code>ProcessHandle</code>, looked up reflectively. On older runtimes the
+ * tree is read from <code>/proc</code> and signalled with <code>kill</code>,
+ * so only the process itself is reached where neither is available.
+ * </p>
+ * <p>
+ * A process that has exited is never signalled, nor is a descendant whose
+ * start time has changed since the tree was found, so a reused pid isn't
+ * hit. The tree is found and signalled on a pool of its own rather than on
+ * the caller's thread, which is often the shared watchdog.
+ * </p>
+ */
+final class ProcessTrees {
+	private static final Method TO_HANDLE;
+	private static final Method DESCENDANTS;
+	private static final Method STREAM_ITERATOR;
+	private static final Method HANDLE_DESTROY;
+	private static final Method HANDLE_DESTROY_FORCIBLY;
+	private static final Method HANDLE_IS_ALIVE;
+	static {
+		Method toHandle = null;
+		Method descendants = null;
+		Method iterator = null;
+		Method destroy = null;
+		Method destroyForcibly = null;
+		Method isAlive = null;
+		try {
+			toHandle = Process.class.getMethod("toHandle");
+			Class<?> handle = Class.forName("java.lang.ProcessHandle");
+			descendants = handle.getMethod("descendants");
+			iterator = Class.forName("java.util.stream.BaseStream").getMethod(
+					"iterator");
+			destroy = handle.getMethod("destroy");
+			destroyForcibly = handle.getMethod("destroyForcibly");
+			isAlive = handle.getMethod("isAlive");
+		} catch (Exception excep) {
+			// Older runtime, so fall back to /proc and kill
+			toHandle = null;
+		}
+		TO_HANDLE = toHandle;
+		DESCENDANTS = descendants;
+		STREAM_ITERATOR = iterator;
+		HANDLE_DESTROY = destroy;
+		HANDLE_DESTROY_FORCIBLY = destroyForcibly;
+		HANDLE_IS_ALIVE = isAlive;
+	}
+	private static final File PROC = new File("/proc");
+	/** Index of the start time in /proc/[pid]/stat, counted after comm */
+	private static final int STAT_START_TIME = 19;
+
+	private ProcessTrees() {
+		throw new AssertionError("In ProcessTrees no-arg constructor.");
+	}
+
+	/**
+	 * Ask the process and its descendants to terminate, then kill whatever
+	 * is left after the grace period. Returns straight away, the signals are
+	 * sent from the signalling pool and the kill is scheduled on the
+	 * scheduler, which times it with the monotonic clock.
+	 *
+	 * @param process
+	 *            the process to terminate
+	 * @param gracePeriod
+	 *            milliseconds between asking and killing, 0 to kill at once
+	 * @param scheduler
+	 *            runs the kill after the grace period
+	 */
+	static void terminate(final Process process, final long gracePeriod,
+			final ScheduledExecutorService scheduler) {
+		Signallers.INSTANCE.execute(new Runnable() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public void run() {
+				// Find the tree first, orphans are adopted by init once their
+				// parent has gone and can't be found from it any more
+				final Tree tree = snapshot(process);
+				if (gracePeriod <= 0) {
+					tree.kill();
+					return;
+				}
+				tree.terminate();
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						Signallers.INSTANCE.execute(new Runnable() {
+							@Override
+							public void run() {
+								tree.kill();
+							}
+						});
+					}
+				}, gracePeriod, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	private static Tree snapshot(final Process process) {
+		if (TO_HANDLE != null) {
+			try {
+				Object root = TO_HANDLE.invoke(process);
+				List<Object> handles = new ArrayList<Object>();
+				Iterator<?> descendants = (Iterator<?>) STREAM_ITERATOR
+						.invoke(DESCENDANTS.invoke(root));
+				while (descendants.hasNext()) {
+					handles.add(descendants.next());
+				}
+				return new HandleTree(process, handles);
+			} catch (Exception excep) {
+				// Fall through to the /proc tree
+			}
+		}
+		int pid = pidOf(process);
+		return new ProcTree(process, (pid > 0) ? procDescendants(pid)
+				: new HashMap<Integer, String>());
+	}
+
+	/**
+	 * @return true if the process has exited, and may have been reaped
+	 */
+	private static boolean hasExited(final Process process) {
+		try {
+			process.exitValue();
+			return true;
+		} catch (IllegalThreadStateException excep) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the pid of a process on Java 7 and 8 UNIX runtimes, or -1
+	 */
+	private static int pidOf(final Process process) {
+		try {
+			Field pid = process.getClass().getDeclaredField("pid");
+			pid.setAccessible(true);
+			return pid.getInt(process);
+		} catch (Exception excep) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the pids of the descendants of a process, read from /proc,
+	 *         with their start times, or an empty map where there's no /proc
+	 */
+	private static Map<Integer, String> procDescendants(final int root) {
+		Map<Integer, String> descendants = new HashMap<Integer, String>();
+		File[] entries = PROC.listFiles();
+		if (entries == null) {
+			return descendants;
+		}
+		Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+		Map<Integer, String> startTimes = new HashMap<Integer, String>();
+		for (File entry : entries) {
+			String[] stat = stat(entry);
+			if (stat == null) {
+				continue;
+			}
+			Integer pid = Integer.valueOf(entry.getName());
+			Integer ppid = Integer.valueOf(stat[1]);
+			List<Integer> siblings = children.get(ppid);
+			if (siblings == null) {
+				siblings = new ArrayList<Integer>();
+				children.put(ppid, siblings);
+			}
+			siblings.add(pid);
+			startTimes.put(pid, stat[STAT_START_TIME]);
+		}
+		List<Integer> parents = new ArrayList<Integer>();
+		parents.add(Integer.valueOf(root));
+		while (!parents.isEmpty()) {
+			List<Integer> found = children.remove(parents.remove(0));
+			if (found != null) {
+				for (Integer pid : found) {
+					descendants.put(pid, startTimes.get(pid));
+				}
+				parents.addAll(found);
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * @return the start time of a process, in clock ticks since boot, or
+	 *         null if it's gone
+	 */
+	private static String startTime(final int pid) {
+		String[] stat = stat(new File(PROC, Integer.toString(pid)));
+		return (stat == null) ? null : stat[STAT_START_TIME];
+	}
+
+	/**
+	 * @return the fields of a /proc/[pid]/stat after the command name,
+	 *         starting with the state, or null if it isn't a process or has
+	 *         gone
+	 */
+	private static String[] stat(final File procEntry) {
+		String name = procEntry.getName();
+		if (name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+			return null;
+		}
+		try {
+			// pid (comm) state ppid ..., comm may hold spaces and parens
+			String stat = Files.toString(new File(procEntry, "stat"),
+					Charset.defaultCharset());
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2)
+					.trim().split(" ");
+			return (fields.length > STAT_START_TIME) ? fields : null;
+		} catch (IOException excep) {
+			// Exited while we looked
+			return null;
+		} catch (RuntimeException excep) {
+			return null;
+		}
+	}
+
+	/**
+	 * A snapshot of a process and its descendants.
+	 */
+	private abstract static class Tree {
+		final Process process;
+
+		Tree(final Process process) {
+			this.process = process;
+		}
+
+		/** Ask every process in the tree to terminate */
+		abstract void terminate();
+
+		/** Kill every process in the tree that's still alive */
+		abstract void kill();
+	}
+
+	/**
+	 * Tree signalled through ProcessHandles.
+	 */
+	private static final class HandleTree extends Tree {
+		private final List<Object> descendants;
+
+		HandleTree(final Process process, final List<Object> descendants) {
+			super(process);
+			this.descendants = descendants;
+		}
+
+		@Override
+		void terminate() {
+			this.process.destroy();
+			this.signal(HANDLE_DESTROY);
+		}
+
+		@Override
+		void kill() {
+			this.signal(HANDLE_DESTROY_FORCIBLY);
+			if (hasExited(this.process)) {
+				return;
+			}
+			try {
+				HANDLE_DESTROY_FORCIBLY.invoke(TO_HANDLE.invoke(this.process));
+			} catch (Exception excep) {
+				this.process.destroy();
+			}
+		}
+
+		private void signal(final Method method) {
+			for (Object handle : this.descendants) {
+				try {
+					if (Boolean.TRUE.equals(HANDLE_IS_ALIVE.invoke(handle))) {
+						method.invoke(handle);
+					}
+				} catch (Exception excep) {
+					// Gone already, or not ours to signal
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tree of pids read from /proc, signalled with kill.
+	 */
+	private static final class ProcTree extends Tree {
+		/** Descendant pids and their start times when the tree was found */
+		private final Map<Integer, String> descendants;
+
+		ProcTree(final Process process, final Map<Integer, String> descendants) {
+			super(process);
+			this.descendants = descendants;
+		}
+
+		@Override
+		void terminate() {
+			this.process.destroy();
+			this.signal("-TERM");
+		}
+
+		@Override
+		void kill() {
+			this.signal("-KILL");
+			// Once it's exited the JDK may have reaped it and its pid reused
+			if (hasExited(this.process)) {
+				return;
+			}
+			int pid = pidOf(this.process);
+			if (pid > 0) {
+				run("kill", "-KILL", Integer.toString(pid));
+			} else {
+				this.process.destroy();
+			}
+		}
+
+		private void signal(final String signal) {
+			if (this.descendants.isEmpty()) {
+				return;
+			}
+			List<String> command = new ArrayList<String>();
+			command.add("kill");
+			command.add(signal);
+			for (Map.Entry<Integer, String> descendant : this.descendants
+					.entrySet()) {
+				// Skip those that have gone, or whose pid is now another's
+				String startTime = startTime(descendant.getKey().intValue());
+				if (startTime != null && startTime.equals(descendant.getValue())) {
+					command.add(descendant.getKey().toString());
+				}
+			}
+			if (command.size() > 2) {
+				run(command.toArray(new String[command.size()]));
+			}
+		}
+
+		private static void run(final String... command) {
+			try {
+				Process kill = new ProcessBuilder(command).redirectErrorStream(
+						true).start();
+				kill.getOutputStream().close();
+				kill.getInputStream().close();
+				kill.waitFor();
+			} catch (IOException excep) {
+				// No kill command, nothing more we can do
+			} catch (InterruptedException excep) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Lazily created pool of daemon threads that find process trees and fork
+	 * <code>kill</code>, so the watchdog isn't held up by either.
+	 */
+	private static final class Signallers {
+		static final Executor INSTANCE = Executors
+				.newCachedThreadPool(new ThreadFactoryBuilder()
+						.setNameFormat("process-signaller-%d").setDaemon(true)
+						.build());
+
+		private Signallers() {
+			throw new AssertionError("In Signallers no-arg constructor.");
+		}
+	}
+}
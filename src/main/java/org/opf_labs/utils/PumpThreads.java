@@ -0,0 +1,93 @@
+package org.opf_labs.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Creates the executors that process stream pumps and input feeders run on.
+ * By default these are cached pools of daemon platform threads. Setting the
+ * system property <code>org.opf_labs.utils.virtualThreads</code> to
+ * <code>true</code> runs them on virtual threads instead, when the runtime
+ * has them (Java 21 on). Older runtimes ignore the property, so the same jar
+ * works everywhere, and if a virtual thread executor can't be made the pumps
+ * fall back to platform threads. Ask {@link #isVirtual(ExecutorService)}
+ * which kind an executor really is.
+ * </p>
+ * <p>
+ * Virtual threads make a pump cost a small heap object rather than a thread
+ * stack, so far more processes can be kept in flight. Blocking pipe reads
+ * still occupy a carrier thread while they wait, the JVM adds carriers up to
+ * <code>jdk.virtualThreadScheduler.maxPoolSize</code> to cover them.
+ * </p>
+ */
+final class PumpThreads {
+	/** System property that turns on virtual thread pumps */
+	static final String VIRTUAL_THREADS_PROPERTY = "org.opf_labs.utils.virtualThreads";
+
+	/** Executors.newVirtualThreadPerTaskExecutor(), null before Java 21 */
+	private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+	private PumpThreads() {
+		throw new AssertionError("In PumpThreads no-arg constructor.");
+	}
+
+	/**
+	 * @return true if the runtime supports virtual threads
+	 */
+	static boolean isVirtualAvailable() {
+		return NEW_VIRTUAL_EXECUTOR != null;
+	}
+
+	/**
+	 * @return true if pumps should run on virtual threads, because they're
+	 *         both requested and available
+	 */
+	static boolean isVirtualSelected() {
+		return isVirtualAvailable()
+				&& Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+	}
+
+	/**
+	 * @param nameFormat
+	 *            the name format for platform threads, see
+	 *            {@link ThreadFactoryBuilder#setNameFormat(String)}
+	 * @return a new executor for pumps, on virtual threads if selected and
+	 *         they could be used, otherwise on platform threads
+	 */
+	static ExecutorService newPumpExecutor(final String nameFormat) {
+		if (isVirtualSelected()) {
+			try {
+				return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+			} catch (Exception excep) {
+				// Fall back to platform threads
+			}
+		}
+		return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+				.setNameFormat(nameFormat).setDaemon(true).build());
+	}
+
+	/**
+	 * @param pumpExecutor
+	 *            an executor made by {@link #newPumpExecutor(String)}
+	 * @return true if it runs tasks on virtual threads, false if it's the
+	 *         platform thread pool, whether chosen or fallen back to
+	 */
+	static boolean isVirtual(final ExecutorService pumpExecutor) {
+		// The platform pool is always a ThreadPoolExecutor, the virtual
+		// thread executor never is
+		return !(pumpExecutor instanceof ThreadPoolExecutor);
+	}
+
+	private static Method findVirtualExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException excep) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.opf_labs.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Static utility class for copying process streams in chunks, using a small
+ * pool of reusable buffers so that busy pumps don't churn the heap. Only
+ * buffers of {@link #DEFAULT_BUFFER_SIZE} are pooled, so the pool never holds
+ * more than {@link #MAX_POOLED_BUFFERS} of them however many sizes are asked
+ * for, other sizes are allocated each time.
+ */
+final class StreamPumps {
+	/** Default pump buffer size, matches the default Linux pipe capacity */
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	/** Maximum number of idle buffers kept in the pool */
+	static final int MAX_POOLED_BUFFERS = 64;
+
+	private static final BufferPool POOL = new BufferPool();
+
+	private StreamPumps() {
+		throw new AssertionError("In StreamPumps no-arg constructor.");
+	}
+
+	/**
+	 * Take a buffer from the pool, or allocate a new one if none is idle.
+	 *
+	 * @param size
+	 *            the size of the buffer required
+	 * @return a buffer of exactly size bytes
+	 */
+	static byte[] acquireBuffer(final int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException(
+					"size must be at least 1, was " + size);
+		}
+		byte[] buffer = (size == DEFAULT_BUFFER_SIZE) ? POOL.poll() : null;
+		return (buffer == null) ? new byte[size] : buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool, it must not be used by the caller again.
+	 * Buffers that aren't the default size are left to the garbage collector.
+	 *
+	 * @param buffer
+	 *            the buffer to release, may be null
+	 */
+	static void releaseBuffer(final byte[] buffer) {
+		if (buffer != null && buffer.length == DEFAULT_BUFFER_SIZE) {
+			POOL.offer(buffer);
+		}
+	}
+
+	/**
+	 * Copy all bytes from in to out in chunks of up to bufferSize bytes,
+	 * flushing out after each chunk so the reader sees data promptly. Neither
+	 * stream is closed.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @param out
+	 *            the stream to write to
+	 * @param bufferSize
+	 *            the size of the chunks to copy
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 *             when reading or writing fails
+	 */
+	static long copy(final InputStream in, final OutputStream out,
+			final int bufferSize) throws IOException {
+		byte[] buffer = acquireBuffer(bufferSize);
+		try {
+			long total = 0L;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				out.flush();
+				total += read;
+			}
+			return total;
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Bounded queue of idle buffers of the default size.
+	 */
+	private static final class BufferPool {
+		private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		BufferPool() {
+		}
+
+		byte[] poll() {
+			byte[] buffer = this.buffers.poll();
+			if (buffer != null) {
+				this.size.decrementAndGet();
+			}
+			return buffer;
+		}
+
+		void offer(final byte[] buffer) {
+			if (this.size.incrementAndGet() > MAX_POOLED_BUFFERS) {
+				this.size.decrementAndGet();
+				return;
+			}
+			this.buffers.offer(buffer);
+		}
+	}
+}
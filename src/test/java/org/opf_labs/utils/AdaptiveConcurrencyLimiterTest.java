@@ -0,0 +1,100 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AdaptiveConcurrencyLimiter}, driven with made up run
+ * times and host load ignored.
+ */
+public class AdaptiveConcurrencyLimiterTest {
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private static AdaptiveConcurrencyLimiter newLimiter() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8,
+				1, 32);
+		limiter.setMaxLoadPerProcessor(Double.POSITIVE_INFINITY);
+		return limiter;
+	}
+
+	private static void run(final AdaptiveConcurrencyLimiter limiter,
+			final long latencyNanos) throws InterruptedException {
+		limiter.acquire();
+		limiter.release("tool", latencyNanos, false);
+	}
+
+	/**
+	 * One tool alternating small and large inputs isn't congestion.
+	 */
+	@Test
+	public void alternatingRunTimesKeepTheLimit() throws InterruptedException {
+		AdaptiveConcurrencyLimiter limiter = newLimiter();
+		for (int i = 0; i < 20000; i++) {
+			run(limiter, (i % 2 == 0) ? FAST : SLOW);
+		}
+		assertEquals(8, limiter.getLimit());
+		assertEquals(0L, limiter.getDecreaseCount());
+	}
+
+	/**
+	 * Nor is one tool with an occasional large input.
+	 */
+	@Test
+	public void occasionalSlowRunsKeepTheLimit() throws InterruptedException {
+		AdaptiveConcurrencyLimiter limiter = newLimiter();
+		for (int i = 0; i < 20000; i++) {
+			run(limiter, (i % 5 == 4) ? SLOW : FAST);
+		}
+		assertEquals(8, limiter.getLimit());
+		assertEquals(0L, limiter.getDecreaseCount());
+	}
+
+	/**
+	 * Nor a random mix of input sizes.
+	 */
+	@Test
+	public void randomRunTimesKeepTheLimit() throws InterruptedException {
+		AdaptiveConcurrencyLimiter limiter = newLimiter();
+		Random random = new Random(42L);
+		for (int i = 0; i < 20000; i++) {
+			run(limiter, random.nextBoolean() ? SLOW : FAST);
+		}
+		assertEquals(8, limiter.getLimit());
+	}
+
+	/**
+	 * Every run of the mix slowing down is.
+	 */
+	@Test
+	public void slowerMixLowersTheLimit() throws InterruptedException {
+		AdaptiveConcurrencyLimiter limiter = newLimiter();
+		for (int i = 0; i < 1000; i++) {
+			run(limiter, (i % 2 == 0) ? FAST : SLOW);
+		}
+		for (int i = 0; i < 500; i++) {
+			run(limiter, 3 * ((i % 2 == 0) ? FAST : SLOW));
+		}
+		assertTrue(limiter.getLimit() < 8);
+	}
+
+	/**
+	 * Runs that never started don't move the limit.
+	 */
+	@Test
+	public void unusedPermitsDontLowerTheLimit() throws InterruptedException {
+		AdaptiveConcurrencyLimiter limiter = newLimiter();
+		for (int i = 0; i < 100; i++) {
+			limiter.acquire();
+			limiter.releaseUnused();
+		}
+		assertEquals(8, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(0L, limiter.getCompletedCount());
+	}
+}
@@ -0,0 +1,43 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+
+/**
+ * Tests for {@link BatchProcessRunner}'s output parsers.
+ */
+public class BatchProcessRunnerTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Results and arguments that contain the separator are still split at
+	 * the argument, whichever side it's on.
+	 */
+	@Test
+	public void separatorInResultOrArgument() throws ProcessRunnerException {
+		List<String> arguments = Arrays.asList("a.doc", "b: c.txt", "missing");
+		List<String> parsed = BatchProcessRunner.delimitedLines(": ", true,
+				UTF_8).parse(
+				arguments,
+				output("a.doc: Composite Document File V2, Title: x\n"
+						+ "b: c.txt: ASCII text\n"));
+		assertEquals(Arrays.asList("Composite Document File V2, Title: x",
+				"ASCII text", null), parsed);
+
+		arguments = Arrays.asList("a  b", "c");
+		parsed = BatchProcessRunner.delimitedLines("  ", false, UTF_8).parse(
+				arguments, output("x  y  a  b\nd1  c\n"));
+		assertEquals(Arrays.asList("x  y", "d1"), parsed);
+	}
+
+	private static ProcessResult output(final String output) {
+		return new ProcessResult(0, false, output.getBytes(UTF_8), null, 0L,
+				0L, null, null, null, null);
+	}
+}
@@ -0,0 +1,52 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opf_labs.utils.ProcessRunner.ProcessRunnerException;
+
+/**
+ * Tests for {@link CoProcessRunnerFactory}'s runners.
+ */
+public class CoProcessRunnerFactoryTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final List<String> CAT = Arrays.asList("cat");
+
+	/**
+	 * A request read from the input that holds a line break fails the run
+	 * without reaching the co-process, so the next request on the same pool
+	 * member gets its own response.
+	 */
+	@Test
+	public void multiLineInputIsRejected() throws ProcessRunnerException {
+		CoProcess template = new CoProcess(CAT);
+		template.setCharset(UTF_8);
+		CoProcessPool pool = new CoProcessPool(template, 1);
+		try {
+			CoProcessRunnerFactory factory = new CoProcessRunnerFactory(pool);
+			ProcessRunner runner = factory.createProcessRunner(CAT);
+			runner.setInputStream(new ByteArrayInputStream("first\nsecond\n"
+					.getBytes(UTF_8)));
+			try {
+				runner.execute();
+				fail("Sent a multi-line request.");
+			} catch (ProcessRunnerException excep) {
+				// Expected
+			}
+			runner = factory.createProcessRunner(CAT);
+			runner.setInputStream(new ByteArrayInputStream("third\r\n"
+					.getBytes(UTF_8)));
+			runner.execute();
+			assertEquals("third\n", runner.getProcessOutputAsString(UTF_8));
+			assertEquals(1L, pool.getRequestCount());
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link EnvironmentSnapshot}'s binary form.
+ */
+public class EnvironmentSnapshotTest {
+
+	/**
+	 * The binary form reads back as the same snapshot.
+	 */
+	@Test
+	public void bytesRoundTrip() {
+		EnvironmentSnapshot snapshot = Environments.getSnapshot();
+		assertEquals(snapshot, EnvironmentSnapshot.fromBytes(snapshot.toBytes()));
+	}
+
+	/**
+	 * A length whose varint runs past 31 bits, or past the end of the bytes,
+	 * is rejected rather than read as a missing value.
+	 */
+	@Test
+	public void badLengthsAreRejected() {
+		byte[][] corrupt = {
+				// 2^32, wraps to 0 and would read as missing
+				{ 'E', 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+						0x10 },
+				// 2^31, wraps negative
+				{ 'E', 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+						0x08 },
+				// Six byte varint
+				{ 'E', 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+						(byte) 0x80, 0x00 },
+				// Integer.MAX_VALUE - 1 bytes of value in a short array
+				{ 'E', 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+						0x07 } };
+		for (byte[] bytes : corrupt) {
+			try {
+				EnvironmentSnapshot.fromBytes(bytes);
+				fail("Accepted a bad length.");
+			} catch (IllegalArgumentException excep) {
+				// Expected
+			}
+		}
+	}
+}
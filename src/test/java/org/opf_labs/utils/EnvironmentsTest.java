@@ -0,0 +1,30 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNoException;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Environments}.
+ */
+public class EnvironmentsTest {
+	/**
+	 * The host details should come from a real lookup, not the fallback, on a
+	 * host that can resolve itself.
+	 */
+	@Test
+	public void hostNameIsResolved() {
+		InetAddress localHost = null;
+		try {
+			localHost = InetAddress.getLocalHost();
+		} catch (UnknownHostException excep) {
+			assumeNoException(excep);
+		}
+		assertEquals(localHost.getHostName(), Environments.getHostName());
+		assertEquals(localHost.getHostAddress(), Environments.getHostAddress());
+	}
+}
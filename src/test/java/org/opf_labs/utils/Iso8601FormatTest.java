@@ -0,0 +1,107 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Iso8601Format}, against a proleptic
+ * {@link GregorianCalendar}.
+ */
+public class Iso8601FormatTest {
+	private static final String[] ZONES = { "UTC", "Asia/Kolkata",
+			"Africa/Monrovia", "America/New_York", "Europe/London",
+			"Australia/Lord_Howe" };
+	private static final long[] INSTANTS = {
+			0L,
+			-1L,
+			// 1900 and 1930, offsets in seconds in Kolkata and Monrovia
+			-2208988800000L,
+			-1262304000000L,
+			// New York springing forward and falling back in 2012
+			1331449199999L, 1331449200000L, 1352005200000L, 1352008799999L,
+			1352008800000L,
+			// London falling back in 1996
+			846377999999L, 846378000000L,
+			// 0000, -0001 and +10000
+			-62167219200000L, -62167219200001L, 253402300800000L,
+			// Around years -29719 and +33658
+			-1000000000000000L, 1000000000000000L };
+
+	/**
+	 * Instants format as the calendar has them and parse back, in zones with
+	 * daylight saving and with offsets that aren't whole minutes.
+	 */
+	@Test
+	public void roundTripsAgainstCalendar() {
+		for (String id : ZONES) {
+			TimeZone zone = TimeZone.getTimeZone(id);
+			Iso8601Format format = Iso8601Format.builder().setTimeZone(zone)
+					.build();
+			for (long millis : INSTANTS) {
+				String text = format.format(millis);
+				assertEquals(id, expected(zone, millis), text);
+				assertEquals(id + " " + text, millis, format.parseMillis(text));
+			}
+		}
+	}
+
+	/**
+	 * Offsets with seconds are written with them, and read in either form.
+	 */
+	@Test
+	public void offsetSeconds() {
+		Iso8601Format format = Iso8601Format.builder()
+				.setTimeZone(TimeZone.getTimeZone("Asia/Kolkata"))
+				.setPrecision(Iso8601Format.Precision.SECONDS).build();
+		assertEquals("1900-01-01T05:21:10+05:21:10",
+				format.format(-2208988800000L));
+		assertEquals(-2208988800000L,
+				format.parseMillis("1900-01-01T05:21:10+052110"));
+		assertEquals(-2208988800000L,
+				format.parseMillis("1899-12-31T23:16:52-00:43:08"));
+	}
+
+	private static String expected(final TimeZone zone, final long millis) {
+		GregorianCalendar calendar = new GregorianCalendar(zone);
+		// Proleptic, as the format is
+		calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+		calendar.setTimeInMillis(millis);
+		long year = calendar.get(Calendar.YEAR);
+		if (calendar.get(Calendar.ERA) == GregorianCalendar.BC) {
+			year = 1 - year;
+		}
+		StringBuilder sb = new StringBuilder();
+		if (year < 0) {
+			sb.append('-');
+		} else if (year > 9999) {
+			sb.append('+');
+		}
+		sb.append(String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03d",
+				Long.valueOf(Math.abs(year)),
+				Integer.valueOf(calendar.get(Calendar.MONTH) + 1),
+				Integer.valueOf(calendar.get(Calendar.DAY_OF_MONTH)),
+				Integer.valueOf(calendar.get(Calendar.HOUR_OF_DAY)),
+				Integer.valueOf(calendar.get(Calendar.MINUTE)),
+				Integer.valueOf(calendar.get(Calendar.SECOND)),
+				Integer.valueOf(calendar.get(Calendar.MILLISECOND))));
+		int offset = (calendar.get(Calendar.ZONE_OFFSET) + calendar
+				.get(Calendar.DST_OFFSET)) / 1000;
+		if (offset == 0) {
+			return sb.append('Z').toString();
+		}
+		sb.append((offset < 0) ? '-' : '+');
+		offset = Math.abs(offset);
+		sb.append(String.format("%02d:%02d", Integer.valueOf(offset / 3600),
+				Integer.valueOf(offset / 60 % 60)));
+		if (offset % 60 != 0) {
+			sb.append(String.format(":%02d", Integer.valueOf(offset % 60)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ProcessOutputHandlers}' line splitting.
+ */
+public class ProcessOutputHandlersTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MAX = ProcessOutputHandlers.DEFAULT_MAX_RECORD_LENGTH;
+
+	/**
+	 * A line split for length isn't cut inside a character, and only the
+	 * carriage return ending a line is dropped.
+	 */
+	@Test
+	public void longLinesSplitBetweenCharacters() throws IOException {
+		String filler = repeat('a', MAX - 1);
+		// The split falls after the first byte of the e acute
+		assertEquals(
+				Arrays.asList(filler, "\u00e9b\rc", "next"),
+				lines(filler + "\u00e9b\rc\r\nnext\r\n"));
+		// The split falls straight after the carriage return
+		assertEquals(Arrays.asList(filler + "\r", "z"), lines(filler
+				+ "\rz\n"));
+		// The output ends part way through a cut character
+		byte[] cut = Arrays.copyOf(filler.getBytes(UTF_8), MAX);
+		cut[MAX - 1] = (byte) 0xC3;
+		assertEquals(Arrays.asList(filler, "\ufffd"), lines(cut));
+	}
+
+	private static List<String> lines(final String output) throws IOException {
+		return lines(output.getBytes(UTF_8));
+	}
+
+	private static List<String> lines(final byte[] output) throws IOException {
+		final List<String> lines = new ArrayList<String>();
+		ProcessOutputHandler handler = ProcessOutputHandlers.lines(
+				new ProcessOutputHandlers.LineConsumer() {
+					@Override
+					public void line(final String line) {
+						lines.add(line);
+					}
+				}, UTF_8);
+		// In pump sized chunks, so lines span several calls
+		for (int offset = 0; offset < output.length; offset += 8192) {
+			handler.handleOutput(output, offset,
+					Math.min(8192, output.length - offset));
+		}
+		handler.outputFinished();
+		return lines;
+	}
+
+	private static String repeat(final char c, final int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,101 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ProcessResultCache}'s disk tier.
+ */
+public class ProcessResultCacheTest {
+	private static final String KEY = "0123456789abcdef";
+
+	/** Holds the cache directory */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * A result written by one cache is found by the next one on the same
+	 * directory.
+	 */
+	@Test
+	public void resultSurvivesARestart() {
+		File directory = this.folder.getRoot();
+		new ProcessResultCache(1024, directory, 1024).put(KEY,
+				new ProcessResultCache.Result(3, new byte[] { 1, 2 },
+						new byte[] { 4 }));
+		ProcessResultCache cache = new ProcessResultCache(1024, directory, 1024);
+		ProcessResultCache.Result result = cache.get(KEY);
+		assertNotNull(result);
+		assertEquals(3, result.getReturnCode());
+		assertArrayEquals(new byte[] { 1, 2 }, result.getOutput());
+		assertArrayEquals(new byte[] { 4 }, result.getError());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	/**
+	 * A negative or oversized length is a miss, and the entry is dropped.
+	 */
+	@Test
+	public void corruptLengthIsAMiss() throws IOException {
+		for (int length : new int[] { -1, Integer.MAX_VALUE }) {
+			File directory = this.folder.newFolder("cache" + (length < 0));
+			File file = new File(directory, KEY + ".result");
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					file));
+			try {
+				out.writeInt(1);
+				out.writeInt(0);
+				out.writeInt(length);
+			} finally {
+				out.close();
+			}
+			ProcessResultCache cache = new ProcessResultCache(1024, directory,
+					1024);
+			assertNull(cache.get(KEY));
+			assertEquals(1, cache.getMissCount());
+			assertEquals(0, cache.getDiskBytes());
+			assertFalse(file.exists());
+		}
+	}
+
+	/**
+	 * Reopening a directory with a smaller budget evicts the least recently
+	 * used files, and leftover temporary files are deleted.
+	 */
+	@Test
+	public void reopenEvictsToBudget() throws IOException {
+		File directory = this.folder.getRoot();
+		ProcessResultCache cache = new ProcessResultCache(1024, directory, 1024);
+		String[] keys = { KEY + "0", KEY + "1", KEY + "2" };
+		for (int i = 0; i < keys.length; i++) {
+			cache.put(keys[i], new ProcessResultCache.Result(0, new byte[] {
+					1, 2 }, new byte[] { 4 }));
+			assertTrue(new File(directory, keys[i] + ".result")
+					.setLastModified(1000000000000L + i * 1000L));
+		}
+		long fileBytes = new File(directory, keys[0] + ".result").length();
+		File temp = new File(directory, KEY + ".tmp");
+		assertTrue(temp.createNewFile());
+
+		cache = new ProcessResultCache(1024, directory, 2 * fileBytes);
+		assertEquals(2 * fileBytes, cache.getDiskBytes());
+		assertFalse(new File(directory, keys[0] + ".result").exists());
+		assertFalse(temp.exists());
+		assertNull(cache.get(keys[0]));
+		assertNotNull(cache.get(keys[1]));
+		assertNotNull(cache.get(keys[2]));
+	}
+}
@@ -0,0 +1,89 @@
+package org.opf_labs.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PumpThreads}, the virtual thread tests only run on Java 21
+ * and later.
+ */
+public class PumpThreadsTest {
+
+	/**
+	 * Put the property back for the other tests.
+	 */
+	@After
+	public void clearProperty() {
+		System.clearProperty(PumpThreads.VIRTUAL_THREADS_PROPERTY);
+	}
+
+	/**
+	 * Without the property pumps run on platform threads.
+	 */
+	@Test
+	public void platformThreadsByDefault() throws Exception {
+		ExecutorService executor = PumpThreads.newPumpExecutor("test-pump-%d");
+		try {
+			assertFalse(PumpThreads.isVirtual(executor));
+			assertEquals(Boolean.FALSE, executor.submit(new IsVirtual()).get());
+		} finally {
+			executor.shutdown();
+		}
+		ProcessRunnerService service = new ProcessRunnerService(1);
+		assertFalse(service.isUsingVirtualThreads());
+		service.shutdown();
+	}
+
+	/**
+	 * With the property, and a runtime that has them, pumps run on virtual
+	 * threads and the service says so.
+	 */
+	@Test
+	public void virtualThreadsWhenSelected() throws Exception {
+		assumeTrue(PumpThreads.isVirtualAvailable());
+		System.setProperty(PumpThreads.VIRTUAL_THREADS_PROPERTY, "true");
+		ExecutorService executor = PumpThreads.newPumpExecutor("test-pump-%d");
+		try {
+			assertTrue(PumpThreads.isVirtual(executor));
+			assertEquals(Boolean.TRUE, executor.submit(new IsVirtual()).get());
+		} finally {
+			executor.shutdown();
+		}
+		ProcessRunnerService service = new ProcessRunnerService(1);
+		try {
+			assertTrue(service.isUsingVirtualThreads());
+			ProcessRunner runner = service.createProcessRunner("echo");
+			service.submit(runner).get();
+			assertEquals(0, runner.getReturnCode());
+		} finally {
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * Whether the calling thread is virtual, false before Java 21.
+	 */
+	private static final class IsVirtual implements Callable<Boolean> {
+		IsVirtual() {
+		}
+
+		@Override
+		public Boolean call() throws Exception {
+			try {
+				Method isVirtual = Thread.class.getMethod("isVirtual");
+				return (Boolean) isVirtual.invoke(Thread.currentThread());
+			} catch (NoSuchMethodException excep) {
+				return Boolean.FALSE;
+			}
+		}
+	}
+}